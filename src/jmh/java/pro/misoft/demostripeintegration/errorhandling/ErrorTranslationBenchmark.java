@@ -0,0 +1,80 @@
+package pro.misoft.demostripeintegration.errorhandling;
+
+import jakarta.validation.ConstraintViolationException;
+import jakarta.validation.Validation;
+import jakarta.validation.Validator;
+import jakarta.validation.constraints.Email;
+import jakarta.validation.constraints.NotBlank;
+import jakarta.validation.constraints.NotNull;
+import jakarta.validation.constraints.Size;
+import org.openjdk.jmh.annotations.*;
+import pro.misoft.demostripeintegration.common.BusinessException;
+import pro.misoft.demostripeintegration.config.PrecompiledMessageSource;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of translating exceptions to error responses, which is paid by every rejected request.
+ * Run with the GC profiler (configured in build.gradle) and compare <code>gc.alloc.rate.norm</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ErrorTranslationBenchmark {
+
+    private ApiErrorFactory errorFactory;
+    private BusinessException businessException;
+    private IllegalArgumentException illegalArgumentException;
+    private UnsupportedOperationException unmappedException;
+    private ConstraintViolationException constraintViolationException;
+
+    @Setup
+    public void setUp() throws IOException {
+        errorFactory = new ApiErrorFactory(PrecompiledMessageSource.load("i18n/messages", Locale.ENGLISH));
+
+        businessException = new BusinessException("errors.user.user-not-found", new Object[]{"john.doe@example.com"});
+        illegalArgumentException = new IllegalArgumentException("Product [bookC] not found");
+        unmappedException = new UnsupportedOperationException("unsupported");
+
+        Validator validator = Validation.buildDefaultValidatorFactory().getValidator();
+        constraintViolationException = new ConstraintViolationException(validator.validate(new Customer(null, "x", "not-an-email")));
+    }
+
+    @Benchmark
+    public RestResponseSupport.Keys keysMapped() {
+        return RestResponseSupport.getKeys(businessException);
+    }
+
+    @Benchmark
+    public RestResponseSupport.Keys keysUnmapped() {
+        return RestResponseSupport.getKeys(unmappedException);
+    }
+
+    @Benchmark
+    public ApiError businessError() {
+        return errorFactory.error(businessException);
+    }
+
+    @Benchmark
+    public ApiError businessErrorGerman() {
+        return errorFactory.error(businessException, Locale.GERMAN);
+    }
+
+    @Benchmark
+    public ApiError illegalArgumentError() {
+        return errorFactory.error(illegalArgumentException);
+    }
+
+    @Benchmark
+    public ApiError constraintViolationError() {
+        return errorFactory.error(constraintViolationException);
+    }
+
+    record Customer(
+            @NotNull @Size(min = 36, max = 36) String id,
+            @NotBlank @Size(min = 2, max = 36) String name,
+            @NotBlank @Email String email) {
+    }
+}
@@ -0,0 +1,75 @@
+package pro.misoft.demostripeintegration.web.payment;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Product lookup by id in catalogs of varying size: the on-heap {@link ArrayPriceTable} against the off-heap
+ * {@link OffHeapPriceTable}, and loading the catalog file. Run with the GC profiler (configured in build.gradle) and
+ * compare <code>gc.alloc.rate.norm</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CatalogBenchmark {
+
+    @Param({"1000", "100000"})
+    private int catalogSize;
+
+    private Path file;
+    private PriceTable arrayTable;
+    private PriceTable offHeapTable;
+    private String[] ids;
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception {
+        file = Files.createTempFile("catalog", ".csv");
+        ArrayPriceTable.Builder builder = ArrayPriceTable.builder();
+        ids = new String[catalogSize];
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write(OffHeapPriceTable.HEADER);
+            writer.newLine();
+            for (int i = 0; i < catalogSize; i++) {
+                ids[i] = "sku-" + i;
+                writer.write("%s,%d,usd,Product %d%n".formatted(ids[i], 1000 + i, i));
+                builder.add(ids[i], "Product " + i, 1000 + i, "usd");
+            }
+        }
+        arrayTable = builder.build();
+        offHeapTable = OffHeapPriceTable.load(file);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public long arrayLookup() {
+        return arrayTable.unitAmount(arrayTable.indexOf(nextId()));
+    }
+
+    @Benchmark
+    public long offHeapLookup() {
+        return offHeapTable.unitAmount(offHeapTable.indexOf(nextId()));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public PriceTable offHeapLoad() throws Exception {
+        return OffHeapPriceTable.load(file);
+    }
+
+    private String nextId() {
+        String id = ids[next];
+        next = next + 1 == ids.length ? 0 : next + 1;
+        return id;
+    }
+}
@@ -0,0 +1,68 @@
+package pro.misoft.demostripeintegration.web.payment;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.stripe.model.Product;
+import com.stripe.param.checkout.SessionCreateParams;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Request hot path of the checkout endpoints for varying cart sizes: reading the JSON request, totalling the order
+ * and building checkout session line items. Run with the GC profiler (configured in build.gradle) and compare
+ * <code>gc.alloc.rate.norm</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CheckoutBenchmark {
+
+    @Param({"1", "10", "100"})
+    private int cartSize;
+
+    private PaymentRequest request;
+    private PriceTable prices;
+    private final SessionTemplates templates = new SessionTemplates();
+    private byte[] requestJson;
+    private ObjectReader requestReader;
+
+    @Setup
+    public void setUp() throws Exception {
+        prices = new InMemoryProductService().priceTable();
+        List<Product> items = new ArrayList<>(cartSize);
+        for (int i = 0; i < cartSize; i++) {
+            Product product = new Product();
+            product.setId(i % 2 == 0 ? "bookA" : "bookB");
+            product.setName(i % 2 == 0 ? "Book A" : "Book B");
+            items.add(product);
+        }
+        request = new PaymentRequest(items, "John Doe", "john.doe@example.com", null, false);
+
+        // same defaults as the ObjectMapper auto-configured by Spring Boot
+        ObjectMapper objectMapper = Jackson2ObjectMapperBuilder.json().build();
+        requestJson = objectMapper.writeValueAsBytes(request);
+        requestReader = objectMapper.readerFor(PaymentRequest.class);
+    }
+
+    @Benchmark
+    public PaymentRequest paymentRequestJson() throws Exception {
+        return requestReader.readValue(requestJson);
+    }
+
+    @Benchmark
+    public PriceTable.Total orderTotal() {
+        return prices.total(request.items());
+    }
+
+    @Benchmark
+    public SessionCreateParams sessionLineItems() {
+        SessionCreateParams.Builder builder = templates.builder(SessionCreateParams.Mode.SUBSCRIPTION, "https://example.com")
+                .setCustomer("cus_123");
+        templates.addLineItems(request.items(), prices, SessionCreateParams.Mode.SUBSCRIPTION, builder);
+        return builder.build();
+    }
+}
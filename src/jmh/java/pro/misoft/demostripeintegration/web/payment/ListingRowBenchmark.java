@@ -0,0 +1,120 @@
+package pro.misoft.demostripeintegration.web.payment;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.stripe.model.Invoice;
+import com.stripe.model.Price;
+import com.stripe.model.Product;
+import com.stripe.model.Subscription;
+import com.stripe.model.SubscriptionItem;
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigDecimal;
+import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per row cost of mapping Stripe subscriptions and invoices to listing rows: the former <code>HashMap</code> +
+ * <code>SimpleDateFormat</code> + <code>float</code> mapping against the record views.
+ * Run with the GC profiler (configured in build.gradle) and compare <code>gc.alloc.rate.norm</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ListingRowBenchmark {
+
+    private Subscription subscription;
+    private SubscriptionItem item;
+    private Invoice invoice;
+    private ObjectWriter subscriptionWriter;
+    private ObjectWriter invoiceWriter;
+    private ObjectMapper objectMapper;
+
+    @Setup
+    public void setUp() {
+        long now = Instant.now().getEpochSecond();
+
+        Product product = new Product();
+        product.setMetadata(Map.of(ProductIndex.APP_ID, "bookA"));
+        Price price = new Price();
+        price.setCurrency("usd");
+        price.setUnitAmount(2999L);
+        price.setUnitAmountDecimal(BigDecimal.valueOf(2999));
+        price.setProductObject(product);
+        item = new SubscriptionItem();
+        item.setPrice(price);
+
+        subscription = new Subscription();
+        subscription.setId("sub_1PQxyzABCdef");
+        subscription.setStartDate(now - 86_400);
+        subscription.setCurrentPeriodEnd(now + 29 * 86_400);
+        subscription.setTrialEnd(now + 10 * 86_400);
+
+        invoice = new Invoice();
+        invoice.setNumber("A1B2C3-0001");
+        invoice.setTotal(123456789L);
+        invoice.setCurrency("usd");
+        invoice.setInvoicePdf("https://pay.stripe.com/invoice/acct_1/test_1/pdf");
+
+        objectMapper = new ObjectMapper();
+        subscriptionWriter = objectMapper.writerFor(SubscriptionView.class);
+        invoiceWriter = objectMapper.writerFor(InvoiceView.class);
+    }
+
+    @Benchmark
+    public Map<String, String> subscriptionRowLegacy() {
+        Map<String, String> map = new HashMap<>();
+        map.put("appProductId", item.getPrice().getProductObject().getMetadata().get("app_id"));
+        map.put("subscriptionId", subscription.getId());
+        map.put("subscribedOn", new SimpleDateFormat("dd/MM/yyyy").format(new Date(subscription.getStartDate() * 1000)));
+        map.put("nextPaymentDate", new SimpleDateFormat("dd/MM/yyyy").format(new Date(subscription.getCurrentPeriodEnd() * 1000)));
+        map.put("price", item.getPrice().getUnitAmountDecimal().toString());
+        if (subscription.getTrialEnd() != null && new Date(subscription.getTrialEnd() * 1000).after(new Date())) {
+            map.put("trialEndsOn", new SimpleDateFormat("dd/MM/yyyy").format(new Date(subscription.getTrialEnd() * 1000)));
+        }
+        return map;
+    }
+
+    @Benchmark
+    public SubscriptionView subscriptionRow() {
+        return SubscriptionView.of(subscription, item, Instant.now().getEpochSecond());
+    }
+
+    @Benchmark
+    public Map<String, String> invoiceRowLegacy() {
+        Map<String, String> map = new HashMap<>();
+        map.put("number", invoice.getNumber());
+        map.put("amount", String.valueOf((invoice.getTotal() / 100f)));
+        map.put("url", invoice.getInvoicePdf());
+        return map;
+    }
+
+    @Benchmark
+    public InvoiceView invoiceRow() {
+        return InvoiceView.of(invoice);
+    }
+
+    @Benchmark
+    public byte[] subscriptionRowSerializedLegacy() throws Exception {
+        return objectMapper.writeValueAsBytes(subscriptionRowLegacy());
+    }
+
+    @Benchmark
+    public byte[] subscriptionRowSerialized() throws Exception {
+        return subscriptionWriter.writeValueAsBytes(subscriptionRow());
+    }
+
+    @Benchmark
+    public byte[] invoiceRowSerializedLegacy() throws Exception {
+        return objectMapper.writeValueAsBytes(invoiceRowLegacy());
+    }
+
+    @Benchmark
+    public byte[] invoiceRowSerialized() throws Exception {
+        return invoiceWriter.writeValueAsBytes(invoiceRow());
+    }
+}
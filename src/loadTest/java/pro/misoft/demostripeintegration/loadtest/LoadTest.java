@@ -0,0 +1,243 @@
+package pro.misoft.demostripeintegration.loadtest;
+
+import org.HdrHistogram.Histogram;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import pro.misoft.demostripeintegration.DemoStripeIntegrationApplication;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.LongFunction;
+
+/**
+ * Drives every <code>PaymentApi</code> endpoint against the application wired to a {@link StripeStub} and reports
+ * throughput, latency percentiles and Stripe calls per request for each endpoint.
+ * <p>
+ * Endpoints are loaded one after another, each first for the warm up period and then measured, so that Stripe calls
+ * counted by the stub can be attributed to the endpoint. Settings are read from system properties, see
+ * <code>./gradlew loadTest</code> in README. Program arguments are passed to the application, e.g.
+ * <code>--stripe.limits.rate-per-second=1000</code>.
+ */
+public final class LoadTest {
+
+    private static final int BATCH_SIZE = 10;
+    private static final String CUSTOMER_EMAIL = "customer-%d@load.test";
+    private static final String CHECKOUT = """
+            {"items":[{"id":"bookA","name":"Book A"},{"id":"bookB","name":"Book B"}],"customerName":"Load Test","customerEmail":"%s","invoiceNeeded":%b}""";
+
+    private final Settings settings;
+    private final String target;
+    private final long runId = System.currentTimeMillis();
+
+    private LoadTest(Settings settings, String target) {
+        this.settings = settings;
+        this.target = target;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Settings settings = Settings.fromSystemProperties();
+        try (StripeStub stub = StripeStub.start(settings.stubPort(), settings.stubLatency(), settings.stubJitter(), settings.stubListSize())) {
+            for (int i = 0; i < settings.customers(); i++) {
+                stub.seedCustomer(CUSTOMER_EMAIL.formatted(i));
+            }
+            System.out.printf("Stripe stub listening on %s with %s latency and %s jitter%n", stub.baseUri(), settings.stubLatency(), settings.stubJitter());
+
+            ConfigurableApplicationContext app = null;
+            String target = settings.target();
+            if (target == null) {
+                // system properties take precedence over application.properties, program arguments over both
+                System.setProperty("server.port", "0");
+                System.setProperty("stripe.api.base", stub.baseUri());
+                // the ledger scenario reads the ledger, which is off by default
+                System.setProperty("payments.ledger.enabled", "true");
+                System.setProperty("payments.ledger.dir", Files.createTempDirectory("ledger").toAbsolutePath().toString());
+                app = SpringApplication.run(DemoStripeIntegrationApplication.class, args);
+                target = "http://localhost:" + ((WebServerApplicationContext) app).getWebServer().getPort() + "/api";
+            }
+            try {
+                new LoadTest(settings, target).run(stub);
+            } finally {
+                if (app != null) {
+                    app.close();
+                }
+            }
+        }
+    }
+
+    private void run(StripeStub stub) throws IOException {
+        Map<String, LongFunction<HttpRequest>> scenarios = scenarios();
+        OpenLoadGenerator generator = new OpenLoadGenerator(settings.maxInFlight());
+        List<Report> reports = new ArrayList<>();
+        for (Map.Entry<String, LongFunction<HttpRequest>> scenario : scenarios.entrySet()) {
+            if (!settings.scenarios().isEmpty() && !settings.scenarios().contains(scenario.getKey())) {
+                continue;
+            }
+            System.out.printf("Running %s at %.0f requests/s for %s after %s warm up%n", scenario.getKey(), settings.rate(), settings.duration(), settings.warmUp());
+            generator.run(scenario.getKey(), scenario.getValue(), settings.rate(), settings.warmUp());
+            Map<String, Long> before = stub.callCounts();
+            OpenLoadGenerator.Result result = generator.run(scenario.getKey(), scenario.getValue(), settings.rate(), settings.duration());
+            reports.add(new Report(result, diff(before, stub.callCounts())));
+        }
+        print(reports, System.out);
+        writeHistograms(reports);
+    }
+
+    private Map<String, LongFunction<HttpRequest>> scenarios() {
+        Map<String, LongFunction<HttpRequest>> scenarios = new LinkedHashMap<>();
+        scenarios.put("intent", n -> post("/v1/payments", checkout(n, false)));
+        scenarios.put("intent-invoice", n -> post("/v1/payments", checkout(n, true)));
+        scenarios.put("batch", n -> post("/v1/payments/batch", batch(n, BATCH_SIZE)));
+        scenarios.put("hosted", n -> post("/v1/payments/hosted", checkout(n, false)));
+        scenarios.put("subscription", n -> post("/v1/payments/subscriptions", checkout(n, false)));
+        scenarios.put("subscription-trial", n -> post("/v1/payments/subscriptions/trial", checkout(n, false)));
+        scenarios.put("subscription-cancel", n -> request("/v1/payments/subscriptions/sub_" + n).DELETE().build());
+        scenarios.put("subscriptions", n -> get("/v1/payments/subscriptions?customerEmail=" + existingCustomer()));
+        scenarios.put("subscriptions-stream", n -> get("/v1/payments/subscriptions/stream?customerEmail=" + existingCustomer()));
+        scenarios.put("invoices", n -> get("/v1/payments/invoices?customerEmail=" + existingCustomer()));
+        scenarios.put("invoices-stream", n -> get("/v1/payments/invoices/stream?customerEmail=" + existingCustomer()));
+        scenarios.put("ledger", n -> get("/v1/payments/ledger?customerEmail=" + existingCustomer()));
+        return scenarios;
+    }
+
+    private String checkout(long n, boolean invoiceNeeded) {
+        String email = ThreadLocalRandom.current().nextDouble() < settings.newCustomerRatio()
+                ? "new-%d-%d@load.test".formatted(runId, n)
+                : existingCustomer();
+        return CHECKOUT.formatted(email, invoiceNeeded);
+    }
+
+    private String batch(long n, int size) {
+        StringJoiner requests = new StringJoiner(",", "[", "]");
+        for (int i = 0; i < size; i++) {
+            requests.add(checkout(n * size + i, false));
+        }
+        return requests.toString();
+    }
+
+    private String existingCustomer() {
+        return CUSTOMER_EMAIL.formatted(ThreadLocalRandom.current().nextInt(settings.customers()));
+    }
+
+    private HttpRequest post(String path, String json) {
+        return request(path).POST(HttpRequest.BodyPublishers.ofString(json)).build();
+    }
+
+    private HttpRequest get(String path) {
+        return request(path).GET().build();
+    }
+
+    private HttpRequest.Builder request(String path) {
+        // all PaymentApi mappings consume JSON, including GET and DELETE
+        return HttpRequest.newBuilder(URI.create(target + path))
+                .timeout(Duration.ofSeconds(60))
+                .header("Content-Type", "application/json");
+    }
+
+    private static Map<String, Long> diff(Map<String, Long> before, Map<String, Long> after) {
+        Map<String, Long> diff = new LinkedHashMap<>();
+        after.forEach((operation, count) -> {
+            long delta = count - before.getOrDefault(operation, 0L);
+            if (delta > 0) {
+                diff.put(operation, delta);
+            }
+        });
+        return diff;
+    }
+
+    private static void print(List<Report> reports, PrintStream out) {
+        out.println();
+        out.printf("%-21s %9s %8s %7s %7s %9s %9s %9s %9s %9s %11s%n",
+                "endpoint", "req/s", "ok", "failed", "dropped", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms", "stripe/req");
+        for (Report report : reports) {
+            OpenLoadGenerator.Result result = report.result();
+            Histogram latency = result.latencyMicros();
+            out.printf("%-21s %9.1f %8d %7d %7d %9.1f %9.1f %9.1f %9.1f %9.1f %11.2f%n",
+                    result.name(), result.throughput(), result.succeeded(), result.failed(), result.dropped(),
+                    millis(latency, 50), millis(latency, 90), millis(latency, 99), millis(latency, 99.9),
+                    latency.getMaxValue() / 1000.0, report.stripeCallsPerRequest());
+        }
+        out.println();
+        for (Report report : reports) {
+            StringBuilder calls = new StringBuilder();
+            report.stripeCalls().forEach((operation, count) ->
+                    calls.append("  %s=%.2f".formatted(operation, (double) count / Math.max(1, report.result().completed()))));
+            out.printf("%-21s%s%n", report.result().name(), calls);
+        }
+    }
+
+    private void writeHistograms(List<Report> reports) throws IOException {
+        Path dir = Files.createDirectories(settings.reportDir());
+        for (Report report : reports) {
+            Path file = dir.resolve(report.result().name() + ".hgrm");
+            try (PrintStream out = new PrintStream(Files.newOutputStream(file))) {
+                // HdrHistogram plotter format, values in milliseconds
+                report.result().latencyMicros().outputPercentileDistribution(out, 1000.0);
+            }
+        }
+        System.out.printf("%nLatency distributions written to %s%n", dir.toAbsolutePath());
+    }
+
+    private static double millis(Histogram histogram, double percentile) {
+        return histogram.getValueAtPercentile(percentile) / 1000.0;
+    }
+
+    private record Report(OpenLoadGenerator.Result result, Map<String, Long> stripeCalls) {
+
+        double stripeCallsPerRequest() {
+            long total = stripeCalls.values().stream().mapToLong(Long::longValue).sum();
+            return (double) total / Math.max(1, result.completed());
+        }
+    }
+
+    private record Settings(
+            String target,
+            double rate,
+            Duration duration,
+            Duration warmUp,
+            int maxInFlight,
+            List<String> scenarios,
+            int customers,
+            double newCustomerRatio,
+            Path reportDir,
+            int stubPort,
+            Duration stubLatency,
+            Duration stubJitter,
+            int stubListSize) {
+
+        static Settings fromSystemProperties() {
+            String scenarios = System.getProperty("load.scenarios", "");
+            return new Settings(
+                    System.getProperty("load.target"),
+                    Double.parseDouble(System.getProperty("load.rate", "50")),
+                    duration("load.duration", "30s"),
+                    duration("load.warm-up", "10s"),
+                    Integer.getInteger("load.max-in-flight", 5000),
+                    scenarios.isBlank() ? List.of() : Arrays.stream(scenarios.split(",")).map(String::trim).toList(),
+                    Integer.getInteger("load.customers", 1000),
+                    Double.parseDouble(System.getProperty("load.new-customer-ratio", "0.1")),
+                    Path.of(System.getProperty("load.report-dir", "build/loadtest")),
+                    Integer.getInteger("stub.port", 0),
+                    duration("stub.latency", "80ms"),
+                    duration("stub.jitter", "40ms"),
+                    Integer.getInteger("stub.list-size", 10));
+        }
+
+        private static Duration duration(String property, String defaultValue) {
+            return DurationStyle.detectAndParse(System.getProperty(property, defaultValue));
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package pro.misoft.demostripeintegration.loadtest;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongFunction;
+
+/**
+ * Open model load generator: requests are started at a fixed arrival rate regardless of how many are still running,
+ * each on its own virtual thread.
+ * <p>
+ * Latency is measured from the intended start of a request, not from the moment it was actually sent, so a
+ * stalled generator or server does not hide queueing delay (coordinated omission). Arrivals beyond
+ * <code>maxInFlight</code> running requests are dropped and reported, the system is saturated at that point.
+ */
+final class OpenLoadGenerator {
+
+    private final HttpClient client;
+    private final int maxInFlight;
+
+    OpenLoadGenerator(int maxInFlight) {
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(5))
+                .executor(Executors.newVirtualThreadPerTaskExecutor())
+                .build();
+        this.maxInFlight = maxInFlight;
+    }
+
+    record Result(String name, Histogram latencyMicros, long succeeded, long failed, long dropped, long elapsedNanos) {
+
+        long completed() {
+            return succeeded + failed;
+        }
+
+        double throughput() {
+            return completed() / (elapsedNanos / 1e9);
+        }
+    }
+
+    /**
+     * Runs the requests at the given rate and returns when all started requests have completed.
+     *
+     * @param requests builds the n-th request of the run
+     */
+    Result run(String name, LongFunction<HttpRequest> requests, double ratePerSecond, Duration duration) {
+        Recorder recorder = new Recorder(3);
+        LongAdder succeeded = new LongAdder();
+        LongAdder failed = new LongAdder();
+        long dropped = 0;
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond);
+        long arrivals = duration.toNanos() / intervalNanos;
+
+        long start = System.nanoTime();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (long n = 0; n < arrivals; n++) {
+                long intendedStart = start + n * intervalNanos;
+                for (long wait = intendedStart - System.nanoTime(); wait > 0; wait = intendedStart - System.nanoTime()) {
+                    LockSupport.parkNanos(wait);
+                }
+                if (!inFlight.tryAcquire()) {
+                    dropped++;
+                    continue;
+                }
+                HttpRequest request = requests.apply(n);
+                executor.execute(() -> {
+                    try {
+                        HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+                        (response.statusCode() < 400 ? succeeded : failed).increment();
+                    } catch (IOException e) {
+                        failed.increment();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        failed.increment();
+                    } finally {
+                        recorder.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - intendedStart));
+                        inFlight.release();
+                    }
+                });
+            }
+        }
+        return new Result(name, recorder.getIntervalHistogram(), succeeded.sum(), failed.sum(), dropped, System.nanoTime() - start);
+    }
+}
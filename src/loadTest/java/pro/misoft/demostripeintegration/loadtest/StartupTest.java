@@ -0,0 +1,263 @@
+package pro.misoft.demostripeintegration.loadtest;
+
+import org.springframework.boot.convert.DurationStyle;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+import java.util.stream.Stream;
+
+/**
+ * Starts the boot jar repeatedly as a separate JVM and reports the time until it is ready to take traffic and its
+ * resident memory at that point, for the plain jar and for the extracted jar with the AOT-generated context and a
+ * class data sharing archive, as run by the Dockerfile.
+ * <p>
+ * The application runs against a {@link StripeStub}, so startup includes the Stripe connection and product index
+ * warm ups but not the latency of the real API. It is ready once its readiness probe answers. Settings are read from
+ * system properties, see <code>./gradlew startupTest</code> in README. The run fails if the median startup time of
+ * a mode exceeds <code>startup.max-time</code>.
+ */
+public final class StartupTest {
+
+    private static final Duration READY_TIMEOUT = Duration.ofMinutes(2);
+    private static final Duration POLL_INTERVAL = Duration.ofMillis(20);
+
+    private final Settings settings;
+    private final String java = ProcessHandle.current().info().command().orElse("java");
+    private final HttpClient client = HttpClient.newHttpClient();
+    private final String stripeApiBase;
+
+    private StartupTest(Settings settings, String stripeApiBase) {
+        this.settings = settings;
+        this.stripeApiBase = stripeApiBase;
+    }
+
+    private enum Mode {
+        JAR("jar"), CDS_AOT("cds-aot");
+
+        private final String label;
+
+        Mode(String label) {
+            this.label = label;
+        }
+
+        static Mode of(String label) {
+            return Arrays.stream(values()).filter(mode -> mode.label.equals(label)).findFirst()
+                    .orElseThrow(() -> new IllegalArgumentException("Unknown startup mode [%s]".formatted(label)));
+        }
+    }
+
+    private record Run(long readyMillis, long rssKb) {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Settings settings = Settings.fromSystemProperties();
+        try (StripeStub stub = StripeStub.start(0, Duration.ZERO, Duration.ZERO, 0)) {
+            boolean passed = new StartupTest(settings, stub.baseUri()).run();
+            if (!passed) {
+                System.exit(1);
+            }
+        }
+    }
+
+    private boolean run() throws IOException, InterruptedException {
+        Path dir = Files.createDirectories(settings.reportDir());
+        if (settings.modes().contains(Mode.CDS_AOT)) {
+            prepareCdsArchive(dir);
+        }
+
+        boolean passed = true;
+        try (PrintStream report = new PrintStream(Files.newOutputStream(dir.resolve("startup.txt")), true)) {
+            for (Mode mode : settings.modes()) {
+                List<Run> runs = new ArrayList<>(settings.runs());
+                for (int i = 0; i < settings.runs(); i++) {
+                    runs.add(start(mode, dir, i));
+                }
+                long medianMillis = median(runs, Run::readyMillis);
+                String line = "%-8s ready in %5d ms (min %d, max %d), RSS %s over %d runs".formatted(mode.label, medianMillis,
+                        runs.stream().mapToLong(Run::readyMillis).min().orElseThrow(),
+                        runs.stream().mapToLong(Run::readyMillis).max().orElseThrow(),
+                        rss(median(runs, Run::rssKb)), runs.size());
+                System.out.println(line);
+                report.println(line);
+                if (settings.maxTime() != null && medianMillis > settings.maxTime().toMillis()) {
+                    System.out.printf("%s startup exceeds startup.max-time of %d ms%n", mode.label, settings.maxTime().toMillis());
+                    passed = false;
+                }
+            }
+        }
+        return passed;
+    }
+
+    /**
+     * Extracts the jar and records the classes loaded until the context is refreshed, like the Dockerfile.
+     */
+    private void prepareCdsArchive(Path dir) throws IOException, InterruptedException {
+        Path extracted = dir.resolve("application");
+        deleteRecursively(extracted);
+        exec(dir.resolve("extract.log"), java, "-Djarmode=tools", "-jar", settings.jar().toAbsolutePath().toString(),
+                "extract", "--destination", extracted.toAbsolutePath().toString());
+        exec(dir.resolve("training.log"), command(Mode.CDS_AOT, dir, List.of("-XX:ArchiveClassesAtExit=" + archive(dir), "-Dspring.context.exit=onRefresh"),
+                "--server.port=0"));
+        System.out.printf("Recorded CDS archive %s of %d KB%n", archive(dir), Files.size(archive(dir)) / 1024);
+    }
+
+    private Run start(Mode mode, Path dir, int run) throws IOException, InterruptedException {
+        int port = freePort();
+        List<String> command = command(mode, dir, mode == Mode.CDS_AOT ? List.of("-XX:SharedArchiveFile=" + archive(dir)) : List.of(),
+                "--server.port=" + port);
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(command).directory(dir.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(dir.resolve("%s-%d.log".formatted(mode.label, run)).toFile())
+                .start();
+        try {
+            awaitReady(process, port);
+            long readyMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            return new Run(readyMillis, rssKb(process.pid()));
+        } finally {
+            process.destroy();
+            if (!process.waitFor(30, TimeUnit.SECONDS)) {
+                process.destroyForcibly().waitFor();
+            }
+        }
+    }
+
+    private List<String> command(Mode mode, Path dir, List<String> jvmOptions, String... appArgs) {
+        List<String> command = new ArrayList<>(List.of(java));
+        command.addAll(jvmOptions);
+        if (mode == Mode.CDS_AOT) {
+            command.add("-Dspring.aot.enabled=true");
+        }
+        String jar = mode == Mode.CDS_AOT ? extractedJar(dir).toString() : settings.jar().toAbsolutePath().toString();
+        command.addAll(List.of("-jar", jar,
+                "--stripe.api.base=" + stripeApiBase,
+                "--management.endpoint.health.probes.enabled=true"));
+        command.addAll(List.of(appArgs));
+        command.addAll(settings.appArgs());
+        return command;
+    }
+
+    private void awaitReady(Process process, int port) throws IOException, InterruptedException {
+        HttpRequest readiness = HttpRequest.newBuilder(URI.create("http://localhost:%d/api/internal/actuator/health/readiness".formatted(port)))
+                .timeout(Duration.ofSeconds(1))
+                .build();
+        long deadline = System.nanoTime() + READY_TIMEOUT.toNanos();
+        while (System.nanoTime() - deadline < 0) {
+            if (!process.isAlive()) {
+                throw new IllegalStateException("Application exited with %d before it was ready".formatted(process.exitValue()));
+            }
+            try {
+                if (client.send(readiness, HttpResponse.BodyHandlers.discarding()).statusCode() == 200) {
+                    return;
+                }
+            } catch (IOException e) {
+                // not listening yet
+            }
+            Thread.sleep(POLL_INTERVAL);
+        }
+        throw new IllegalStateException("Application not ready within " + READY_TIMEOUT);
+    }
+
+    /**
+     * @return resident set size from procfs, or -1 where it is not available
+     */
+    private static long rssKb(long pid) throws IOException {
+        Path status = Path.of("/proc/%d/status".formatted(pid));
+        if (!Files.isReadable(status)) {
+            return -1;
+        }
+        for (String line : Files.readAllLines(status)) {
+            if (line.startsWith("VmRSS:")) {
+                return Long.parseLong(line.substring("VmRSS:".length()).replace("kB", "").trim());
+            }
+        }
+        return -1;
+    }
+
+    private static String rss(long kb) {
+        return kb < 0 ? "n/a" : "%d MB".formatted(kb / 1024);
+    }
+
+    private static long median(List<Run> runs, ToLongFunction<Run> value) {
+        long[] values = runs.stream().mapToLong(value).sorted().toArray();
+        return values[values.length / 2];
+    }
+
+    private static void exec(Path log, String... command) throws IOException, InterruptedException {
+        exec(log, List.of(command));
+    }
+
+    private static void exec(Path log, List<String> command) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(command).directory(log.getParent().toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(log.toFile())
+                .start();
+        int exitCode = process.waitFor();
+        if (exitCode != 0) {
+            throw new IllegalStateException("%s exited with %d, see %s".formatted(String.join(" ", command), exitCode, log));
+        }
+    }
+
+    private Path extractedJar(Path dir) {
+        return dir.resolve("application").resolve(settings.jar().getFileName()).toAbsolutePath();
+    }
+
+    private static Path archive(Path dir) {
+        return dir.resolve("application.jsa").toAbsolutePath();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(path)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> {
+                try {
+                    Files.delete(file);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+    }
+
+    private record Settings(Path jar, List<Mode> modes, int runs, Duration maxTime, Path reportDir, List<String> appArgs) {
+
+        static Settings fromSystemProperties() {
+            String jar = System.getProperty("startup.jar");
+            if (jar == null) {
+                throw new IllegalArgumentException("startup.jar is not set, run ./gradlew startupTest");
+            }
+            String maxTime = System.getProperty("startup.max-time");
+            String appArgs = System.getProperty("startup.args", "");
+            return new Settings(
+                    Path.of(jar),
+                    Arrays.stream(System.getProperty("startup.modes", "jar,cds-aot").split(",")).map(String::trim).map(Mode::of).toList(),
+                    Integer.getInteger("startup.runs", 5),
+                    maxTime == null ? null : DurationStyle.detectAndParse(maxTime),
+                    Path.of(System.getProperty("startup.report-dir", "build/startup")),
+                    appArgs.isBlank() ? List.of() : Arrays.asList(appArgs.trim().split("\\s+")));
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package pro.misoft.demostripeintegration.loadtest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Local stand-in for the parts of the Stripe API used by the application. Every response is delayed by
+ * <code>latency</code> plus a uniformly distributed <code>jitter</code> to simulate the network and Stripe's own
+ * processing time.
+ * <p>
+ * Customers are kept in memory so that search finds customers created before, everything else is generated on the
+ * fly. Served calls are counted per operation, e.g. <code>POST /v1/invoices/{id}/finalize</code>.
+ */
+final class StripeStub implements AutoCloseable {
+
+    private static final Pattern ID_SEGMENT = Pattern.compile("/[a-z]+_[A-Za-z0-9]+");
+    private static final Pattern SEARCH_VALUE = Pattern.compile(":'([^']*)'");
+    private static final long CREATED = Instant.parse("2024-01-01T00:00:00Z").getEpochSecond();
+    private static final long MONTH = Duration.ofDays(30).toSeconds();
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final long latencyNanos;
+    private final long jitterNanos;
+    private final int listSize;
+    private final AtomicLong ids = new AtomicLong();
+    private final Map<String, String> customerIdsByEmail = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> calls = new ConcurrentHashMap<>();
+
+    private StripeStub(HttpServer server, Duration latency, Duration jitter, int listSize) {
+        this.server = server;
+        this.latencyNanos = latency.toNanos();
+        this.jitterNanos = jitter.toNanos();
+        this.listSize = listSize;
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    /**
+     * @param port     0 for any free port
+     * @param listSize number of subscriptions and invoices returned by list calls
+     */
+    static StripeStub start(int port, Duration latency, Duration jitter, int listSize) throws IOException {
+        return new StripeStub(HttpServer.create(new InetSocketAddress("localhost", port), 1024), latency, jitter, listSize);
+    }
+
+    String baseUri() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    void seedCustomer(String email) {
+        customerIdsByEmail.computeIfAbsent(email, e -> nextId("cus"));
+    }
+
+    /**
+     * @return snapshot of served calls per operation
+     */
+    Map<String, Long> callCounts() {
+        Map<String, Long> snapshot = new TreeMap<>();
+        calls.forEach((operation, count) -> snapshot.put(operation, count.sum()));
+        return snapshot;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.close();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String method = exchange.getRequestMethod();
+            String path = exchange.getRequestURI().getPath();
+            Map<String, String> params = parseForm(exchange.getRequestURI().getRawQuery());
+            params.putAll(parseForm(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8)));
+            calls.computeIfAbsent(method + " " + ID_SEGMENT.matcher(path).replaceAll("/{id}"), k -> new LongAdder()).increment();
+
+            simulateLatency();
+            String body = respond(method, path, params);
+            byte[] bytes = (body == null ? "{\"error\":{\"type\":\"invalid_request_error\",\"message\":\"Unrecognized request URL\"}}" : body)
+                    .getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.getResponseHeaders().add("Request-Id", "req_" + ids.incrementAndGet());
+            exchange.sendResponseHeaders(body == null ? 404 : 200, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+    }
+
+    private void simulateLatency() {
+        long delay = latencyNanos + (jitterNanos > 0 ? ThreadLocalRandom.current().nextLong(jitterNanos) : 0);
+        if (delay > 0) {
+            try {
+                Thread.sleep(Duration.ofNanos(delay));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private String respond(String method, String path, Map<String, String> params) {
+        String[] segments = path.substring(1).split("/");
+        String resource = segments.length > 1 ? segments[1] : "";
+        String id = segments.length > 2 ? segments[2] : null;
+        return switch (method + " " + resource) {
+            case "GET customers" -> searchCustomers(params.get("query"));
+            case "POST customers" -> customer(customerIdsByEmail.computeIfAbsent(params.get("email"), e -> nextId("cus")), params.get("email"));
+            case "GET products" -> "search".equals(id) ? searchProducts(params.get("query")) : list("/v1/products", "");
+            case "POST products" -> product(nextId("prod"), params.get("metadata[app_id]"));
+            case "POST payment_intents" -> paymentIntent(nextId("pi"));
+            case "GET payment_intents" -> paymentIntent(id);
+            case "POST invoices" -> id == null ? invoice(nextId("in"), params.get("customer"), "draft") : invoice(id, null, "open");
+            case "GET invoices" -> listInvoices(params.get("customer"));
+            case "DELETE invoices" -> deleted(id, "invoice");
+            case "POST invoiceitems" -> invoiceItem(nextId("ii"), params.get("invoice"));
+            case "POST checkout" -> checkoutSession(nextId("cs"));
+            case "GET subscriptions" -> id == null ? listSubscriptions(params.get("customer")) : subscription(id, "active");
+            case "DELETE subscriptions" -> subscription(id, "canceled");
+            case "GET subscription_items" -> listSubscriptionItems(params.get("subscription"));
+            default -> null;
+        };
+    }
+
+    private String searchCustomers(String query) {
+        String email = searchValue(query);
+        String id = email == null ? null : customerIdsByEmail.get(email);
+        return searchResult(id == null ? "" : customer(id, email));
+    }
+
+    private String searchProducts(String query) {
+        String appId = searchValue(query);
+        return searchResult(appId == null ? "" : product("prod_" + appId, appId));
+    }
+
+    private String listInvoices(String customerId) {
+        StringJoiner data = new StringJoiner(",");
+        for (int i = 0; i < listSize; i++) {
+            data.add(invoice("in_" + customerId.substring(4) + i, customerId, "paid"));
+        }
+        return list("/v1/invoices", data.toString());
+    }
+
+    private String listSubscriptions(String customerId) {
+        StringJoiner data = new StringJoiner(",");
+        for (int i = 0; i < listSize; i++) {
+            data.add(subscription("sub_" + customerId.substring(4) + i, "active"));
+        }
+        return list("/v1/subscriptions", data.toString());
+    }
+
+    private String listSubscriptionItems(String subscriptionId) {
+        String appId = ThreadLocalRandom.current().nextBoolean() ? "bookA" : "bookB";
+        return list("/v1/subscription_items", """
+                {"id":"si_%s","object":"subscription_item","subscription":"%s","quantity":1,
+                 "price":{"id":"price_%s","object":"price","currency":"usd","unit_amount":2999,"product":%s}}"""
+                .formatted(subscriptionId.substring(4), subscriptionId, appId, product("prod_" + appId, appId)));
+    }
+
+    private static String customer(String id, String email) {
+        return """
+                {"id":"%s","object":"customer","email":"%s","name":"Load Test","created":%d}"""
+                .formatted(id, email, CREATED);
+    }
+
+    private static String product(String id, String appId) {
+        return """
+                {"id":"%s","object":"product","name":"%s","active":true,"metadata":{"app_id":"%s"}}"""
+                .formatted(id, appId, appId);
+    }
+
+    private static String paymentIntent(String id) {
+        return """
+                {"id":"%s","object":"payment_intent","amount":2999,"currency":"usd","status":"requires_payment_method","client_secret":"%s_secret_stub"}"""
+                .formatted(id, id);
+    }
+
+    private String invoice(String id, String customerId, String status) {
+        String paymentIntent = "draft".equals(status) ? "null" : "\"pi_" + id.substring(id.indexOf('_') + 1) + "\"";
+        return """
+                {"id":"%s","object":"invoice","customer":%s,"status":"%s","number":"%s","currency":"usd","total":2999,
+                 "invoice_pdf":"https://pay.stripe.test/invoice/%s/pdf","payment_intent":%s}"""
+                .formatted(id, customerId == null ? "null" : "\"" + customerId + "\"", status, id.toUpperCase(), id, paymentIntent);
+    }
+
+    private static String deleted(String id, String object) {
+        return """
+                {"id":"%s","object":"%s","deleted":true}""".formatted(id, object);
+    }
+
+    private static String invoiceItem(String id, String invoiceId) {
+        return """
+                {"id":"%s","object":"invoiceitem","invoice":"%s","amount":2999,"currency":"usd","quantity":1}"""
+                .formatted(id, invoiceId);
+    }
+
+    private static String checkoutSession(String id) {
+        return """
+                {"id":"%s","object":"checkout.session","status":"open","url":"https://checkout.stripe.test/c/pay/%s"}"""
+                .formatted(id, id);
+    }
+
+    private static String subscription(String id, String status) {
+        return """
+                {"id":"%s","object":"subscription","status":"%s","start_date":%d,"current_period_end":%d}"""
+                .formatted(id, status, CREATED, CREATED + MONTH);
+    }
+
+    private static String searchResult(String data) {
+        return """
+                {"object":"search_result","data":[%s],"has_more":false,"next_page":null}""".formatted(data);
+    }
+
+    private static String list(String url, String data) {
+        return """
+                {"object":"list","url":"%s","data":[%s],"has_more":false}""".formatted(url, data);
+    }
+
+    private String nextId(String prefix) {
+        return prefix + "_" + ids.incrementAndGet();
+    }
+
+    private static String searchValue(String query) {
+        if (query == null) {
+            return null;
+        }
+        Matcher matcher = SEARCH_VALUE.matcher(query);
+        return matcher.find() ? matcher.group(1) : null;
+    }
+
+    private static Map<String, String> parseForm(String form) {
+        Map<String, String> params = new HashMap<>();
+        if (form == null || form.isEmpty()) {
+            return params;
+        }
+        for (String pair : form.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8), URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return params;
+    }
+}
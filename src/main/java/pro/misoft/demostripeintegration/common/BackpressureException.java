@@ -0,0 +1,12 @@
+package pro.misoft.demostripeintegration.common;
+
+/**
+ * Thrown when the service sheds load instead of queueing work it cannot take right now.
+ * Translated to <code>503 Service Unavailable</code> so that clients retry later.
+ */
+public class BackpressureException extends RuntimeException {
+
+    public BackpressureException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,194 @@
+package pro.misoft.demostripeintegration.common;
+
+import io.micrometer.context.ContextSnapshot;
+import io.micrometer.context.ContextSnapshotFactory;
+import org.slf4j.MDC;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Fans out independent blocking calls (typically remote calls) to virtual threads.
+ * <p>
+ * Works like a structured task scope: all calls share one deadline, a timeout cancels (interrupts) every call still
+ * running, and the methods never return before all forked threads have finished. {@link #map} follows the
+ * "shutdown on failure" policy, {@link #forEach} reports every outcome and lets the other calls continue.
+ * MDC context and the current observation (and so the trace span) of the caller are propagated to the forked threads.
+ */
+public final class ConcurrentCalls {
+
+    private static final ContextSnapshotFactory SNAPSHOTS = ContextSnapshotFactory.builder().build();
+
+    private ConcurrentCalls() {
+    }
+
+    @FunctionalInterface
+    public interface Call<T, R> {
+        R apply(T input) throws Exception;
+    }
+
+    @FunctionalInterface
+    public interface Outcome<R> {
+        /**
+         * @param index   index of the input
+         * @param result  result of the call, null if it failed
+         * @param failure exception thrown by the call or a {@link TimeoutException}, null if it succeeded
+         */
+        void accept(int index, R result, Exception failure) throws Exception;
+    }
+
+    /**
+     * Applies the call to every input with at most <code>maxConcurrency</code> calls running at once.
+     *
+     * @return results in the order of inputs
+     * @throws TimeoutException if not all calls completed within the deadline
+     * @throws Exception        the first exception thrown by any of the calls
+     */
+    public static <T, R> List<R> map(List<T> inputs, int maxConcurrency, Duration deadline, Call<T, R> call) throws Exception {
+        if (inputs.isEmpty()) {
+            return List.of();
+        }
+        if (inputs.size() == 1) {
+            return Collections.singletonList(call.apply(inputs.getFirst()));
+        }
+        long deadlineNanos = System.nanoTime() + deadline.toNanos();
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            CompletionService<Indexed<R>> completion = new ExecutorCompletionService<>(executor);
+            List<Future<Indexed<R>>> futures = submitAll(inputs, maxConcurrency, call, completion);
+
+            Object[] results = new Object[inputs.size()];
+            try {
+                for (int done = 0; done < results.length; done++) {
+                    Future<Indexed<R>> next = completion.poll(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        throw new TimeoutException("%d of %d concurrent calls did not complete within %s".formatted(results.length - done, results.length, deadline));
+                    }
+                    Indexed<R> result = next.get();
+                    if (result.failure() != null) {
+                        cancelAll(futures);
+                        throw result.failure();
+                    }
+                    results[result.index()] = result.value();
+                }
+            } catch (ExecutionException e) {
+                cancelAll(futures);
+                throw unwrap(e);
+            } catch (TimeoutException | InterruptedException e) {
+                cancelAll(futures);
+                throw e;
+            }
+            @SuppressWarnings("unchecked")
+            List<R> ordered = (List<R>) Arrays.asList(results);
+            return ordered;
+        }
+    }
+
+    /**
+     * Applies the call to every input with at most <code>maxConcurrency</code> calls running at once and passes every
+     * outcome to <code>outcome</code> on the calling thread, in order of completion. A failed call does not affect the
+     * others. Calls not completed within the deadline are cancelled and reported with a {@link TimeoutException}.
+     *
+     * @throws Exception the exception thrown by <code>outcome</code>, which cancels all calls still running
+     */
+    public static <T, R> void forEach(List<T> inputs, int maxConcurrency, Duration deadline, Call<T, R> call, Outcome<R> outcome) throws Exception {
+        if (inputs.isEmpty()) {
+            return;
+        }
+        long deadlineNanos = System.nanoTime() + deadline.toNanos();
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            CompletionService<Indexed<R>> completion = new ExecutorCompletionService<>(executor);
+            List<Future<Indexed<R>>> futures = submitAll(inputs, maxConcurrency, call, completion);
+
+            boolean[] reported = new boolean[inputs.size()];
+            try {
+                for (int done = 0; done < reported.length; done++) {
+                    Future<Indexed<R>> next = completion.poll(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        cancelAll(futures);
+                        TimeoutException timeout = new TimeoutException("%d of %d concurrent calls did not complete within %s".formatted(reported.length - done, reported.length, deadline));
+                        for (int i = 0; i < reported.length; i++) {
+                            if (!reported[i]) {
+                                outcome.accept(i, null, timeout);
+                            }
+                        }
+                        return;
+                    }
+                    Indexed<R> result = next.get();
+                    reported[result.index()] = true;
+                    outcome.accept(result.index(), result.value(), result.failure());
+                }
+            } catch (ExecutionException e) {
+                cancelAll(futures);
+                throw unwrap(e);
+            } catch (Exception e) {
+                cancelAll(futures);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Submits one task per input. Tasks wait for one of <code>maxConcurrency</code> permits and catch exceptions of
+     * the call, so that the failed input can be identified.
+     */
+    private static <T, R> List<Future<Indexed<R>>> submitAll(List<T> inputs, int maxConcurrency, Call<T, R> call, CompletionService<Indexed<R>> completion) {
+        Semaphore permits = new Semaphore(maxConcurrency);
+        Map<String, String> contextMap = MDC.getCopyOfContextMap();
+        ContextSnapshot context = SNAPSHOTS.captureAll();
+
+        List<Future<Indexed<R>>> futures = new ArrayList<>(inputs.size());
+        for (int i = 0; i < inputs.size(); i++) {
+            int index = i;
+            T input = inputs.get(i);
+            futures.add(completion.submit(() -> {
+                permits.acquire();
+                try (ContextSnapshot.Scope scope = context.setThreadLocals()) {
+                    if (contextMap != null) {
+                        MDC.setContextMap(contextMap);
+                    }
+                    return new Indexed<>(index, call.apply(input), null);
+                } catch (Exception e) {
+                    return new Indexed<>(index, null, e);
+                } finally {
+                    MDC.clear();
+                    permits.release();
+                }
+            }));
+        }
+        return futures;
+    }
+
+    private static void cancelAll(List<? extends Future<?>> futures) {
+        for (Future<?> future : futures) {
+            future.cancel(true);
+        }
+    }
+
+    private static Exception unwrap(ExecutionException e) {
+        if (e.getCause() instanceof Exception cause) {
+            return cause;
+        }
+        if (e.getCause() instanceof Error error) {
+            throw error;
+        }
+        return e;
+    }
+
+    private record Indexed<R>(int index, R value, Exception failure) {
+    }
+}
@@ -0,0 +1,39 @@
+package pro.misoft.demostripeintegration.common;
+
+import io.micrometer.context.ContextSnapshot;
+import io.micrometer.context.ContextSnapshotFactory;
+import org.slf4j.MDC;
+
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks on the delegate with the MDC context and the current observation (and so the trace span) of the thread
+ * submitting the task, the same way {@link ConcurrentCalls} does for its forked calls.
+ */
+public final class ContextPropagatingExecutor implements Executor {
+
+    private static final ContextSnapshotFactory SNAPSHOTS = ContextSnapshotFactory.builder().build();
+
+    private final Executor delegate;
+
+    public ContextPropagatingExecutor(Executor delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        Map<String, String> contextMap = MDC.getCopyOfContextMap();
+        ContextSnapshot context = SNAPSHOTS.captureAll();
+        delegate.execute(() -> {
+            try (ContextSnapshot.Scope scope = context.setThreadLocals()) {
+                if (contextMap != null) {
+                    MDC.setContextMap(contextMap);
+                }
+                task.run();
+            } finally {
+                MDC.clear();
+            }
+        });
+    }
+}
@@ -0,0 +1,88 @@
+package pro.misoft.demostripeintegration.common;
+
+import io.micrometer.context.ContextRegistry;
+
+import java.time.Duration;
+
+/**
+ * Time budget of the request being served, set by <code>RequestDeadlineFilter</code> for the thread serving the request.
+ * <p>
+ * The current deadline is registered with the Micrometer {@link ContextRegistry}, so that it is propagated together
+ * with the observation to threads forked by {@link ConcurrentCalls} and {@link ContextPropagatingExecutor}.
+ */
+public final class Deadline {
+
+    private static final ThreadLocal<Deadline> current = new ThreadLocal<>();
+
+    static {
+        ContextRegistry.getInstance().registerThreadLocalAccessor(Deadline.class.getName(), current::get, current::set, current::remove);
+    }
+
+    private final long deadlineNanos;
+    private final Duration budget;
+
+    private Deadline(long deadlineNanos, Duration budget) {
+        this.deadlineNanos = deadlineNanos;
+        this.budget = budget;
+    }
+
+    public static Deadline after(Duration budget) {
+        return new Deadline(System.nanoTime() + budget.toNanos(), budget);
+    }
+
+    /**
+     * @return deadline of the current request, null outside of a request
+     */
+    public static Deadline current() {
+        return current.get();
+    }
+
+    /**
+     * Makes this the deadline of the current thread until the returned scope is closed.
+     */
+    public Scope open() {
+        Deadline previous = current.get();
+        current.set(this);
+        return () -> {
+            if (previous == null) {
+                current.remove();
+            } else {
+                current.set(previous);
+            }
+        };
+    }
+
+    public boolean isExpired() {
+        return deadlineNanos - System.nanoTime() <= 0;
+    }
+
+    /**
+     * @return time left until the deadline, zero or negative once it passed
+     */
+    public Duration remaining() {
+        return Duration.ofNanos(deadlineNanos - System.nanoTime());
+    }
+
+    /**
+     * @return the given timeout, shortened to the time left if the current request has a closer deadline
+     */
+    public static Duration cap(Duration timeout) {
+        Deadline deadline = current.get();
+        if (deadline == null) {
+            return timeout;
+        }
+        Duration remaining = deadline.remaining();
+        return remaining.compareTo(timeout) < 0 ? remaining : timeout;
+    }
+
+    @Override
+    public String toString() {
+        return "deadline of " + budget;
+    }
+
+    @FunctionalInterface
+    public interface Scope extends AutoCloseable {
+        @Override
+        void close();
+    }
+}
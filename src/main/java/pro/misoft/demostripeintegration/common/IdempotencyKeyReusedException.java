@@ -0,0 +1,12 @@
+package pro.misoft.demostripeintegration.common;
+
+/**
+ * Thrown when an idempotency key is sent again with a different request, e.g. another cart or another customer.
+ * Translated to <code>422 Unprocessable Entity</code> instead of replaying the result of the first request.
+ */
+public class IdempotencyKeyReusedException extends RuntimeException {
+
+    public IdempotencyKeyReusedException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,47 @@
+package pro.misoft.demostripeintegration.common;
+
+import java.util.Currency;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Exact formatting of amounts given in currency minor units (as Stripe returns them) to plain decimal strings,
+ * e.g. <code>2999 usd</code> to <code>29.99</code> and <code>500 jpy</code> to <code>500</code>.
+ */
+public final class Money {
+
+    private static final long[] POWERS_OF_TEN = {1L, 10L, 100L, 1_000L, 10_000L};
+    private static final Map<String, Integer> fractionDigits = new ConcurrentHashMap<>();
+
+    private Money() {
+    }
+
+    public static String format(long minorUnits, String currency) {
+        int digits = fractionDigits(currency);
+        if (digits == 0) {
+            return Long.toString(minorUnits);
+        }
+        long scale = POWERS_OF_TEN[digits];
+        long units = Math.abs(minorUnits / scale);
+        long fraction = Math.abs(minorUnits % scale);
+
+        StringBuilder sb = new StringBuilder(24);
+        if (minorUnits < 0) {
+            sb.append('-');
+        }
+        sb.append(units).append('.');
+        for (long p = scale / 10; p > 1 && fraction < p; p /= 10) {
+            sb.append('0');
+        }
+        return sb.append(fraction).toString();
+    }
+
+    private static int fractionDigits(String currency) {
+        return fractionDigits.computeIfAbsent(currency, code -> {
+            int digits = Currency.getInstance(code.toUpperCase(Locale.ROOT)).getDefaultFractionDigits();
+            // pseudo currencies like XAU report -1
+            return digits < 0 ? 0 : Math.min(digits, POWERS_OF_TEN.length - 1);
+        });
+    }
+}
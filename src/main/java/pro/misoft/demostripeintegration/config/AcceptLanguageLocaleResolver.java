@@ -0,0 +1,69 @@
+package pro.misoft.demostripeintegration.config;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.servlet.LocaleResolver;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves the locale of a request by negotiating its <code>Accept-Language</code> header against the supported
+ * locales, falling back to the default locale for a missing, malformed or unmatched header.
+ * <p>
+ * Clients send few distinct header values, so negotiated locales are cached by header value. The cache is cleared
+ * when it reaches its maximum size, so that a flood of distinct values cannot grow it or keep common values out.
+ */
+public class AcceptLanguageLocaleResolver implements LocaleResolver {
+
+    private static final int MAX_CACHED_HEADERS = 256;
+    private static final int MAX_CACHED_HEADER_LENGTH = 128;
+
+    private final List<Locale> supportedLocales;
+    private final Locale defaultLocale;
+    private final Map<String, Locale> negotiated = new ConcurrentHashMap<>();
+
+    public AcceptLanguageLocaleResolver(Collection<Locale> supportedLocales, Locale defaultLocale) {
+        this.supportedLocales = List.copyOf(supportedLocales);
+        this.defaultLocale = defaultLocale;
+    }
+
+    @Override
+    public Locale resolveLocale(HttpServletRequest request) {
+        String header = request.getHeader(HttpHeaders.ACCEPT_LANGUAGE);
+        if (header == null || header.isBlank()) {
+            return defaultLocale;
+        }
+        Locale locale = negotiated.get(header);
+        if (locale == null) {
+            locale = negotiate(header);
+            if (header.length() <= MAX_CACHED_HEADER_LENGTH) {
+                if (negotiated.size() >= MAX_CACHED_HEADERS) {
+                    negotiated.clear();
+                }
+                negotiated.put(header, locale);
+            }
+        }
+        return locale;
+    }
+
+    @Override
+    public void setLocale(HttpServletRequest request, HttpServletResponse response, Locale locale) {
+        throw new UnsupportedOperationException("Cannot change the Accept-Language header, use a different locale resolution strategy");
+    }
+
+    private Locale negotiate(String header) {
+        List<Locale.LanguageRange> ranges;
+        try {
+            ranges = Locale.LanguageRange.parse(header);
+        } catch (IllegalArgumentException e) {
+            return defaultLocale;
+        }
+        Locale locale = Locale.lookup(ranges, supportedLocales);
+        return locale == null ? defaultLocale : locale;
+    }
+}
@@ -1,25 +1,38 @@
 package pro.misoft.demostripeintegration.config;
 
 import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
-import org.springframework.context.MessageSource;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.context.support.AbstractResourceBasedMessageSource;
-import org.springframework.context.support.ResourceBundleMessageSource;
 import org.springframework.scheduling.annotation.EnableAsync;
+import org.springframework.web.servlet.LocaleResolver;
 
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
 import java.util.concurrent.Executors;
 
 @Configuration
 @EnableAsync
 public class AppConfig {
 
+    private static final Locale DEFAULT_LOCALE = Locale.ENGLISH;
+
+    /**
+     * OpenAPI documentation and Swagger UI are created on first use, see {@link LazyInternalBeans}.
+     */
+    @Bean
+    public static LazyInternalBeans lazyInternalBeans() {
+        return new LazyInternalBeans(List.of("org.springdoc."));
+    }
+
+    @Bean
+    public PrecompiledMessageSource messageSource() throws IOException {
+        return PrecompiledMessageSource.load("i18n/messages", DEFAULT_LOCALE);
+    }
+
     @Bean
-    public MessageSource messageSource() {
-        AbstractResourceBasedMessageSource messageSource = new ResourceBundleMessageSource();
-        messageSource.setBasename("i18n/messages");
-        messageSource.setDefaultEncoding("UTF-8");
-        return messageSource;
+    public LocaleResolver localeResolver(PrecompiledMessageSource messageSource) {
+        return new AcceptLanguageLocaleResolver(messageSource.locales(), DEFAULT_LOCALE);
     }
 
     @Bean
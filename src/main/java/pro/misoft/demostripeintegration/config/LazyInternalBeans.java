@@ -0,0 +1,50 @@
+package pro.misoft.demostripeintegration.config;
+
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.beans.factory.config.BeanFactoryPostProcessor;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.beans.factory.support.AbstractBeanDefinition;
+
+import java.util.List;
+
+/**
+ * Makes the beans of internal-only features lazy, so that they are created by the first request to them instead of
+ * delaying startup, e.g. OpenAPI documentation and Swagger UI, which are only used by developers.
+ * <p>
+ * A bean is internal if its type is in one of the given packages. Beans explicitly declared eager or lazy,
+ * infrastructure beans and beans that must run once all singletons are created are left as they are. Bean
+ * definitions are changed before AOT processing, so the AOT-generated context keeps them lazy.
+ */
+public class LazyInternalBeans implements BeanFactoryPostProcessor {
+
+    private final List<String> packages;
+
+    public LazyInternalBeans(List<String> packages) {
+        this.packages = List.copyOf(packages);
+    }
+
+    @Override
+    public void postProcessBeanFactory(ConfigurableListableBeanFactory beanFactory) {
+        for (String name : beanFactory.getBeanDefinitionNames()) {
+            BeanDefinition definition = beanFactory.getBeanDefinition(name);
+            if (definition.getRole() == BeanDefinition.ROLE_INFRASTRUCTURE
+                    || definition instanceof AbstractBeanDefinition abstractDefinition && abstractDefinition.getLazyInit() != null) {
+                continue;
+            }
+            Class<?> type = beanFactory.getType(name, false);
+            if (type != null && isInternal(type) && !SmartInitializingSingleton.class.isAssignableFrom(type)) {
+                definition.setLazyInit(true);
+            }
+        }
+    }
+
+    private boolean isInternal(Class<?> type) {
+        for (String prefix : packages) {
+            if (type.getName().startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,195 @@
+package pro.misoft.demostripeintegration.config;
+
+import org.springframework.context.MessageSource;
+import org.springframework.context.MessageSourceResolvable;
+import org.springframework.context.NoSuchMessageException;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.util.StringUtils;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.text.MessageFormat;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+/**
+ * Message source with every bundle of a basename loaded at startup into an immutable table per locale, with the
+ * {@link MessageFormat} of each message already parsed.
+ * <p>
+ * The table of a locale contains the messages of its bundle, then of its language bundle, then of the fallback
+ * locale bundle and of the base bundle, the same way <code>ResourceBundle</code> falls back. Resolving a message is
+ * a lookup without locks plus, for messages with arguments, formatting a copy of the pre-parsed format. As with
+ * {@link org.springframework.context.support.ResourceBundleMessageSource}, a message without arguments is returned
+ * as written, not run through <code>MessageFormat</code>.
+ */
+public final class PrecompiledMessageSource implements MessageSource {
+
+    private final Map<Locale, Map<String, Message>> tables;
+    private final Map<String, Message> fallbackTable;
+
+    private PrecompiledMessageSource(Map<Locale, Map<String, Message>> tables, Locale fallback) {
+        this.tables = tables;
+        this.fallbackTable = tables.getOrDefault(fallback, Map.of());
+    }
+
+    /**
+     * Loads <code>basename.properties</code> and every <code>basename_&lt;locale&gt;.properties</code> from the
+     * classpath, read as UTF-8.
+     *
+     * @param fallback locale of the messages used for locales without a bundle and for keys missing in a bundle
+     */
+    public static PrecompiledMessageSource load(String basename, Locale fallback) throws IOException {
+        String name = StringUtils.getFilename(basename);
+        Map<Locale, Properties> bundles = new TreeMap<>(Comparator.comparing(Locale::toLanguageTag));
+        for (Resource resource : new PathMatchingResourcePatternResolver().getResources("classpath*:" + basename + "*.properties")) {
+            String filename = StringUtils.stripFilenameExtension(resource.getFilename());
+            Locale locale;
+            if (filename.equals(name)) {
+                locale = Locale.ROOT;
+            } else if (filename.startsWith(name + "_")) {
+                locale = StringUtils.parseLocale(filename.substring(name.length() + 1));
+            } else {
+                continue; // another basename with the same prefix
+            }
+            Properties properties = new Properties();
+            try (Reader reader = new InputStreamReader(resource.getInputStream(), StandardCharsets.UTF_8)) {
+                properties.load(reader);
+            }
+            bundles.merge(locale, properties, (first, second) -> first); // first on the classpath wins
+        }
+        bundles.putIfAbsent(fallback, new Properties());
+
+        Map<Locale, Map<String, Message>> tables = new HashMap<>();
+        for (Locale locale : bundles.keySet()) {
+            Map<String, String> patterns = new HashMap<>();
+            putAll(patterns, bundles.get(Locale.ROOT));
+            putAll(patterns, bundles.get(fallback));
+            if (!locale.getCountry().isEmpty()) {
+                putAll(patterns, bundles.get(Locale.of(locale.getLanguage())));
+            }
+            putAll(patterns, bundles.get(locale));
+
+            Map<String, Message> table = new HashMap<>();
+            patterns.forEach((code, pattern) -> table.put(code, Message.compile(pattern, locale)));
+            tables.put(locale, Map.copyOf(table));
+        }
+        return new PrecompiledMessageSource(Map.copyOf(tables), fallback);
+    }
+
+    private static void putAll(Map<String, String> patterns, Properties properties) {
+        if (properties != null) {
+            properties.forEach((code, pattern) -> patterns.put((String) code, (String) pattern));
+        }
+    }
+
+    /**
+     * Locales having a bundle, excluding the base bundle.
+     */
+    public Set<Locale> locales() {
+        return tables.keySet().stream().filter(locale -> !locale.equals(Locale.ROOT)).collect(Collectors.toUnmodifiableSet());
+    }
+
+    @Override
+    public String getMessage(String code, Object[] args, String defaultMessage, Locale locale) {
+        Message message = table(locale).get(code);
+        if (message != null) {
+            return message.format(args);
+        }
+        return defaultMessage == null ? null : formatDefault(defaultMessage, args, locale);
+    }
+
+    @Override
+    public String getMessage(String code, Object[] args, Locale locale) throws NoSuchMessageException {
+        Message message = table(locale).get(code);
+        if (message == null) {
+            throw new NoSuchMessageException(code, locale);
+        }
+        return message.format(args);
+    }
+
+    @Override
+    public String getMessage(MessageSourceResolvable resolvable, Locale locale) throws NoSuchMessageException {
+        Map<String, Message> table = table(locale);
+        Object[] args = resolveArguments(resolvable.getArguments(), locale);
+        String[] codes = resolvable.getCodes();
+        if (codes != null) {
+            for (String code : codes) {
+                Message message = table.get(code);
+                if (message != null) {
+                    return message.format(args);
+                }
+            }
+        }
+        if (resolvable.getDefaultMessage() != null) {
+            return formatDefault(resolvable.getDefaultMessage(), args, locale);
+        }
+        throw new NoSuchMessageException(codes != null && codes.length > 0 ? codes[codes.length - 1] : "", locale);
+    }
+
+    private Map<String, Message> table(Locale locale) {
+        if (locale == null) {
+            return fallbackTable;
+        }
+        Map<String, Message> table = tables.get(locale);
+        if (table == null && !locale.getCountry().isEmpty()) {
+            table = tables.get(Locale.of(locale.getLanguage()));
+        }
+        return table == null ? fallbackTable : table;
+    }
+
+    private Object[] resolveArguments(Object[] args, Locale locale) {
+        if (args == null || args.length == 0) {
+            return args;
+        }
+        Object[] resolved = args.clone();
+        for (int i = 0; i < resolved.length; i++) {
+            if (resolved[i] instanceof MessageSourceResolvable argument) {
+                resolved[i] = getMessage(argument, locale);
+            }
+        }
+        return resolved;
+    }
+
+    private static String formatDefault(String defaultMessage, Object[] args, Locale locale) {
+        if (args == null || args.length == 0) {
+            return defaultMessage;
+        }
+        try {
+            return new MessageFormat(defaultMessage, locale).format(args);
+        } catch (IllegalArgumentException e) {
+            // a default message is usually an exception message, not meant as a pattern
+            return defaultMessage;
+        }
+    }
+
+    /**
+     * @param format parsed pattern, null if the pattern is not valid for <code>MessageFormat</code>
+     */
+    private record Message(String pattern, MessageFormat format) {
+
+        static Message compile(String pattern, Locale locale) {
+            try {
+                return new Message(pattern, new MessageFormat(pattern, locale));
+            } catch (IllegalArgumentException e) {
+                return new Message(pattern, null);
+            }
+        }
+
+        String format(Object[] args) {
+            if (args == null || args.length == 0 || format == null) {
+                return pattern;
+            }
+            // MessageFormat is not thread safe, a copy keeps the parsed pattern
+            return ((MessageFormat) format.clone()).format(args);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package pro.misoft.demostripeintegration.config;
+
+import jakarta.servlet.Filter;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import pro.misoft.demostripeintegration.common.Deadline;
+
+import java.io.IOException;
+import java.time.Duration;
+
+/**
+ * Gives every API request a {@link Deadline} of <code>api.request.deadline</code>. Stripe calls made after it passed
+ * are rejected with <code>503</code> and the timeout of every Stripe request is capped at the time left, so that a
+ * request never keeps calling Stripe after its client gave up.
+ */
+@Component
+@Order(2)
+public class RequestDeadlineFilter implements Filter {
+
+    private final Duration budget;
+
+    public RequestDeadlineFilter(@Value("${api.request.deadline:30s}") Duration budget) {
+        this.budget = budget;
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+        try (Deadline.Scope scope = Deadline.after(budget).open()) {
+            chain.doFilter(request, response);
+        }
+    }
+}
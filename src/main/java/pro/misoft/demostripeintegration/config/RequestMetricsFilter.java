@@ -0,0 +1,223 @@
+package pro.misoft.demostripeintegration.config;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.servlet.*;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.servlet.HandlerMapping;
+import org.springframework.web.servlet.mvc.method.RequestMappingInfo;
+import org.springframework.web.servlet.mvc.method.annotation.RequestMappingHandlerMapping;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Counts API calls and records request latency as <code>custom.api.requests</code> tagged with the route template,
+ * HTTP method and status, e.g. <code>uri=/v1/payments/subscriptions/{subscriptionId}</code>.
+ * <p>
+ * Routes are read from the request mappings once at startup and their meters are registered up front, so that a
+ * request only does map lookups and never builds tags. Requests not matched to a route are recorded as
+ * <code>UNMATCHED</code>, methods not mapped for a route as <code>OTHER</code>. Status codes get a meter on first use
+ * until <code>api.metrics.max-series</code> meters exist, later ones are recorded with <code>status=OTHER</code>.
+ * Actuator requests are neither counted nor recorded.
+ */
+@Component
+@Order(1)  // Ensure this filter runs before other filters
+public class RequestMetricsFilter implements Filter {
+
+    private static final Logger log = LoggerFactory.getLogger(RequestMetricsFilter.class);
+    static final String METRIC = "custom.api.requests";
+    static final String UNMATCHED = "UNMATCHED";
+    static final String OTHER = "OTHER";
+    private static final Set<String> ANY_METHOD = Set.of("GET", "POST", "PUT", "PATCH", "DELETE");
+    private static final int MAX_STATUS = 599;
+
+    private final MeterRegistry meterRegistry;
+    private final String actuatorPrefix;
+    private final int maxSeries;
+    private final AtomicInteger series = new AtomicInteger();
+    private final Counter apiCallCounter;
+    private final RouteMetrics unmatched;
+    private volatile Map<String, Route> routes = Map.of();
+
+    public RequestMetricsFilter(MeterRegistry meterRegistry,
+                                @Value("${spring.mvc.servlet.path:}") String servletPath,
+                                @Value("${management.endpoints.web.base-path:/actuator}") String actuatorBasePath,
+                                @Value("${api.metrics.max-series:300}") int maxSeries) {
+        this.meterRegistry = meterRegistry;
+        this.actuatorPrefix = (servletPath.endsWith("/") ? servletPath.substring(0, servletPath.length() - 1) : servletPath) + actuatorBasePath;
+        this.maxSeries = maxSeries;
+        this.apiCallCounter = meterRegistry.counter("custom.api.calls.total");
+        this.unmatched = new RouteMetrics(UNMATCHED, OTHER);
+    }
+
+    /**
+     * Whether the request targets an actuator endpoint, checked by a prefix computed once at startup.
+     */
+    public boolean isActuator(HttpServletRequest request) {
+        return request.getRequestURI().startsWith(actuatorPrefix);
+    }
+
+    @EventListener(ContextRefreshedEvent.class)
+    public void registerRoutes(ContextRefreshedEvent event) {
+        Map<String, Route> registered = new HashMap<>();
+        for (RequestMappingHandlerMapping mapping : event.getApplicationContext().getBeansOfType(RequestMappingHandlerMapping.class).values()) {
+            for (RequestMappingInfo info : mapping.getHandlerMethods().keySet()) {
+                Set<RequestMethod> methods = info.getMethodsCondition().getMethods();
+                for (String pattern : info.getPatternValues()) {
+                    Route route = registered.computeIfAbsent(pattern, Route::new);
+                    if (methods.isEmpty()) {
+                        ANY_METHOD.forEach(route::add);
+                    } else {
+                        methods.forEach(method -> route.add(method.name()));
+                    }
+                }
+            }
+        }
+        routes = registered;
+        log.info("Request metrics registered for {} routes", registered.size());
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+        HttpServletRequest httpRequest = (HttpServletRequest) request;
+        HttpServletResponse httpResponse = (HttpServletResponse) response;
+        if (isActuator(httpRequest)) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        apiCallCounter.increment();
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            chain.doFilter(request, response);
+            failed = false;
+        } finally {
+            if (!failed && httpRequest.isAsyncStarted()) {
+                // streamed responses complete after the filter chain has returned
+                httpRequest.getAsyncContext().addListener(new CompletionListener(httpRequest, httpResponse, start));
+            } else {
+                record(httpRequest, failed ? HttpServletResponse.SC_INTERNAL_SERVER_ERROR : httpResponse.getStatus(), start);
+            }
+        }
+    }
+
+    private void record(HttpServletRequest request, int status, long start) {
+        long elapsed = System.nanoTime() - start;
+        Object pattern = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+        Route route = pattern == null ? null : routes.get(pattern);
+        RouteMetrics metrics = route == null ? unmatched : route.metrics(request.getMethod());
+        metrics.timer(status).record(elapsed, TimeUnit.NANOSECONDS);
+    }
+
+    private Timer timer(String uri, String method, String status) {
+        return Timer.builder(METRIC)
+                .description("API requests by route template, method and status")
+                .tags("uri", uri, "method", method, "status", status)
+                .publishPercentileHistogram()
+                .minimumExpectedValue(Duration.ofMillis(1))
+                .maximumExpectedValue(Duration.ofSeconds(30))
+                .register(meterRegistry);
+    }
+
+    private final class Route {
+        private final String pattern;
+        private final Map<String, RouteMetrics> byMethod = new HashMap<>();
+        private final RouteMetrics otherMethod;
+
+        private Route(String pattern) {
+            this.pattern = pattern;
+            this.otherMethod = new RouteMetrics(pattern, OTHER);
+        }
+
+        private void add(String method) {
+            byMethod.computeIfAbsent(method, m -> new RouteMetrics(pattern, m));
+        }
+
+        private RouteMetrics metrics(String method) {
+            return byMethod.getOrDefault(method, otherMethod);
+        }
+    }
+
+    /**
+     * Meters of one route and method, indexed by status code.
+     */
+    private final class RouteMetrics {
+        private final String uri;
+        private final String method;
+        private final AtomicReferenceArray<Timer> byStatus = new AtomicReferenceArray<>(MAX_STATUS + 1);
+        private final Timer otherStatus;
+
+        private RouteMetrics(String uri, String method) {
+            this.uri = uri;
+            this.method = method;
+            this.otherStatus = RequestMetricsFilter.this.timer(uri, method, OTHER);
+        }
+
+        private Timer timer(int status) {
+            if (status < 0 || status > MAX_STATUS) {
+                return otherStatus;
+            }
+            Timer timer = byStatus.get(status);
+            if (timer != null) {
+                return timer;
+            }
+            if (series.incrementAndGet() > maxSeries) {
+                series.decrementAndGet();
+                return otherStatus;
+            }
+            // concurrent first requests may both register, the registry returns the same meter to both
+            timer = RequestMetricsFilter.this.timer(uri, method, String.valueOf(status));
+            if (!byStatus.compareAndSet(status, null, timer)) {
+                series.decrementAndGet();
+            }
+            return timer;
+        }
+    }
+
+    private final class CompletionListener implements AsyncListener {
+        private final HttpServletRequest request;
+        private final HttpServletResponse response;
+        private final long start;
+
+        private CompletionListener(HttpServletRequest request, HttpServletResponse response, long start) {
+            this.request = request;
+            this.response = response;
+            this.start = start;
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            record(request, response.getStatus(), start);
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+    }
+}
@@ -1,8 +1,10 @@
 package pro.misoft.demostripeintegration.config;
 
 import io.micrometer.core.aop.TimedAspect;
+import io.micrometer.context.ContextSnapshotFactory;
 import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.observation.ObservationPredicate;
+import io.micrometer.observation.contextpropagation.ObservationThreadLocalAccessor;
 import io.micrometer.tracing.Span;
 import io.micrometer.tracing.Tracer;
 import jakarta.servlet.Filter;
@@ -12,6 +14,8 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.EnableAspectJAutoProxy;
 import org.springframework.core.env.Environment;
+import org.springframework.core.task.TaskDecorator;
+import org.springframework.core.task.support.ContextPropagatingTaskDecorator;
 import org.springframework.http.server.observation.ServerRequestObservationContext;
 
 @Configuration
@@ -31,16 +35,29 @@ public class TracingConfig {
     }
 
     @Bean
-    public ObservationPredicate noActuatorServerObservations() {
+    public ObservationPredicate noActuatorServerObservations(RequestMetricsFilter requestMetricsFilter) {
         return (name, context) -> {
             if ("http.server.requests".equals(name) && context instanceof ServerRequestObservationContext) {
-                return !((ServerRequestObservationContext) context).getCarrier().getRequestURI().contains("/actuator");
+                return !requestMetricsFilter.isActuator(((ServerRequestObservationContext) context).getCarrier());
             } else {
                 return true;
             }
         };
     }
 
+    /**
+     * Applied by Spring Boot to the application task executor, which runs streamed response bodies such as the results
+     * of <code>/v1/payments/batch</code>. Their Stripe calls then stay in the trace of the request and are counted by
+     * <code>StripeCallsPerRequest</code>. Only the observation is propagated, a stream is not bound by the request
+     * <code>Deadline</code> but by its own limits, e.g. <code>payments.batch.deadline</code>.
+     */
+    @Bean
+    public TaskDecorator observationTaskDecorator() {
+        return new ContextPropagatingTaskDecorator(ContextSnapshotFactory.builder()
+                .captureKeyPredicate(ObservationThreadLocalAccessor.KEY::equals)
+                .build());
+    }
+
     @Bean
     public MeterRegistryCustomizer<MeterRegistry> metricsCommonTags(Environment env) {
         return registry -> {
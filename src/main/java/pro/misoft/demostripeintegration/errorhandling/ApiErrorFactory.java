@@ -5,71 +5,88 @@ import jakarta.validation.ConstraintViolationException;
 import jakarta.validation.constraints.NotBlank;
 import jakarta.validation.constraints.NotEmpty;
 import jakarta.validation.constraints.NotNull;
-import org.springframework.context.support.AbstractResourceBasedMessageSource;
+import org.springframework.context.MessageSource;
+import org.springframework.context.i18n.LocaleContextHolder;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Component;
-import org.springframework.validation.FieldError;
 import org.springframework.web.bind.MethodArgumentNotValidException;
 import pro.misoft.demostripeintegration.common.BusinessException;
 import pro.misoft.demostripeintegration.common.Id;
 
-import java.util.HashMap;
+import java.lang.annotation.Annotation;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 @Component
 public class ApiErrorFactory {
 
-    private final AbstractResourceBasedMessageSource msgSource;
+    // constraints stating that a value is missing, reported in favour of any other violation of the same field
+    private static final Set<Class<? extends Annotation>> PRESENCE_CONSTRAINTS = Set.of(NotNull.class, NotEmpty.class, NotBlank.class);
 
-    ApiErrorFactory(AbstractResourceBasedMessageSource msgSource) {
+    private final MessageSource msgSource;
+
+    ApiErrorFactory(MessageSource msgSource) {
         this.msgSource = msgSource;
     }
 
+    /**
+     * Error with the message in the locale of the current request.
+     */
     public ApiError error(Exception ex) {
+        return error(ex, LocaleContextHolder.getLocale());
+    }
+
+    /**
+     * Error with the message in the given locale, for errors reported outside the thread handling the request.
+     */
+    public ApiError error(Exception ex, Locale locale) {
         RestResponseSupport.Keys responseSupport = RestResponseSupport.getKeys(ex);
         Object[] args = null;
         if (ex instanceof BusinessException businessException) {
             args = businessException.getArgs();
         }
-        String message = msgSource.getMessage(responseSupport.i18nKey(), args, ex.getMessage(), Locale.ENGLISH);
+        String message = msgSource.getMessage(responseSupport.i18nKey(), args, ex.getMessage(), locale);
         return new ApiError(responseSupport.httpStatus(), responseSupport.internalCode(), message);
     }
 
     ApiError error(MethodArgumentNotValidException ex) {
-        return error(ex.getBindingResult().getFieldErrors());
+        return error(ex.getBindingResult().getFieldErrors().stream().map(fe ->
+                new ApiSubError(fe.getObjectName(), fe.getField(), fe.getRejectedValue(), fe.getDefaultMessage() == null ? "" : fe.getDefaultMessage())).toList());
     }
 
-    private static ApiError error(List<FieldError> fieldErrors) {
-        return new ApiError(HttpStatus.BAD_REQUEST.value(), "" + 4002, "Input fields contain errors", Id.randomUUID(), fieldErrors.stream().map(fe ->
-                new ApiSubError(fe.getObjectName(), fe.getField(), fe.getRejectedValue(), fe.getDefaultMessage() == null ? "" : fe.getDefaultMessage())).toList());
+    private static ApiError error(List<ApiSubError> subErrors) {
+        return new ApiError(HttpStatus.BAD_REQUEST.value(), "" + 4002, "Input fields contain errors", Id.randomUUID(), subErrors);
     }
 
+    /**
+     * Reports one violation per property path in a single pass, preferring a violation of a presence constraint
+     * (e.g. {@link NotNull}) over the others, since these are redundant for a missing value.
+     */
     ApiError error(ConstraintViolationException ex) {
-        var result = new HashMap<String, String>();
+        Map<String, ConstraintViolation<?>> byPath = new LinkedHashMap<>();
         for (ConstraintViolation<?> cv : ex.getConstraintViolations()) {
-            if (result.containsKey(cv.getPropertyPath().toString())) {
-                if (contains(cv, NotEmpty.class) || contains(cv, NotNull.class) || contains(cv, NotBlank.class)) {
-                    result.put(cv.getPropertyPath().toString(), cv.getMessageTemplate());
-                }
-            } else {
-                result.put(cv.getPropertyPath().toString(), cv.getMessageTemplate());
+            String path = cv.getPropertyPath().toString();
+            ConstraintViolation<?> reported = byPath.putIfAbsent(path, cv);
+            if (reported != null && !isPresence(reported) && isPresence(cv)) {
+                byPath.put(path, cv);
             }
         }
-        List<FieldError> errors = ex.getConstraintViolations()
-                .stream()
-                .filter(cv -> result.containsKey(cv.getPropertyPath().toString()) && result.get(cv.getPropertyPath().toString()).contains(cv.getMessageTemplate()))
-                .map(cv -> new FieldError(cv.getRootBeanClass().getSimpleName(), cv.getPropertyPath().toString(), cv.getInvalidValue() != null ? cv.getInvalidValue().toString() : "",
-                        true, null, null, getCvMsg(cv.getRootBeanClass().getSimpleName().toLowerCase() + "." + cv.getPropertyPath().toString().toLowerCase(), cv.getMessage())))
-                .toList();
+        Locale locale = LocaleContextHolder.getLocale();
+        List<ApiSubError> errors = new ArrayList<>(byPath.size());
+        byPath.forEach((path, cv) -> {
+            String objectName = cv.getRootBeanClass().getSimpleName();
+            Object invalidValue = cv.getInvalidValue();
+            String message = msgSource.getMessage("errors." + objectName.toLowerCase() + "." + path.toLowerCase(), null, cv.getMessage(), locale);
+            errors.add(new ApiSubError(objectName, path, invalidValue != null ? invalidValue.toString() : "", message == null ? "" : message));
+        });
         return error(errors);
     }
 
-    private static boolean contains(ConstraintViolation<?> cv, Class<?> claz) {
-        return cv.getMessageTemplate().contains(claz.getSimpleName().toLowerCase());
-    }
-
-    private String getCvMsg(String key, String defaultMessage) {
-        return msgSource.getMessage("errors." + key, null, defaultMessage, Locale.ENGLISH);
+    private static boolean isPresence(ConstraintViolation<?> cv) {
+        return PRESENCE_CONSTRAINTS.contains(cv.getConstraintDescriptor().getAnnotation().annotationType());
     }
 }
@@ -2,12 +2,20 @@ package pro.misoft.demostripeintegration.errorhandling;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import com.stripe.exception.SignatureVerificationException;
+import io.github.resilience4j.bulkhead.BulkheadFullException;
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
+import io.github.resilience4j.ratelimiter.RequestNotPermitted;
 import org.springframework.http.HttpStatus;
 import org.springframework.web.multipart.MaxUploadSizeExceededException;
+import pro.misoft.demostripeintegration.common.BackpressureException;
 import pro.misoft.demostripeintegration.common.BusinessException;
+import pro.misoft.demostripeintegration.common.IdempotencyKeyReusedException;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class RestResponseSupport {
 
@@ -18,27 +26,45 @@ public class RestResponseSupport {
     private static final Keys BAD_REQUEST = new Keys(HttpStatus.BAD_REQUEST, COMMON_PREFIX + 5002, "errors.common.illegalargument");
     private static final Keys UNPROCESSABLE_ENTITY = new Keys(HttpStatus.UNPROCESSABLE_ENTITY, COMMON_PREFIX + 5003, "errors.common.illegalstate");
     private static final Keys MAX_FILE_UPLOAD_SIZE = new Keys(HttpStatus.UNPROCESSABLE_ENTITY, COMMON_PREFIX + 5004, "errors.common.max-file-size");
+    private static final Keys OVERLOADED = new Keys(HttpStatus.SERVICE_UNAVAILABLE, COMMON_PREFIX + 5005, "errors.common.overloaded");
+    private static final Keys IDEMPOTENCY_KEY_REUSED = new Keys(HttpStatus.UNPROCESSABLE_ENTITY, COMMON_PREFIX + 5006, "errors.common.idempotency-key-reused");
     private static final Map<Class<? extends Exception>, Keys> exceptionsMap = new HashMap<>();
+    // exception classes are a closed set of the code base, so the cache is bounded without eviction
+    private static final Map<Class<? extends Exception>, Keys> resolved = new ConcurrentHashMap<>();
 
     static {
         exceptionsMap.put(BusinessException.class, UNPROCESSABLE_ENTITY);
+        exceptionsMap.put(BackpressureException.class, OVERLOADED);
+        exceptionsMap.put(RequestNotPermitted.class, OVERLOADED);
+        exceptionsMap.put(BulkheadFullException.class, OVERLOADED);
+        exceptionsMap.put(CallNotPermittedException.class, OVERLOADED);
+        // the request thread was interrupted, e.g. on shutdown, the client may retry elsewhere
+        exceptionsMap.put(CancellationException.class, OVERLOADED);
+        exceptionsMap.put(SignatureVerificationException.class, BAD_REQUEST);
+        exceptionsMap.put(IdempotencyKeyReusedException.class, IDEMPOTENCY_KEY_REUSED);
     }
 
     public record Keys(HttpStatus httpStatus, String internalCode, String i18nKey) {
     }
 
     public static Keys getKeys(Exception exception) {
-        Keys keys = exceptionsMap.get(exception.getClass());
+        return resolved.computeIfAbsent(exception.getClass(), RestResponseSupport::resolve);
+    }
+
+    private static Keys resolve(Class<? extends Exception> type) {
+        Keys keys = exceptionsMap.get(type);
         if (keys == null) {
-            log.debug("No translation is explicitly configured for exception={}", exception.getClass().getName());
-            keys = switch (exception) {
-                case IllegalArgumentException illegalArgumentException -> BAD_REQUEST;
-                case IllegalStateException illegalStateException -> UNPROCESSABLE_ENTITY;
-                case MaxUploadSizeExceededException maxUploadSizeExceededException -> MAX_FILE_UPLOAD_SIZE;
-                default -> UNSUPPORTED;
-            };
+            log.debug("No translation is explicitly configured for exception={}", type.getName());
+            if (IllegalArgumentException.class.isAssignableFrom(type)) {
+                keys = BAD_REQUEST;
+            } else if (IllegalStateException.class.isAssignableFrom(type)) {
+                keys = UNPROCESSABLE_ENTITY;
+            } else if (MaxUploadSizeExceededException.class.isAssignableFrom(type)) {
+                keys = MAX_FILE_UPLOAD_SIZE;
+            } else {
+                keys = UNSUPPORTED;
+            }
         }
         return keys;
     }
 }
-
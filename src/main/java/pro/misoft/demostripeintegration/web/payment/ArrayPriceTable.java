@@ -0,0 +1,92 @@
+package pro.misoft.demostripeintegration.web.payment;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * {@link PriceTable} backed by parallel primitive arrays, built once and never modified afterwards.
+ */
+final class ArrayPriceTable implements PriceTable {
+
+    private final Map<String, Integer> indexes;
+    private final String[] productIds;
+    private final long[] amounts;
+    private final String[] currencies;
+    private final String[] names;
+
+    private ArrayPriceTable(Map<String, Integer> indexes, String[] productIds, long[] amounts, String[] currencies, String[] names) {
+        this.indexes = indexes;
+        this.productIds = productIds;
+        this.amounts = amounts;
+        this.currencies = currencies;
+        this.names = names;
+    }
+
+    static Builder builder() {
+        return new Builder();
+    }
+
+    @Override
+    public int indexOf(String productId) {
+        Integer index = indexes.get(productId);
+        return index == null ? NOT_FOUND : index;
+    }
+
+    @Override
+    public String productId(int index) {
+        return productIds[index];
+    }
+
+    @Override
+    public long unitAmount(int index) {
+        return amounts[index];
+    }
+
+    @Override
+    public String currency(int index) {
+        return currencies[index];
+    }
+
+    @Override
+    public String name(int index) {
+        return names[index];
+    }
+
+    @Override
+    public int size() {
+        return amounts.length;
+    }
+
+    static final class Builder {
+        private final Map<String, Integer> indexes = new HashMap<>();
+        private final List<String> productIds = new ArrayList<>();
+        private final List<Long> amounts = new ArrayList<>();
+        private final List<String> currencies = new ArrayList<>();
+        private final List<String> names = new ArrayList<>();
+
+        private Builder() {
+        }
+
+        Builder add(String productId, String name, long unitAmount, String currency) {
+            if (indexes.putIfAbsent(productId, amounts.size()) != null) {
+                throw new IllegalStateException("Duplicate product [%s] in price table".formatted(productId));
+            }
+            productIds.add(productId);
+            amounts.add(unitAmount);
+            currencies.add(currency.toLowerCase(Locale.ROOT).intern());
+            names.add(name);
+            return this;
+        }
+
+        ArrayPriceTable build() {
+            long[] amountArray = new long[amounts.size()];
+            for (int i = 0; i < amountArray.length; i++) {
+                amountArray[i] = amounts.get(i);
+            }
+            return new ArrayPriceTable(Map.copyOf(indexes), productIds.toArray(String[]::new), amountArray, currencies.toArray(String[]::new), names.toArray(String[]::new));
+        }
+    }
+}
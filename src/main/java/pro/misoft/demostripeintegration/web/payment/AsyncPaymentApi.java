@@ -0,0 +1,123 @@
+package pro.misoft.demostripeintegration.web.payment;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.stripe.model.Customer;
+import com.stripe.model.PaymentIntent;
+import com.stripe.model.checkout.Session;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The API of {@link PaymentApi} served with <code>payments.api.mode=async</code>: handlers return
+ * {@link CompletableFuture}s composed by {@link AsyncStripe}, so the request thread is released right after the
+ * request is validated and independent Stripe calls of a checkout run at the same time.
+ */
+@RestController
+@RequestMapping(value = "/v1/payments", consumes = MediaType.APPLICATION_JSON_VALUE)
+@ConditionalOnProperty(name = "payments.api.mode", havingValue = "async")
+public class AsyncPaymentApi {
+
+    private final AsyncStripe stripe;
+    private final IdempotencyStore idempotencyStore;
+    private final BatchCheckout batchCheckout;
+    private final String clientBaseURL;
+    private final ObjectWriter subscriptionWriter;
+    private final ObjectWriter invoiceWriter;
+    private final ObjectWriter batchResultWriter;
+
+    public AsyncPaymentApi(AsyncStripe stripe, IdempotencyStore idempotencyStore, BatchCheckout batchCheckout,
+                           @Value("${client.base.url}") String clientBaseURL, ObjectMapper objectMapper) {
+        this.stripe = stripe;
+        this.idempotencyStore = idempotencyStore;
+        this.batchCheckout = batchCheckout;
+        this.clientBaseURL = clientBaseURL;
+        this.subscriptionWriter = objectMapper.writerFor(SubscriptionView.class);
+        this.invoiceWriter = objectMapper.writerFor(InvoiceView.class);
+        this.batchResultWriter = objectMapper.writerFor(BatchItemResult.class);
+    }
+
+    @PostMapping
+    public CompletableFuture<ResponseEntity<String>> intentCheckout(@RequestBody PaymentRequest request,
+                                                                    @RequestHeader(value = IdempotencyStore.HEADER, required = false) String idempotencyKey) {
+        return idempotencyStore.executeAsync("intent", idempotencyKey, IdempotencyStore.fingerprint(request), key -> {
+            CompletableFuture<Customer> customer = stripe.findOrCreateCustomer(request.customerEmail(), request.customerName(), key);
+            return stripe.createPaymentIntent(request, customer, key).thenApply(PaymentIntent::getClientSecret);
+        }).thenApply(ResponseEntity::ok);
+    }
+
+    @PostMapping(value = "/batch", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public CompletableFuture<ResponseEntity<StreamingResponseBody>> batchCheckout(@RequestBody List<PaymentRequest> requests,
+                                                                                  @RequestHeader(value = IdempotencyStore.HEADER, required = false) String idempotencyKey,
+                                                                                  Locale locale) {
+        return stripe.supplyAsync(() -> batchCheckout.prepare(requests, idempotencyKey, locale))
+                .thenApply(batch -> PaymentApi.batchResponse(batchCheckout, batch, batchResultWriter));
+    }
+
+    @PostMapping("/hosted")
+    public CompletableFuture<ResponseEntity<String>> hostedCheckout(@RequestBody PaymentRequest paymentRequest,
+                                                                    @RequestHeader(value = IdempotencyStore.HEADER, required = false) String idempotencyKey) {
+        return idempotencyStore.executeAsync("hosted", idempotencyKey, IdempotencyStore.fingerprint(paymentRequest), key -> {
+            CompletableFuture<Customer> customer = stripe.findOrCreateCustomer(paymentRequest.customerEmail(), paymentRequest.customerName(), key);
+            return stripe.createHostedSession(paymentRequest, customer, clientBaseURL, key).thenApply(Session::getUrl);
+        }).thenApply(ResponseEntity::ok);
+    }
+
+    @PostMapping("/subscriptions")
+    public CompletableFuture<ResponseEntity<String>> newSubscription(@RequestBody PaymentRequest paymentRequest,
+                                                                     @RequestHeader(value = IdempotencyStore.HEADER, required = false) String idempotencyKey) {
+        return subscriptionCheckout("subscription", paymentRequest, false, idempotencyKey).thenApply(ResponseEntity::ok);
+    }
+
+    @DeleteMapping("/subscriptions/{subscriptionId}")
+    public CompletableFuture<ResponseEntity<String>> cancelSubscription(@PathVariable String subscriptionId) {
+        return stripe.cancelSubscription(subscriptionId).thenApply(subscription -> ResponseEntity.ok(subscription.getStatus()));
+    }
+
+    @GetMapping("/subscriptions")
+    public CompletableFuture<ResponseEntity<List<SubscriptionView>>> viewSubscriptions(@RequestParam String customerEmail,
+                                                                                         @RequestParam(required = false) String startingAfter,
+                                                                                         @RequestParam(defaultValue = "" + Page.DEFAULT_LIMIT) long limit) {
+        return stripe.listSubscriptions(stripe.findCustomerByEmail(customerEmail), startingAfter, limit).thenApply(PaymentApi::pageResponse);
+    }
+
+    @GetMapping(value = "/subscriptions/stream", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public CompletableFuture<ResponseEntity<StreamingResponseBody>> streamSubscriptions(@RequestParam String customerEmail) {
+        return stripe.findCustomerByEmail(customerEmail).thenApply(customer -> PaymentApi.ndjsonResponse(subscriptionWriter,
+                cursor -> stripe.listSubscriptions(CompletableFuture.completedFuture(customer), cursor, Page.MAX_LIMIT).join()));
+    }
+
+    @PostMapping("/subscriptions/trial")
+    public CompletableFuture<ResponseEntity<String>> newSubscriptionWithTrial(@RequestBody PaymentRequest paymentRequest,
+                                                                              @RequestHeader(value = IdempotencyStore.HEADER, required = false) String idempotencyKey) {
+        return subscriptionCheckout("subscription-trial", paymentRequest, true, idempotencyKey).thenApply(ResponseEntity::ok);
+    }
+
+    private CompletableFuture<String> subscriptionCheckout(String scope, PaymentRequest paymentRequest, boolean trial, String idempotencyKey) {
+        return idempotencyStore.executeAsync(scope, idempotencyKey, IdempotencyStore.fingerprint(paymentRequest), key -> {
+            CompletableFuture<Customer> customer = stripe.findOrCreateCustomer(paymentRequest.customerEmail(), paymentRequest.customerName(), key);
+            return stripe.createSubscriptionSession(paymentRequest, customer, clientBaseURL, trial, key).thenApply(Session::getUrl);
+        });
+    }
+
+    @GetMapping("/invoices")
+    public CompletableFuture<ResponseEntity<List<InvoiceView>>> listInvoices(@RequestParam String customerEmail,
+                                                                               @RequestParam(required = false) String startingAfter,
+                                                                               @RequestParam(defaultValue = "" + Page.DEFAULT_LIMIT) long limit) {
+        return stripe.listInvoices(stripe.findCustomerByEmail(customerEmail), startingAfter, limit).thenApply(PaymentApi::pageResponse);
+    }
+
+    @GetMapping(value = "/invoices/stream", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public CompletableFuture<ResponseEntity<StreamingResponseBody>> streamInvoices(@RequestParam String customerEmail) {
+        return stripe.findCustomerByEmail(customerEmail).thenApply(customer -> PaymentApi.ndjsonResponse(invoiceWriter,
+                cursor -> stripe.listInvoices(CompletableFuture.completedFuture(customer), cursor, Page.MAX_LIMIT).join()));
+    }
+}
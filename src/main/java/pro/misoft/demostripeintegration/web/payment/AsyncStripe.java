@@ -0,0 +1,144 @@
+package pro.misoft.demostripeintegration.web.payment;
+
+import com.stripe.model.Customer;
+import com.stripe.model.PaymentIntent;
+import com.stripe.model.Product;
+import com.stripe.model.Subscription;
+import com.stripe.model.checkout.Session;
+import com.stripe.param.checkout.SessionCreateParams;
+import jakarta.annotation.PreDestroy;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+import pro.misoft.demostripeintegration.common.ContextPropagatingExecutor;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.function.Supplier;
+
+/**
+ * {@link Stripe} operations returning {@link CompletableFuture}s, used when <code>payments.api.mode=async</code>.
+ * <p>
+ * The Stripe SDK is blocking, so every Stripe call still runs on a virtual thread, but no request thread waits for
+ * it and independent steps of a checkout run at the same time: products of an invoice checkout are resolved and
+ * checkout session line items are built while the customer is looked up. Invoice items
+ * are created by the same bounded fan-out as in the blocking API, see <code>stripe.fanout.*</code>. MDC, trace context
+ * and the request deadline follow every step.
+ */
+@Service
+@ConditionalOnProperty(name = "payments.api.mode", havingValue = "async")
+public class AsyncStripe {
+
+    private final Stripe stripe;
+    private final ExecutorService virtualThreads = Executors.newVirtualThreadPerTaskExecutor();
+    private final Executor executor = new ContextPropagatingExecutor(virtualThreads);
+
+    public AsyncStripe(Stripe stripe) {
+        this.stripe = stripe;
+    }
+
+    @PreDestroy
+    void shutdown() {
+        virtualThreads.close();
+    }
+
+    /**
+     * Runs any blocking step on the executor of this service.
+     */
+    <T> CompletableFuture<T> supplyAsync(Supplier<T> step) {
+        return CompletableFuture.supplyAsync(step, executor);
+    }
+
+    /**
+     * Runs a blocking step like {@link #supplyAsync}, but cancelling the returned future interrupts the step, which
+     * cancelling a future of <code>CompletableFuture.supplyAsync</code> does not.
+     */
+    <T> CompletableFuture<T> interruptibleAsync(Callable<T> step) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        FutureTask<T> task = new FutureTask<>(step) {
+            @Override
+            protected void done() {
+                try {
+                    result.complete(get());
+                } catch (ExecutionException e) {
+                    result.completeExceptionally(e.getCause());
+                } catch (CancellationException | InterruptedException e) {
+                    result.cancel(false);
+                }
+            }
+        };
+        result.whenComplete((value, failure) -> {
+            if (result.isCancelled()) {
+                task.cancel(true);
+            }
+        });
+        executor.execute(task);
+        return result;
+    }
+
+    public CompletableFuture<Customer> findCustomerByEmail(String email) {
+        return CompletableFuture.supplyAsync(() -> stripe.customers.findCustomerByEmail(email), executor);
+    }
+
+    public CompletableFuture<Customer> findOrCreateCustomer(String email, String name, String idempotencyKey) {
+        return CompletableFuture.supplyAsync(() -> stripe.customers.findOrCreateCustomer(email, name, idempotencyKey), executor);
+    }
+
+    /**
+     * @throws IllegalArgumentException immediately if the cart is empty, has unknown products or mixes currencies
+     */
+    public CompletableFuture<PaymentIntent> createPaymentIntent(PaymentRequest request, CompletableFuture<Customer> customer, String idempotencyKey) {
+        PriceTable.Total total = stripe.payments.priceTable().total(request.items());
+        if (!request.invoiceNeeded()) {
+            return customer.thenApplyAsync(c -> stripe.payments.createDirectPaymentIntent(total, c, idempotencyKey), executor);
+        }
+
+        List<Product> items = request.items();
+        CompletableFuture<List<String>> stripeProductIds = interruptibleAsync(() -> stripe.payments.findOrCreateProducts(items));
+        // thenCombine waits for both lookups, a failed customer lookup interrupts the product lookup, which fails the
+        // checkout right away and stops the remaining Stripe calls for products
+        customer.whenComplete((c, failure) -> {
+            if (failure != null) {
+                stripeProductIds.cancel(true);
+            }
+        });
+        // the draft invoice is created only once its items can be, a failed product lookup leaves nothing to discard
+        return customer.thenCombineAsync(stripeProductIds, (c, productIds) ->
+                stripe.payments.createInvoicePaymentIntent(c, items, productIds, idempotencyKey), executor);
+    }
+
+    /**
+     * @throws IllegalArgumentException immediately if the cart is empty, has unknown products or mixes currencies
+     */
+    public CompletableFuture<Session> createHostedSession(PaymentRequest request, CompletableFuture<Customer> customer, String clientBaseURL, String idempotencyKey) {
+        SessionCreateParams.Builder params = stripe.payments.hostedSessionParams(request, clientBaseURL);
+        return customer.thenApplyAsync(c -> stripe.payments.createSession(params, c, idempotencyKey), executor);
+    }
+
+    /**
+     * @throws IllegalArgumentException immediately if the cart is empty, has unknown products or mixes currencies
+     */
+    public CompletableFuture<Session> createSubscriptionSession(PaymentRequest request, CompletableFuture<Customer> customer, String clientBaseURL,
+                                                               boolean trial, String idempotencyKey) {
+        SessionCreateParams.Builder params = stripe.payments.subscriptionSessionParams(request, clientBaseURL, trial);
+        return customer.thenApplyAsync(c -> stripe.payments.createSession(params, c, idempotencyKey), executor);
+    }
+
+    public CompletableFuture<Subscription> cancelSubscription(String subscriptionId) {
+        return CompletableFuture.supplyAsync(() -> stripe.payments.cancelSubscription(subscriptionId), executor);
+    }
+
+    public CompletableFuture<Page<SubscriptionView>> listSubscriptions(CompletableFuture<Customer> customer, String startingAfter, long limit) {
+        return customer.thenApplyAsync(c -> stripe.payments.listSubscriptions(c.getId(), startingAfter, limit), executor);
+    }
+
+    public CompletableFuture<Page<InvoiceView>> listInvoices(CompletableFuture<Customer> customer, String startingAfter, long limit) {
+        return customer.thenApplyAsync(c -> stripe.payments.listInvoices(c.getId(), startingAfter, limit), executor);
+    }
+}
@@ -0,0 +1,158 @@
+package pro.misoft.demostripeintegration.web.payment;
+
+import com.stripe.model.Customer;
+import lombok.SneakyThrows;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import pro.misoft.demostripeintegration.common.ConcurrentCalls;
+import pro.misoft.demostripeintegration.errorhandling.ApiErrorFactory;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * Creates payment intents for many payment requests at once.
+ * <p>
+ * The batch is priced against one snapshot of the price table and every distinct customer email is resolved once,
+ * before any payment intent is created. Payment intents are then created concurrently, bounded by
+ * <code>payments.batch.max-concurrency</code>, and every result is reported as soon as it completes. A failed
+ * request never fails the rest of the batch.
+ */
+@Component
+public class BatchCheckout {
+
+    private static final Logger log = LoggerFactory.getLogger(BatchCheckout.class);
+    static final String SCOPE = "batch";
+
+    private final Stripe stripe;
+    private final ProductService productService;
+    private final ApiErrorFactory errorFactory;
+    private final int maxSize;
+    private final int maxConcurrency;
+    private final Duration deadline;
+
+    public BatchCheckout(Stripe stripe, ProductService productService, ApiErrorFactory errorFactory,
+                         @Value("${payments.batch.max-size:500}") int maxSize,
+                         @Value("${payments.batch.max-concurrency:16}") int maxConcurrency,
+                         @Value("${payments.batch.deadline:60s}") Duration deadline) {
+        this.stripe = stripe;
+        this.productService = productService;
+        this.errorFactory = errorFactory;
+        this.maxSize = maxSize;
+        this.maxConcurrency = maxConcurrency;
+        this.deadline = deadline;
+    }
+
+    @FunctionalInterface
+    public interface ResultSink {
+        void accept(BatchItemResult result) throws IOException;
+    }
+
+    /**
+     * Payment requests ready to be sent to Stripe, and the ones rejected while preparing the batch.
+     *
+     * @param idempotencyKey scoped client key or null
+     * @param locale         locale of the error messages, results are reported outside the request thread
+     */
+    record Batch(List<BatchItemResult> rejected, List<Item> items, String idempotencyKey, Locale locale) {
+    }
+
+    record Item(int index, PaymentRequest request, PriceTable.Total total, Customer customer) {
+    }
+
+    private record Priced(int index, PaymentRequest request, PriceTable.Total total, String email) {
+    }
+
+    /**
+     * Prices every payment request and finds or creates the customers of the batch.
+     *
+     * @throws IllegalArgumentException if the batch is empty or larger than <code>payments.batch.max-size</code>
+     */
+    @SneakyThrows
+    Batch prepare(List<PaymentRequest> requests, String clientKey, Locale locale) {
+        if (requests == null || requests.isEmpty() || requests.size() > maxSize) {
+            throw new IllegalArgumentException("Batch must have 1 to %d payment requests".formatted(maxSize));
+        }
+        String idempotencyKey = IdempotencyStore.scopedKey(SCOPE, clientKey);
+
+        PriceTable prices = productService.priceTable();
+        List<BatchItemResult> rejected = new ArrayList<>();
+        List<Priced> priced = new ArrayList<>(requests.size());
+        Map<String, PaymentRequest> firstRequestByEmail = new LinkedHashMap<>();
+        for (int i = 0; i < requests.size(); i++) {
+            PaymentRequest request = requests.get(i);
+            try {
+                if (request.customerEmail() == null || request.customerEmail().isBlank()) {
+                    throw new IllegalArgumentException("Customer email is required");
+                }
+                String email = CustomerCache.normalize(request.customerEmail());
+                priced.add(new Priced(i, request, prices.total(request.items()), email));
+                firstRequestByEmail.putIfAbsent(email, request);
+            } catch (IllegalArgumentException e) {
+                rejected.add(failed(i, e, locale));
+            }
+        }
+
+        List<PaymentRequest> customerRequests = new ArrayList<>(firstRequestByEmail.values());
+        Map<String, Customer> customers = new HashMap<>();
+        Map<String, Exception> customerFailures = new HashMap<>();
+        ConcurrentCalls.forEach(IntStream.range(0, customerRequests.size()).boxed().toList(), maxConcurrency, deadline,
+                ordinal -> {
+                    PaymentRequest request = customerRequests.get(ordinal);
+                    // the position of the email in the batch keeps retries of the same batch on the same key
+                    String customerKey = idempotencyKey == null ? null : idempotencyKey + ":customer:" + ordinal;
+                    return stripe.customers.findOrCreateCustomer(request.customerEmail(), request.customerName(), customerKey);
+                },
+                (index, customer, failure) -> {
+                    String email = CustomerCache.normalize(customerRequests.get(index).customerEmail());
+                    if (failure == null) {
+                        customers.put(email, customer);
+                    } else {
+                        customerFailures.put(email, failure);
+                    }
+                });
+
+        List<Item> items = new ArrayList<>(priced.size());
+        for (Priced request : priced) {
+            Customer customer = customers.get(request.email());
+            if (customer == null) {
+                rejected.add(failed(request.index(), customerFailures.get(request.email()), locale));
+            } else {
+                items.add(new Item(request.index(), request.request(), request.total(), customer));
+            }
+        }
+        return new Batch(rejected, items, idempotencyKey, locale);
+    }
+
+    /**
+     * Reports the rejected requests, then creates the payment intents and reports every result as it completes.
+     */
+    @SneakyThrows
+    void process(Batch batch, ResultSink sink) {
+        for (BatchItemResult result : batch.rejected()) {
+            sink.accept(result);
+        }
+        List<Item> items = batch.items();
+        ConcurrentCalls.forEach(items, maxConcurrency, deadline,
+                item -> stripe.payments.createPaymentIntent(item.request(), item.total(), item.customer(),
+                        batch.idempotencyKey() == null ? null : batch.idempotencyKey() + ":" + item.index()).getClientSecret(),
+                (index, clientSecret, failure) -> {
+                    int batchIndex = items.get(index).index();
+                    sink.accept(failure == null ? BatchItemResult.succeeded(batchIndex, clientSecret) : failed(batchIndex, failure, batch.locale()));
+                });
+    }
+
+    private BatchItemResult failed(int index, Exception e, Locale locale) {
+        log.info("Batch payment request {} failed", index, e);
+        return BatchItemResult.failed(index, errorFactory.error(e, locale));
+    }
+}
@@ -0,0 +1,22 @@
+package pro.misoft.demostripeintegration.web.payment;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import pro.misoft.demostripeintegration.errorhandling.ApiError;
+
+/**
+ * Outcome of one payment request of a batch checkout, either the client secret of the created payment intent or
+ * the error.
+ *
+ * @param index position of the payment request in the batch
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public record BatchItemResult(int index, String clientSecret, ApiError error) {
+
+    static BatchItemResult succeeded(int index, String clientSecret) {
+        return new BatchItemResult(index, clientSecret, null);
+    }
+
+    static BatchItemResult failed(int index, ApiError error) {
+        return new BatchItemResult(index, null, error);
+    }
+}
@@ -0,0 +1,106 @@
+package pro.misoft.demostripeintegration.web.payment;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Catalog loaded from <code>payments.catalog.file</code> into a {@link OffHeapPriceTable}, enabled with
+ * <code>payments.catalog.source=file</code>.
+ * <p>
+ * The file is checked for changes every <code>payments.catalog.reload-interval</code> and a changed file is loaded
+ * into a new table, which then replaces the current one with a single volatile write. Readers never wait for a
+ * reload and keep using the table they already got. A file that cannot be loaded at startup fails the startup, a
+ * reload that fails keeps the current table.
+ */
+@Component
+@ConditionalOnProperty(name = "payments.catalog.source", havingValue = "file")
+public class CatalogFileProductService implements ProductService {
+
+    private static final Logger log = LoggerFactory.getLogger(CatalogFileProductService.class);
+
+    private record Version(Object fileKey, long lastModified, long size) {
+
+        static Version of(BasicFileAttributes attributes) {
+            return new Version(attributes.fileKey(), attributes.lastModifiedTime().toMillis(), attributes.size());
+        }
+    }
+
+    private final Path file;
+    private final long reloadIntervalMillis;
+    private final MeterRegistry meterRegistry;
+    private final Thread reloader;
+    private volatile OffHeapPriceTable table;
+    private Version version;
+
+    public CatalogFileProductService(MeterRegistry meterRegistry,
+                                     @Value("${payments.catalog.file}") Path file,
+                                     @Value("${payments.catalog.reload-interval:10s}") Duration reloadInterval) throws IOException {
+        this.file = file;
+        this.reloadIntervalMillis = reloadInterval.toMillis();
+        this.meterRegistry = meterRegistry;
+        this.version = Version.of(Files.readAttributes(file, BasicFileAttributes.class));
+        this.table = load();
+        Gauge.builder("payments.catalog.products", this, service -> service.table.size())
+                .description("Products in the catalog file")
+                .register(meterRegistry);
+        this.reloader = Thread.ofVirtual().name("product-catalog-reloader").start(this::reloadOnChange);
+    }
+
+    @Override
+    public PriceTable priceTable() {
+        return table;
+    }
+
+    private OffHeapPriceTable load() throws IOException {
+        long start = System.nanoTime();
+        OffHeapPriceTable loaded = OffHeapPriceTable.load(file);
+        log.info("Loaded {} products from catalog file {} in {} ms", loaded.size(), file, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return loaded;
+    }
+
+    /**
+     * Runs on the reloader thread only. A version that failed to load is not retried until the file changes again.
+     */
+    private void reloadOnChange() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(reloadIntervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            String outcome = null;
+            try {
+                Version current = Version.of(Files.readAttributes(file, BasicFileAttributes.class));
+                if (!current.equals(version)) {
+                    version = current;
+                    table = load();
+                    outcome = "success";
+                }
+            } catch (IOException | RuntimeException e) {
+                outcome = "failure";
+                log.warn("Failed to reload catalog file {}, keeping the current catalog", file, e);
+            }
+            if (outcome != null) {
+                meterRegistry.counter("payments.catalog.reloads", "outcome", outcome).increment();
+            }
+        }
+    }
+
+    @PreDestroy
+    void stop() {
+        reloader.interrupt();
+    }
+}
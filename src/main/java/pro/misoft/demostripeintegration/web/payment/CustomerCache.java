@@ -0,0 +1,102 @@
+package pro.misoft.demostripeintegration.web.payment;
+
+import com.stripe.model.Customer;
+import com.stripe.model.Event;
+import com.stripe.model.StripeObject;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import pro.misoft.demostripeintegration.common.BoundedCache;
+import pro.misoft.demostripeintegration.common.BoundedCacheMetrics;
+import pro.misoft.demostripeintegration.common.SingleFlight;
+
+import java.time.Duration;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+
+/**
+ * Local cache of Stripe customers keyed by normalized email.
+ * <p>
+ * Saves a <code>Customer.search</code> round-trip for returning customers and hides the eventual consistency
+ * of the Stripe search index right after a customer was created. Concurrent lookups of the same missing email
+ * are coalesced into a single remote lookup/create, so parallel checkouts of a new customer do not create duplicates.
+ */
+@Component
+public class CustomerCache implements StripeEventListener {
+
+    private final BoundedCache<String, Customer> cache;
+    private final SingleFlight<String, Customer> loads = new SingleFlight<>();
+
+    public CustomerCache(MeterRegistry meterRegistry,
+                         @Value("${stripe.customers.cache.max-size:10000}") int maxSize,
+                         @Value("${stripe.customers.cache.ttl:10m}") Duration ttl) {
+        this.cache = new BoundedCache<>(maxSize, ttl);
+        BoundedCacheMetrics.monitor(meterRegistry, cache, "stripe.customers");
+        FunctionCounter.builder("stripe.customers.loads.coalesced", loads, SingleFlight::coalescedCount)
+                .description("Customer lookups served by another caller's in-flight lookup")
+                .register(meterRegistry);
+        Gauge.builder("stripe.customers.loads.inflight", loads, SingleFlight::inFlightCount)
+                .register(meterRegistry);
+    }
+
+    public Customer get(String email) {
+        return cache.get(normalize(email));
+    }
+
+    /**
+     * Returns the cached customer or runs the loader once for all concurrent callers of the same email
+     * and caches its result.
+     */
+    public Customer getOrLoad(String email, Callable<Customer> loader) throws Exception {
+        String key = normalize(email);
+        Customer cached = cache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        return loads.execute(key, () -> {
+            // a previous flight may have completed between the lookup above and joining this one, loading again
+            // would search the eventually consistent index and create a duplicate customer
+            Customer completed = cache.get(key);
+            if (completed != null) {
+                return completed;
+            }
+            Customer loaded = loader.call();
+            put(loaded);
+            return loaded;
+        });
+    }
+
+    public void put(Customer customer) {
+        if (customer.getEmail() != null) {
+            cache.put(normalize(customer.getEmail()), customer);
+        }
+    }
+
+    public void evict(String email) {
+        cache.invalidate(normalize(email));
+    }
+
+    /**
+     * Evicts by Stripe customer id, used when a customer changed and its previous email is not known.
+     */
+    public void evictById(String customerId) {
+        cache.invalidateIf((email, customer) -> customerId.equals(customer.getId()));
+    }
+
+    /**
+     * Evicts customers changed or deleted outside of this service. The entry is not replaced with the event's
+     * customer because events may arrive out of order, the next lookup loads the current state instead.
+     */
+    @Override
+    public void onEvent(Event event, StripeObject object) {
+        if (object instanceof Customer customer) {
+            evictById(customer.getId());
+        }
+    }
+
+    static String normalize(String email) {
+        return email.trim().toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,160 @@
+package pro.misoft.demostripeintegration.web.payment;
+
+import com.stripe.model.Event;
+import com.stripe.model.Invoice;
+import com.stripe.model.StripeObject;
+import com.stripe.model.Subscription;
+import com.stripe.model.checkout.Session;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.AsyncConfigurer;
+import org.springframework.stereotype.Component;
+import pro.misoft.demostripeintegration.common.BoundedCache;
+import pro.misoft.demostripeintegration.common.BoundedCacheMetrics;
+import pro.misoft.demostripeintegration.common.SingleFlight;
+
+import java.time.Duration;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read-through cache of the subscription and invoice pages of a customer, keyed by customer id, view and page.
+ * Bounded by the total number of rows of the cached pages, <code>payments.views.cache.max-rows</code>.
+ * <p>
+ * A page is fresh for <code>payments.views.cache.ttl</code>. After that it is served stale for up to
+ * <code>payments.views.cache.max-stale</code> while it is reloaded in the background on the async executor, and
+ * only a page older than both is loaded by the caller. Concurrent loads of the same page are coalesced. All pages of
+ * a customer are invalidated by subscription, invoice and checkout session events and by changes made by this
+ * service. A load that started before an invalidation of its customer does not leave its result in the cache.
+ */
+@Component
+public class CustomerViewCache implements StripeEventListener {
+
+    private static final Logger log = LoggerFactory.getLogger(CustomerViewCache.class);
+
+    enum View {SUBSCRIPTIONS, INVOICES}
+
+    private record Key(String customerId, View view, String startingAfter, long limit) {
+    }
+
+    private record Cached(Page<?> page, long loadedAt) {
+    }
+
+    private final BoundedCache<Key, Cached> cache;
+    private final BoundedCache<String, Long> invalidatedAt;
+    private final SingleFlight<Key, Page<?>> loads = new SingleFlight<>();
+    private final Set<Key> refreshing = ConcurrentHashMap.newKeySet();
+    private final Executor executor;
+    private final long ttlNanos;
+    private final MeterRegistry meterRegistry;
+    private final Counter staleServed;
+
+    public CustomerViewCache(AsyncConfigurer asyncConfigurer, MeterRegistry meterRegistry,
+                             @Value("${payments.views.cache.max-rows:100000}") long maxRows,
+                             @Value("${payments.views.cache.ttl:30s}") Duration ttl,
+                             @Value("${payments.views.cache.max-stale:5m}") Duration maxStale) {
+        this.executor = asyncConfigurer.getAsyncExecutor();
+        this.ttlNanos = ttl.toNanos();
+        this.cache = new BoundedCache<>(maxRows, ttl.plus(maxStale), cached -> cached.page().data().size());
+        // a customer with cached pages has at least one row cached
+        this.invalidatedAt = new BoundedCache<>(maxRows, ttl.plus(maxStale), at -> 1);
+        this.meterRegistry = meterRegistry;
+        BoundedCacheMetrics.monitor(meterRegistry, cache, "payments.views");
+        Gauge.builder("payments.views.rows", cache, BoundedCache::weight)
+                .description("Rows of the cached pages")
+                .register(meterRegistry);
+        this.staleServed = Counter.builder("payments.views.stale")
+                .description("Pages served stale while being refreshed in the background")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Returns the cached page, refreshing it in the background if it is stale, or loads and caches it.
+     */
+    @SuppressWarnings("unchecked")
+    <T> Page<T> get(String customerId, View view, String startingAfter, long limit, Callable<Page<T>> loader) throws Exception {
+        Key key = new Key(customerId, view, startingAfter, limit);
+        Cached cached = cache.get(key);
+        if (cached != null) {
+            if (System.nanoTime() - cached.loadedAt() >= ttlNanos) {
+                staleServed.increment();
+                refreshInBackground(key, loader);
+            }
+            return (Page<T>) cached.page();
+        }
+        return (Page<T>) loads.execute(key, () -> load(key, loader));
+    }
+
+    /**
+     * Invalidates all cached pages of the customer, including the ones being loaded.
+     */
+    public void invalidate(String customerId) {
+        if (customerId == null) {
+            return;
+        }
+        invalidatedAt.put(customerId, System.nanoTime());
+        cache.invalidateIf((key, cached) -> key.customerId().equals(customerId));
+    }
+
+    @Override
+    public void onEvent(Event event, StripeObject object) {
+        switch (object) {
+            case Subscription subscription -> invalidate(subscription.getCustomer());
+            case Invoice invoice -> invalidate(invoice.getCustomer());
+            case Session session -> invalidate(session.getCustomer());
+            default -> {
+            }
+        }
+    }
+
+    private Page<?> load(Key key, Callable<? extends Page<?>> loader) throws Exception {
+        long start = System.nanoTime();
+        Page<?> page = loader.call();
+        cache.put(key, new Cached(page, start));
+        // checked after the put, so that an invalidation either sees the entry or is seen here
+        Long invalidated = invalidatedAt.get(key.customerId());
+        if (invalidated != null && invalidated - start >= 0) {
+            cache.invalidate(key);
+        }
+        return page;
+    }
+
+    private void refreshInBackground(Key key, Callable<? extends Page<?>> loader) {
+        if (!refreshing.add(key)) {
+            return;
+        }
+        try {
+            executor.execute(() -> refresh(key, loader));
+        } catch (RuntimeException e) {
+            refreshing.remove(key);
+            log.warn("Background refresh of {} of customer {} not started", key.view(), key.customerId(), e);
+        }
+    }
+
+    private void refresh(Key key, Callable<? extends Page<?>> loader) {
+        long start = System.nanoTime();
+        String outcome = "success";
+        try {
+            loads.execute(key, () -> load(key, loader));
+        } catch (Exception e) {
+            outcome = "failure";
+            log.warn("Background refresh of {} of customer {} failed, the stale page is kept", key.view(), key.customerId(), e);
+        } finally {
+            refreshing.remove(key);
+            Timer.builder("payments.views.refresh")
+                    .description("Background refresh of stale pages")
+                    .tags("view", key.view().name().toLowerCase(Locale.ROOT), "outcome", outcome)
+                    .register(meterRegistry)
+                    .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package pro.misoft.demostripeintegration.web.payment;
+
+import com.stripe.model.Product;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.SneakyThrows;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import pro.misoft.demostripeintegration.common.BoundedCache;
+import pro.misoft.demostripeintegration.common.BoundedCacheMetrics;
+import pro.misoft.demostripeintegration.common.IdempotencyKeyReusedException;
+import pro.misoft.demostripeintegration.common.SingleFlight;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Local replay store for requests carrying an <code>Idempotency-Key</code> header.
+ * <p>
+ * A retry of a completed request is answered from the store without any Stripe call, a retry arriving while the
+ * first request is still running waits for it and gets the same result. Failed requests are not stored, their retry
+ * runs again and Stripe replays or completes the remote calls made under the same keys.
+ * <p>
+ * Every key is stored with the fingerprint of its request. A request reusing a key with another fingerprint, e.g. for
+ * another cart or customer, is rejected with {@link IdempotencyKeyReusedException} rather than given the result of the
+ * first request, as Stripe rejects a key reused with other parameters.
+ */
+@Component
+public class IdempotencyStore {
+
+    public static final String HEADER = "Idempotency-Key";
+    // leaves room for scope and operation suffixes within Stripe's 255 characters limit
+    private static final int MAX_KEY_LENGTH = 200;
+
+    private record Completed(String fingerprint, Object result) {
+    }
+
+    private final BoundedCache<String, Completed> completed;
+    private final SingleFlight<String, Completed> inFlight = new SingleFlight<>();
+    private final Map<String, CompletableFuture<Completed>> inFlightAsync = new ConcurrentHashMap<>();
+    private final AtomicLong coalescedAsync = new AtomicLong();
+    private final Counter replays;
+
+    public IdempotencyStore(MeterRegistry meterRegistry,
+                            @Value("${payments.idempotency.max-size:10000}") int maxSize,
+                            @Value("${payments.idempotency.ttl:24h}") Duration ttl) {
+        this.completed = new BoundedCache<>(maxSize, ttl);
+        this.replays = meterRegistry.counter("payments.idempotency.replays");
+        BoundedCacheMetrics.monitor(meterRegistry, completed, "payments.idempotency");
+        FunctionCounter.builder("payments.idempotency.coalesced", this, store -> store.inFlight.coalescedCount() + store.coalescedAsync.get())
+                .description("Duplicate requests parked on the in-flight original")
+                .register(meterRegistry);
+    }
+
+    @FunctionalInterface
+    public interface Action<T> {
+        /**
+         * @param idempotencyKey key scoped to the endpoint to derive Stripe idempotency keys from, null if the client sent none
+         */
+        T run(String idempotencyKey);
+    }
+
+    /**
+     * Validates the client key and scopes it to the endpoint.
+     *
+     * @return null if the client sent no key
+     */
+    static String scopedKey(String scope, String clientKey) {
+        if (clientKey == null) {
+            return null;
+        }
+        if (clientKey.isBlank() || clientKey.length() > MAX_KEY_LENGTH) {
+            throw new IllegalArgumentException("%s header must have 1 to %d characters".formatted(HEADER, MAX_KEY_LENGTH));
+        }
+        return scope + ":" + clientKey;
+    }
+
+    /**
+     * Fingerprint of a checkout request: its items, the normalized customer email and the other fields, so that a key
+     * reused for another cart or customer does not match.
+     */
+    @SneakyThrows
+    static String fingerprint(PaymentRequest request) {
+        StringBuilder canonical = new StringBuilder();
+        if (request.items() != null) {
+            for (Product item : request.items()) {
+                canonical.append(item == null ? null : item.getId()).append('\u001f');
+            }
+        }
+        canonical.append('\u001e').append(request.customerEmail() == null ? null : CustomerCache.normalize(request.customerEmail()))
+                .append('\u001e').append(request.customerName())
+                .append('\u001e').append(request.subscriptionId())
+                .append('\u001e').append(request.invoiceNeeded());
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(canonical.toString().getBytes(StandardCharsets.UTF_8));
+        return HexFormat.of().formatHex(digest);
+    }
+
+    /**
+     * Runs the action once per scope and client key. Without a client key the action always runs.
+     *
+     * @param scope       distinguishes endpoints so that the same client key used on two endpoints does not collide
+     * @param fingerprint fingerprint of the request, see {@link #fingerprint(PaymentRequest)}
+     * @throws IdempotencyKeyReusedException if the key was used with a request of another fingerprint
+     */
+    @SneakyThrows
+    @SuppressWarnings("unchecked")
+    public <T> T execute(String scope, String clientKey, String fingerprint, Action<T> action) {
+        String key = scopedKey(scope, clientKey);
+        if (key == null) {
+            return action.run(null);
+        }
+        Completed stored = completed.get(key);
+        if (stored != null) {
+            Object result = matching(key, stored, fingerprint);
+            replays.increment();
+            return (T) result;
+        }
+        Completed result = inFlight.execute(key, () -> {
+            // the original may have completed between the lookup above and joining the flight
+            Completed replayed = completed.get(key);
+            if (replayed != null) {
+                replays.increment();
+                return replayed;
+            }
+            Completed value = new Completed(fingerprint, action.run(key));
+            completed.put(key, value);
+            return value;
+        });
+        // a duplicate with another fingerprint joined the flight without running, it is rejected now
+        return (T) matching(key, result, fingerprint);
+    }
+
+    /**
+     * Non-blocking variant of {@link #execute}: a duplicate of a running request gets the future of the original
+     * instead of parking a thread on it.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> CompletableFuture<T> executeAsync(String scope, String clientKey, String fingerprint, Function<String, CompletableFuture<T>> action) {
+        String key = scopedKey(scope, clientKey);
+        if (key == null) {
+            return action.apply(null);
+        }
+        Completed stored = completed.get(key);
+        if (stored != null) {
+            return replayed(key, stored, fingerprint);
+        }
+        CompletableFuture<Completed> flight = new CompletableFuture<>();
+        CompletableFuture<Completed> running = inFlightAsync.putIfAbsent(key, flight);
+        if (running != null) {
+            coalescedAsync.incrementAndGet();
+            return running.thenApply(original -> (T) matching(key, original, fingerprint));
+        }
+        // the original may have completed between the lookup above and joining the flight
+        Completed replayed = completed.get(key);
+        if (replayed != null) {
+            inFlightAsync.remove(key, flight);
+            flight.complete(replayed);
+            return replayed(key, replayed, fingerprint);
+        }
+        CompletableFuture<T> started;
+        try {
+            started = action.apply(key);
+        } catch (RuntimeException e) {
+            started = CompletableFuture.failedFuture(e);
+        }
+        started.whenComplete((value, failure) -> {
+            Completed result = failure == null ? new Completed(fingerprint, value) : null;
+            if (result != null) {
+                completed.put(key, result);
+            }
+            // removed only after the result is stored, so that a retry finds either the flight or the result
+            inFlightAsync.remove(key, flight);
+            if (result != null) {
+                flight.complete(result);
+            } else {
+                flight.completeExceptionally(failure);
+            }
+        });
+        return flight.thenApply(result -> (T) result.result());
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> CompletableFuture<T> replayed(String key, Completed stored, String fingerprint) {
+        try {
+            Object result = matching(key, stored, fingerprint);
+            replays.increment();
+            return CompletableFuture.completedFuture((T) result);
+        } catch (IdempotencyKeyReusedException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private static Object matching(String key, Completed completed, String fingerprint) {
+        if (!completed.fingerprint().equals(fingerprint)) {
+            throw new IdempotencyKeyReusedException("Idempotency key [%s] was already used with a different request".formatted(key));
+        }
+        return completed.result();
+    }
+}
@@ -0,0 +1,18 @@
+package pro.misoft.demostripeintegration.web.payment;
+
+import com.stripe.model.Invoice;
+import pro.misoft.demostripeintegration.common.Money;
+
+/**
+ * @param amount invoice total in currency major units, e.g. <code>29.99</code>
+ * @param url    link to the invoice PDF
+ */
+public record InvoiceView(
+        String number,
+        String amount,
+        String url) {
+
+    static InvoiceView of(Invoice invoice) {
+        return new InvoiceView(invoice.getNumber(), Money.format(invoice.getTotal(), invoice.getCurrency()), invoice.getInvoicePdf());
+    }
+}
@@ -0,0 +1,228 @@
+package pro.misoft.demostripeintegration.web.payment;
+
+import com.stripe.exception.ApiConnectionException;
+import com.stripe.exception.StripeException;
+import com.stripe.net.HttpContent;
+import com.stripe.net.HttpHeaders;
+import com.stripe.net.StripeRequest;
+import com.stripe.net.StripeResponse;
+import com.stripe.net.StripeResponseStream;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationStartedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import pro.misoft.demostripeintegration.common.BackpressureException;
+import pro.misoft.demostripeintegration.common.Deadline;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stripe SDK transport built on {@link HttpClient java.net.http.HttpClient} instead of the SDK's default
+ * <code>HttpURLConnection</code> client: HTTP/2 multiplexing when the server supports it, a keep-alive pool for
+ * HTTP/1.1, explicit timeouts and virtual threads for the client's internal work.
+ * <p>
+ * Connections to the API base are opened during startup, before the application reports readiness, so that the first
+ * checkout after a deploy does not pay for DNS and TLS.
+ * <p>
+ * The connection pool of <code>java.net.http</code> is configured by JVM-wide system properties, not by this bean:
+ * <code>-Djdk.httpclient.keepalive.timeout</code> (seconds) and <code>-Djdk.httpclient.connectionPoolSize</code>
+ * (0 for unbounded), set in the Dockerfile and build.gradle. The values in effect are logged at startup.
+ */
+@Component
+public class JdkStripeHttpClient extends com.stripe.net.HttpClient {
+
+    private static final Logger log = LoggerFactory.getLogger(JdkStripeHttpClient.class);
+    // headers managed by java.net.http itself, setting them explicitly is rejected
+    private static final Set<String> RESTRICTED_HEADERS = Set.of("connection", "content-length", "expect", "host", "upgrade");
+    // JDK defaults, see jdk.internal.net.http.ConnectionPool
+    private static final String DEFAULT_KEEP_ALIVE_SECONDS = "30";
+    private static final String DEFAULT_POOL_SIZE = "0";
+
+    private final HttpClient client;
+    private final Duration requestTimeout;
+    private final String apiBase;
+    private final int warmUpConnections;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, AtomicInteger> inFlightByHost = new ConcurrentHashMap<>();
+
+    public JdkStripeHttpClient(StripeLimitsProperties limits, MeterRegistry meterRegistry,
+                               @Value("${stripe.api.base:https://api.stripe.com}") String apiBase,
+                               @Value("${stripe.http.warm-up-connections:4}") int warmUpConnections) {
+        log.info("Stripe HTTP connection pool: keep-alive {}s, size {} (0 is unbounded)",
+                System.getProperty("jdk.httpclient.keepalive.timeout", DEFAULT_KEEP_ALIVE_SECONDS),
+                System.getProperty("jdk.httpclient.connectionPoolSize", DEFAULT_POOL_SIZE));
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(limits.connectTimeout())
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .executor(Executors.newVirtualThreadPerTaskExecutor())
+                .build();
+        this.requestTimeout = limits.readTimeout();
+        this.apiBase = apiBase;
+        this.warmUpConnections = warmUpConnections;
+        this.meterRegistry = meterRegistry;
+    }
+
+    String apiBase() {
+        return apiBase;
+    }
+
+    @Override
+    public StripeResponse request(StripeRequest request) throws StripeException {
+        HttpResponse<String> response = send(request, HttpResponse.BodyHandlers.ofString());
+        return new StripeResponse(response.statusCode(), HttpHeaders.of(response.headers().map()), response.body());
+    }
+
+    @Override
+    public StripeResponseStream requestStream(StripeRequest request) throws StripeException {
+        HttpResponse<InputStream> response = send(request, HttpResponse.BodyHandlers.ofInputStream());
+        return new StripeResponseStream(response.statusCode(), HttpHeaders.of(response.headers().map()), response.body());
+    }
+
+    private <T> HttpResponse<T> send(StripeRequest request, HttpResponse.BodyHandler<T> bodyHandler) throws StripeException {
+        Duration timeout = Deadline.cap(requestTimeout);
+        // a timeout caused by the deadline of the API request says nothing about Stripe, it must not open the circuit
+        boolean deadlineBound = timeout.compareTo(requestTimeout) < 0;
+        if (deadlineBound && (timeout.isNegative() || timeout.isZero())) {
+            throw new BackpressureException("Request %s passed before the Stripe request".formatted(Deadline.current()));
+        }
+        HttpRequest httpRequest = toHttpRequest(request, timeout);
+        String host = httpRequest.uri().getHost();
+        AtomicInteger inFlight = inFlight(host);
+        long start = System.nanoTime();
+        inFlight.incrementAndGet();
+        String status = "IO_ERROR";
+        String protocol = "UNKNOWN";
+        try {
+            HttpResponse<T> response = client.send(httpRequest, bodyHandler);
+            status = String.valueOf(response.statusCode());
+            protocol = response.version().name();
+            return response;
+        } catch (HttpTimeoutException e) {
+            if (deadlineBound) {
+                throw new BackpressureException("Request %s passed during the Stripe request".formatted(Deadline.current()));
+            }
+            throw new ApiConnectionException("IOException during API request to Stripe (%s): %s".formatted(apiBase, e.getMessage()), e);
+        } catch (IOException e) {
+            throw new ApiConnectionException("IOException during API request to Stripe (%s): %s".formatted(apiBase, e.getMessage()), e);
+        } catch (InterruptedException e) {
+            // cancelled by the caller, e.g. a failed sibling of ConcurrentCalls, not a transport failure of Stripe
+            Thread.currentThread().interrupt();
+            CancellationException cancelled = new CancellationException("Interrupted during API request to Stripe");
+            cancelled.initCause(e);
+            throw cancelled;
+        } finally {
+            inFlight.decrementAndGet();
+            Timer.builder("stripe.http.requests")
+                    .tags("host", host, "method", httpRequest.method(), "status", status, "protocol", protocol)
+                    .register(meterRegistry)
+                    .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private HttpRequest toHttpRequest(StripeRequest request, Duration timeout) throws StripeException {
+        HttpRequest.Builder builder;
+        try {
+            builder = HttpRequest.newBuilder(request.url().toURI()).timeout(timeout);
+        } catch (URISyntaxException e) {
+            throw new ApiConnectionException("Invalid Stripe request URL " + request.url(), e);
+        }
+        boolean contentTypeSet = false;
+        for (Map.Entry<String, List<String>> header : request.headers().map().entrySet()) {
+            String name = header.getKey().toLowerCase(Locale.ROOT);
+            if (RESTRICTED_HEADERS.contains(name)) {
+                continue;
+            }
+            contentTypeSet |= name.equals("content-type");
+            for (String value : header.getValue()) {
+                builder.header(header.getKey(), value);
+            }
+        }
+        // added by the SDK's own clients rather than to the request, see HttpURLConnectionClient
+        if (request.headers().firstValue("User-Agent").isEmpty()) {
+            builder.header("User-Agent", buildUserAgentString());
+        }
+        if (request.headers().firstValue("X-Stripe-Client-User-Agent").isEmpty()) {
+            builder.header("X-Stripe-Client-User-Agent", buildXStripeClientUserAgentString());
+        }
+
+        HttpContent content = request.content();
+        if (content == null) {
+            builder.method(request.method().name(), HttpRequest.BodyPublishers.noBody());
+        } else {
+            if (!contentTypeSet) {
+                builder.header("Content-Type", content.contentType());
+            }
+            builder.method(request.method().name(), HttpRequest.BodyPublishers.ofByteArray(content.byteArrayContent()));
+        }
+        return builder.build();
+    }
+
+    private AtomicInteger inFlight(String host) {
+        return inFlightByHost.computeIfAbsent(host, h -> {
+            AtomicInteger counter = new AtomicInteger();
+            Gauge.builder("stripe.http.requests.inflight", counter, AtomicInteger::get)
+                    .tag("host", h)
+                    .register(meterRegistry);
+            return counter;
+        });
+    }
+
+    /**
+     * Opens connections to the API base before readiness goes green. Any HTTP response counts as success, only
+     * the established connection matters. Failures are logged and never block the startup.
+     */
+    @Order(Ordered.HIGHEST_PRECEDENCE)
+    @EventListener(ApplicationStartedEvent.class)
+    public void warmUp() {
+        if (warmUpConnections <= 0) {
+            return;
+        }
+        HttpRequest ping = HttpRequest.newBuilder(URI.create(apiBase + "/v1"))
+                .timeout(requestTimeout)
+                .header("User-Agent", buildUserAgentString())
+                .GET()
+                .build();
+        long start = System.nanoTime();
+        List<CompletableFuture<HttpResponse<Void>>> pings = new ArrayList<>(warmUpConnections);
+        for (int i = 0; i < warmUpConnections; i++) {
+            pings.add(client.sendAsync(ping, HttpResponse.BodyHandlers.discarding()));
+        }
+        try {
+            CompletableFuture.allOf(pings.toArray(CompletableFuture[]::new)).get(requestTimeout.toMillis(), TimeUnit.MILLISECONDS);
+            log.info("Warmed up {} connections to {} using {} in {} ms", warmUpConnections, apiBase,
+                    pings.getFirst().join().version(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            log.warn("Connection warm up to {} failed, first Stripe calls will open connections on demand", apiBase, e);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package pro.misoft.demostripeintegration.web.payment;
+
+import com.stripe.model.Customer;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.List;
+
+/**
+ * Reads the payment intents, checkout sessions, invoices and subscriptions of {@link PaymentLedger}, without calling
+ * Stripe apart from finding the customer of an email not cached yet. Present only when the ledger is enabled.
+ */
+@RestController
+@ConditionalOnProperty(name = "payments.ledger.enabled", havingValue = "true")
+@RequestMapping("/v1/payments/ledger")
+public class LedgerApi {
+
+    private final Stripe stripe;
+    private final PaymentLedger ledger;
+
+    public LedgerApi(Stripe stripe, PaymentLedger ledger) {
+        this.stripe = stripe;
+        this.ledger = ledger;
+    }
+
+    @GetMapping
+    public ResponseEntity<List<LedgerEntry>> customerEntries(@RequestParam String customerEmail) {
+        Customer customer = stripe.customers.findCustomerByEmail(customerEmail);
+        return ResponseEntity.ok(customer == null ? List.of() : ledger.byCustomer(customer.getId()));
+    }
+
+    @GetMapping("/{id}")
+    public ResponseEntity<LedgerEntry> entry(@PathVariable String id) {
+        LedgerEntry entry = ledger.get(id);
+        return entry == null ? ResponseEntity.notFound().build() : ResponseEntity.ok(entry);
+    }
+}
@@ -0,0 +1,26 @@
+package pro.misoft.demostripeintegration.web.payment;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * Latest known state of a Stripe object created by this service, as kept by {@link PaymentLedger}.
+ *
+ * @param object   Stripe object type, e.g. <code>payment_intent</code>, <code>checkout.session</code>,
+ *                 <code>invoice</code> or <code>subscription</code>
+ * @param amount   amount in currency minor units, absent for subscriptions
+ * @param created  creation time at Stripe in epoch seconds
+ * @param updated  time of the API response or event the state was taken from, in epoch seconds
+ * @param revision ledger-wide sequence number of the change, the highest revision of an object wins on recovery
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public record LedgerEntry(
+        String id,
+        String object,
+        String customerId,
+        Long amount,
+        String currency,
+        String status,
+        long created,
+        long updated,
+        long revision) {
+}
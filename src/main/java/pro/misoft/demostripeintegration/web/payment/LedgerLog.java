@@ -0,0 +1,201 @@
+package pro.misoft.demostripeintegration.web.payment;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Files of {@link PaymentLedger}: append-only logs of entries as newline delimited JSON and snapshots of all entries,
+ * both numbered by generation.
+ * <p>
+ * A snapshot is taken by starting the log of the next generation and then writing all entries to
+ * <code>snapshot-&lt;generation&gt;</code>, so the snapshot of a generation contains everything written to the logs
+ * before it. Recovery loads the latest complete snapshot and replays the logs of its generation and later ones,
+ * then starts a new log, since the last one may end with a partially written line. Entries evicted from memory are
+ * appended to <code>history.ndjson</code>, which is neither replayed nor deleted. Not thread safe, used by the ledger
+ * writer thread only, apart from recovery at startup.
+ */
+class LedgerLog implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(LedgerLog.class);
+    private static final Pattern FILE = Pattern.compile("(log|snapshot)-(\\d+)\\.ndjson");
+    static final String HISTORY = "history.ndjson";
+
+    private final Path dir;
+    private final boolean fsync;
+    private final ObjectWriter writer;
+    private final ObjectReader reader;
+    private long generation;
+    private FileChannel channel;
+
+    LedgerLog(Path dir, ObjectMapper objectMapper, boolean fsync) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        this.fsync = fsync;
+        this.writer = objectMapper.writerFor(LedgerEntry.class);
+        this.reader = objectMapper.readerFor(LedgerEntry.class);
+    }
+
+    /**
+     * Passes every recovered entry to <code>replay</code>, the latest snapshot first and then the logs in order,
+     * and opens a new log for appending.
+     *
+     * @return number of entries read
+     */
+    long recover(Consumer<LedgerEntry> replay) throws IOException {
+        TreeMap<Long, Path> logs = new TreeMap<>();
+        TreeMap<Long, Path> snapshots = new TreeMap<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : files.toList()) {
+                Matcher matcher = FILE.matcher(file.getFileName().toString());
+                if (matcher.matches()) {
+                    ("log".equals(matcher.group(1)) ? logs : snapshots).put(Long.parseLong(matcher.group(2)), file);
+                } else if (file.getFileName().toString().endsWith(".tmp")) {
+                    Files.delete(file); // snapshot interrupted by a crash
+                }
+            }
+        }
+
+        long read = 0;
+        long snapshotGeneration = snapshots.isEmpty() ? 0 : snapshots.lastKey();
+        if (!snapshots.isEmpty()) {
+            read += read(snapshots.lastEntry().getValue(), replay);
+        }
+        for (Path file : logs.tailMap(snapshotGeneration, true).values()) {
+            read += read(file, replay);
+        }
+
+        generation = Math.max(snapshotGeneration, logs.isEmpty() ? 0 : logs.lastKey());
+        startNextGeneration();
+        deleteBefore(snapshotGeneration);
+        return read;
+    }
+
+    /**
+     * Appends the entries with a single write, forced to disk if <code>fsync</code> is enabled.
+     */
+    void append(List<LedgerEntry> entries) throws IOException {
+        write(channel, entries);
+        if (fsync) {
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Appends entries evicted from memory to the history file, always forced to disk since the next snapshot drops
+     * them. An entry may be archived twice if the process crashed before that snapshot, readers of the history keep
+     * the highest revision of an id.
+     */
+    void archive(List<LedgerEntry> entries) throws IOException {
+        try (FileChannel out = FileChannel.open(dir.resolve(HISTORY), StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE)) {
+            write(out, entries);
+            out.force(false);
+        }
+    }
+
+    /**
+     * Writes a snapshot of the entries and deletes the files it makes obsolete.
+     *
+     * @param entries all entries, read after this method started the next log
+     */
+    void snapshot(Collection<LedgerEntry> entries) throws IOException {
+        startNextGeneration();
+        Path snapshot = dir.resolve("snapshot-%d.ndjson".formatted(generation));
+        Path tmp = dir.resolve(snapshot.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            OutputStream buffered = new BufferedOutputStream(Channels.newOutputStream(out), 64 * 1024);
+            for (LedgerEntry entry : entries) {
+                buffered.write(writer.writeValueAsBytes(entry));
+                buffered.write('\n');
+            }
+            buffered.flush();
+            out.force(true);
+        }
+        Files.move(tmp, snapshot, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        deleteBefore(generation);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    private void startNextGeneration() throws IOException {
+        FileChannel previous = channel;
+        generation++;
+        channel = FileChannel.open(dir.resolve("log-%d.ndjson".formatted(generation)), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    private void write(FileChannel out, List<LedgerEntry> entries) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(entries.size() * 256);
+        for (LedgerEntry entry : entries) {
+            buffer.write(writer.writeValueAsBytes(entry));
+            buffer.write('\n');
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(buffer.toByteArray());
+        while (bytes.hasRemaining()) {
+            out.write(bytes);
+        }
+    }
+
+    private long read(Path file, Consumer<LedgerEntry> replay) throws IOException {
+        long read = 0;
+        int corrupt = 0;
+        try (BufferedReader lines = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            for (String line = lines.readLine(); line != null; line = lines.readLine()) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                try {
+                    replay.accept(reader.readValue(line));
+                    read++;
+                } catch (IOException e) {
+                    // typically the last line of a log written while the process crashed
+                    corrupt++;
+                }
+            }
+        }
+        if (corrupt > 0) {
+            log.warn("Skipped {} unreadable ledger records of {}", corrupt, file);
+        }
+        return read;
+    }
+
+    private void deleteBefore(long keptGeneration) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : files.toList()) {
+                Matcher matcher = FILE.matcher(file.getFileName().toString());
+                if (matcher.matches() && Long.parseLong(matcher.group(2)) < keptGeneration) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,379 @@
+package pro.misoft.demostripeintegration.web.payment;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Price table of a catalog file, kept off the heap: the file is read into a direct buffer and indexed by off-heap
+ * tables, so that the catalog size does not drive heap size or GC work.
+ * <p>
+ * The file is UTF-8 text with a header line and one product per line: <code>id,unit_amount,currency,name</code>.
+ * Ids are printable ASCII without commas, amounts are in currency minor units and the name is the rest of the line,
+ * so it may contain commas. A name may also be enclosed in double quotes, with inner quotes doubled, as spreadsheets
+ * export it. Blank lines and lines starting with <code>#</code> are skipped, lines may end with CRLF.
+ * <p>
+ * Each product has a fixed-size record with its amount, currency and the positions of its id and name in the file.
+ * Products are found by an open-addressing hash table of record indexes keyed by the {@link String#hashCode()} of the
+ * id, which the caller's id string usually has cached, and confirmed by comparing the id with the file bytes, so
+ * {@link #indexOf(String)} does not allocate. The file is copied rather than memory-mapped, so that a file edited in
+ * place cannot change or fault a loaded table. It should still be replaced atomically, a load that reads a file being
+ * written may fail or see part of the change.
+ */
+final class OffHeapPriceTable implements PriceTable {
+
+    static final String HEADER = "id,unit_amount,currency,name";
+
+    private static final int RECORD_BYTES = 32;
+    private static final int AMOUNT = 0;
+    private static final int ID_OFFSET = 8;
+    private static final int ID_LENGTH = 12;
+    private static final int NAME_OFFSET = 16;
+    private static final int NAME_LENGTH = 20;
+    private static final int CURRENCY = 24;
+    private static final int HASH = 28;
+
+    private final ByteBuffer data;
+    private final ByteBuffer records;
+    private final ByteBuffer slots;
+    private final int mask;
+    private final int size;
+    private final String[] currencies;
+
+    private OffHeapPriceTable(ByteBuffer data, ByteBuffer records, ByteBuffer slots, int size, String[] currencies) {
+        this.data = data;
+        this.records = records;
+        this.slots = slots;
+        this.mask = slots.capacity() / Integer.BYTES - 1;
+        this.size = size;
+        this.currencies = currencies;
+    }
+
+    /**
+     * Reads and indexes the catalog file.
+     *
+     * @throws IllegalArgumentException if the file is malformed, with the line number
+     */
+    static OffHeapPriceTable load(Path file) throws IOException {
+        ByteBuffer data;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Catalog file [%s] is larger than 2 GB".formatted(file));
+            }
+            data = allocate((int) channel.size());
+            while (data.hasRemaining()) {
+                if (channel.read(data) < 0) {
+                    break; // truncated while being read
+                }
+            }
+        }
+        return index(data.flip(), file);
+    }
+
+    private static OffHeapPriceTable index(ByteBuffer data, Path file) {
+        Parser parser = new Parser(data, file);
+        if (!parser.nextLine() || !HEADER.equals(parser.text(parser.lineStart, parser.lineEnd - parser.lineStart))) {
+            throw parser.error("expected header [%s]".formatted(HEADER));
+        }
+        List<String> currencies = new ArrayList<>();
+        // every product follows the header on a line of its own, so the line breaks bound the number of records
+        ByteBuffer records = allocate(Math.multiplyExact(Math.max(1, lineBreaks(data)), RECORD_BYTES));
+        int size = 0;
+        while (parser.nextLine()) {
+            if (parser.lineStart == parser.lineEnd || data.get(parser.lineStart) == '#') {
+                continue;
+            }
+            int idEnd = parser.field(parser.lineStart, "id");
+            int amountEnd = parser.field(idEnd + 1, "unit_amount");
+            int currencyEnd = parser.field(amountEnd + 1, "currency");
+            int nameStart = currencyEnd + 1;
+            if (nameStart >= parser.lineEnd) {
+                throw parser.error("missing name");
+            }
+            parser.checkQuotes(nameStart);
+            int record = size * RECORD_BYTES;
+            records.putLong(record + AMOUNT, parser.amount(idEnd + 1, amountEnd));
+            records.putInt(record + ID_OFFSET, parser.lineStart);
+            records.putInt(record + ID_LENGTH, idEnd - parser.lineStart);
+            records.putInt(record + NAME_OFFSET, nameStart);
+            records.putInt(record + NAME_LENGTH, parser.lineEnd - nameStart);
+            records.putInt(record + CURRENCY, currencyIndex(currencies, parser.currency(amountEnd + 1, currencyEnd)));
+            records.putInt(record + HASH, parser.idHash(parser.lineStart, idEnd));
+            size++;
+        }
+
+        int capacity = Integer.highestOneBit(Math.max(2, size * 2 - 1)) << 1;
+        OffHeapPriceTable table = new OffHeapPriceTable(data, resize(records, size * RECORD_BYTES), allocate(capacity * Integer.BYTES), size,
+                currencies.toArray(String[]::new));
+        for (int index = 0; index < size; index++) {
+            if (!table.insert(index)) {
+                throw new IllegalArgumentException("Duplicate product [%s] in catalog file [%s]".formatted(table.productId(index), file));
+            }
+        }
+        return table;
+    }
+
+    @Override
+    public int indexOf(String productId) {
+        if (productId == null) {
+            return NOT_FOUND;
+        }
+        int hash = productId.hashCode();
+        for (int slot = spread(hash) & mask; ; slot = (slot + 1) & mask) {
+            int entry = slots.getInt(slot * Integer.BYTES);
+            if (entry == 0) {
+                return NOT_FOUND;
+            }
+            int index = entry - 1;
+            if (records.getInt(index * RECORD_BYTES + HASH) == hash && idEquals(index, productId)) {
+                return index;
+            }
+        }
+    }
+
+    @Override
+    public String productId(int index) {
+        int record = record(index);
+        return text(records.getInt(record + ID_OFFSET), records.getInt(record + ID_LENGTH));
+    }
+
+    @Override
+    public long unitAmount(int index) {
+        return records.getLong(record(index) + AMOUNT);
+    }
+
+    @Override
+    public String currency(int index) {
+        return currencies[records.getInt(record(index) + CURRENCY)];
+    }
+
+    @Override
+    public String name(int index) {
+        int record = record(index);
+        int offset = records.getInt(record + NAME_OFFSET);
+        int length = records.getInt(record + NAME_LENGTH);
+        if (data.get(offset) == '"') {
+            return text(offset + 1, length - 2).replace("\"\"", "\"");
+        }
+        return text(offset, length);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    private int record(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        return index * RECORD_BYTES;
+    }
+
+    /**
+     * @return false if the id is already in the table
+     */
+    private boolean insert(int index) {
+        int hash = records.getInt(index * RECORD_BYTES + HASH);
+        for (int slot = spread(hash) & mask; ; slot = (slot + 1) & mask) {
+            int entry = slots.getInt(slot * Integer.BYTES);
+            if (entry == 0) {
+                slots.putInt(slot * Integer.BYTES, index + 1);
+                return true;
+            }
+            if (records.getInt((entry - 1) * RECORD_BYTES + HASH) == hash && idEquals(entry - 1, index)) {
+                return false;
+            }
+        }
+    }
+
+    private boolean idEquals(int index, String productId) {
+        int record = index * RECORD_BYTES;
+        int length = records.getInt(record + ID_LENGTH);
+        if (length != productId.length()) {
+            return false;
+        }
+        int offset = records.getInt(record + ID_OFFSET);
+        for (int i = 0; i < length; i++) {
+            if (data.get(offset + i) != productId.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean idEquals(int index, int otherIndex) {
+        int length = records.getInt(index * RECORD_BYTES + ID_LENGTH);
+        if (length != records.getInt(otherIndex * RECORD_BYTES + ID_LENGTH)) {
+            return false;
+        }
+        int offset = records.getInt(index * RECORD_BYTES + ID_OFFSET);
+        int otherOffset = records.getInt(otherIndex * RECORD_BYTES + ID_OFFSET);
+        for (int i = 0; i < length; i++) {
+            if (data.get(offset + i) != data.get(otherOffset + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String text(int offset, int length) {
+        return text(data, offset, length);
+    }
+
+    private static String text(ByteBuffer data, int offset, int length) {
+        byte[] bytes = new byte[length];
+        data.get(offset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int currencyIndex(List<String> currencies, String currency) {
+        int index = currencies.indexOf(currency);
+        if (index < 0) {
+            currencies.add(currency);
+            index = currencies.size() - 1;
+        }
+        return index;
+    }
+
+    private static int lineBreaks(ByteBuffer data) {
+        int count = 0;
+        for (int i = 0; i < data.limit(); i++) {
+            if (data.get(i) == '\n') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static ByteBuffer allocate(int capacity) {
+        return ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+    }
+
+    private static ByteBuffer resize(ByteBuffer buffer, int capacity) {
+        if (buffer.capacity() == capacity) {
+            return buffer;
+        }
+        ByteBuffer resized = allocate(capacity);
+        resized.put(0, buffer, 0, Math.min(capacity, buffer.capacity()));
+        return resized;
+    }
+
+    /**
+     * Walks the lines of the file and parses their fields in place.
+     */
+    private static final class Parser {
+        private final ByteBuffer data;
+        private final Path file;
+        private int next;
+        private int line;
+        int lineStart;
+        int lineEnd;
+
+        Parser(ByteBuffer data, Path file) {
+            this.data = data;
+            this.file = file;
+        }
+
+        boolean nextLine() {
+            if (next >= data.limit()) {
+                return false;
+            }
+            line++;
+            lineStart = next;
+            int end = lineStart;
+            while (end < data.limit() && data.get(end) != '\n') {
+                end++;
+            }
+            next = end + 1;
+            lineEnd = end > lineStart && data.get(end - 1) == '\r' ? end - 1 : end;
+            return true;
+        }
+
+        /**
+         * @return position of the comma ending the non-empty field
+         */
+        int field(int start, String name) {
+            int end = start;
+            while (end < lineEnd && data.get(end) != ',') {
+                end++;
+            }
+            if (end == start || end == lineEnd) {
+                throw error("missing " + name);
+            }
+            return end;
+        }
+
+        long amount(int start, int end) {
+            long amount = 0;
+            for (int i = start; i < end; i++) {
+                byte digit = data.get(i);
+                if (digit < '0' || digit > '9' || amount > (Long.MAX_VALUE - (digit - '0')) / 10) {
+                    throw error("invalid unit_amount [%s]".formatted(text(start, end - start)));
+                }
+                amount = amount * 10 + digit - '0';
+            }
+            return amount;
+        }
+
+        /**
+         * Checks that a name starting with a double quote ends with one and doubles the quotes in between.
+         */
+        void checkQuotes(int start) {
+            if (data.get(start) != '"') {
+                return;
+            }
+            int end = lineEnd - 1;
+            if (end == start || data.get(end) != '"') {
+                throw error("unterminated quoted name");
+            }
+            for (int i = start + 1; i < end; i++) {
+                if (data.get(i) == '"' && (++i == end || data.get(i) != '"')) {
+                    throw error("unescaped quote in name");
+                }
+            }
+        }
+
+        String currency(int start, int end) {
+            String currency = text(start, end - start).toLowerCase(Locale.ROOT);
+            if (currency.length() != 3 || !currency.chars().allMatch(c -> c >= 'a' && c <= 'z')) {
+                throw error("invalid currency [%s]".formatted(currency));
+            }
+            return currency.intern();
+        }
+
+        /**
+         * @return {@link String#hashCode()} of the id, which is ASCII so its bytes are its chars
+         */
+        int idHash(int start, int end) {
+            int hash = 0;
+            for (int i = start; i < end; i++) {
+                byte c = data.get(i);
+                if (c <= ' ' || c > '~') {
+                    throw error("product id must be printable ASCII");
+                }
+                hash = 31 * hash + c;
+            }
+            return hash;
+        }
+
+        String text(int offset, int length) {
+            return OffHeapPriceTable.text(data, offset, length);
+        }
+
+        IllegalArgumentException error(String message) {
+            return new IllegalArgumentException("Invalid catalog file [%s] at line %d: %s".formatted(file, line, message));
+        }
+    }
+}
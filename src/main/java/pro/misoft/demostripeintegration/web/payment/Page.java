@@ -0,0 +1,25 @@
+package pro.misoft.demostripeintegration.web.payment;
+
+import java.util.List;
+
+/**
+ * One page of a cursor-paginated listing.
+ *
+ * @param data       rows of the page
+ * @param nextCursor value to pass as <code>startingAfter</code> to fetch the next page, null on the last page
+ */
+public record Page<T>(List<T> data, String nextCursor) {
+
+    public static final long DEFAULT_LIMIT = 10;
+    public static final long MAX_LIMIT = 100;
+
+    public boolean hasMore() {
+        return nextCursor != null;
+    }
+
+    static void checkLimit(long limit) {
+        if (limit < 1 || limit > MAX_LIMIT) {
+            throw new IllegalArgumentException("Page limit must be between 1 and %d but was %d".formatted(MAX_LIMIT, limit));
+        }
+    }
+}
@@ -1,48 +1,92 @@
 package pro.misoft.demostripeintegration.web.payment;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.stripe.model.Customer;
 import com.stripe.model.PaymentIntent;
 import com.stripe.model.Subscription;
 import com.stripe.model.checkout.Session;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.util.List;
-import java.util.Map;
+import java.util.Locale;
+import java.util.function.Function;
 
+/**
+ * Payments API served by blocking calls on the request thread, the default <code>payments.api.mode</code>.
+ * {@link AsyncPaymentApi} serves the same API with <code>payments.api.mode=async</code>.
+ */
 @RestController
 @RequestMapping(value = "/v1/payments", consumes = MediaType.APPLICATION_JSON_VALUE)
+@ConditionalOnProperty(name = "payments.api.mode", havingValue = "blocking", matchIfMissing = true)
 public class PaymentApi {
 
+    static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+
     private final Stripe stripe;
+    private final IdempotencyStore idempotencyStore;
+    private final BatchCheckout batchCheckout;
     private final String clientBaseURL;
+    private final ObjectWriter subscriptionWriter;
+    private final ObjectWriter invoiceWriter;
+    private final ObjectWriter batchResultWriter;
 
-    public PaymentApi(Stripe stripe, @Value("${client.base.url}") String clientBaseURL) {
+    public PaymentApi(Stripe stripe, IdempotencyStore idempotencyStore, BatchCheckout batchCheckout,
+                      @Value("${client.base.url}") String clientBaseURL, ObjectMapper objectMapper) {
         this.stripe = stripe;
+        this.idempotencyStore = idempotencyStore;
+        this.batchCheckout = batchCheckout;
         this.clientBaseURL = clientBaseURL;
+        this.subscriptionWriter = objectMapper.writerFor(SubscriptionView.class);
+        this.invoiceWriter = objectMapper.writerFor(InvoiceView.class);
+        this.batchResultWriter = objectMapper.writerFor(BatchItemResult.class);
     }
 
     @PostMapping
-    public ResponseEntity<String> intentCheckout(@RequestBody PaymentRequest request) {
-        Customer customer = stripe.customers.findOrCreateCustomer(request.customerEmail(), request.customerName());
-        PaymentIntent paymentIntent = stripe.payments.createPaymentIntent(request, customer);
-        return ResponseEntity.ok(paymentIntent.getClientSecret());
+    public ResponseEntity<String> intentCheckout(@RequestBody PaymentRequest request,
+                                                 @RequestHeader(value = IdempotencyStore.HEADER, required = false) String idempotencyKey) {
+        String clientSecret = idempotencyStore.execute("intent", idempotencyKey, IdempotencyStore.fingerprint(request), key -> {
+            Customer customer = stripe.customers.findOrCreateCustomer(request.customerEmail(), request.customerName(), key);
+            PaymentIntent paymentIntent = stripe.payments.createPaymentIntent(request, customer, key);
+            return paymentIntent.getClientSecret();
+        });
+        return ResponseEntity.ok(clientSecret);
+    }
+
+    /**
+     * Creates a payment intent for every payment request and streams one result per request as newline delimited
+     * JSON, in order of completion. Results carry the index of their request in the batch. Invalid requests and
+     * Stripe failures are reported as results with an error and do not fail the batch.
+     * With an <code>Idempotency-Key</code> a retried batch gets the same payment intents from Stripe.
+     */
+    @PostMapping(value = "/batch", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> batchCheckout(@RequestBody List<PaymentRequest> requests,
+                                                               @RequestHeader(value = IdempotencyStore.HEADER, required = false) String idempotencyKey,
+                                                               Locale locale) {
+        BatchCheckout.Batch batch = batchCheckout.prepare(requests, idempotencyKey, locale);
+        return batchResponse(batchCheckout, batch, batchResultWriter);
     }
 
     @PostMapping("/hosted")
-    public ResponseEntity<String> hostedCheckout(@RequestBody PaymentRequest paymentRequest) {
-        Customer customer = stripe.customers.findOrCreateCustomer(paymentRequest.customerEmail(), paymentRequest.customerName());
-        Session session = stripe.payments.createHostedSession(paymentRequest, customer, clientBaseURL);
-        return ResponseEntity.ok(session.getUrl());
+    public ResponseEntity<String> hostedCheckout(@RequestBody PaymentRequest paymentRequest,
+                                                 @RequestHeader(value = IdempotencyStore.HEADER, required = false) String idempotencyKey) {
+        String url = idempotencyStore.execute("hosted", idempotencyKey, IdempotencyStore.fingerprint(paymentRequest), key -> {
+            Customer customer = stripe.customers.findOrCreateCustomer(paymentRequest.customerEmail(), paymentRequest.customerName(), key);
+            Session session = stripe.payments.createHostedSession(paymentRequest, customer, clientBaseURL, key);
+            return session.getUrl();
+        });
+        return ResponseEntity.ok(url);
     }
 
     @PostMapping("/subscriptions")
-    public ResponseEntity<String> newSubscription(@RequestBody PaymentRequest paymentRequest) {
-        Customer customer = stripe.customers.findOrCreateCustomer(paymentRequest.customerEmail(), paymentRequest.customerName());
-        Session session = stripe.payments.createSubscriptionSession(paymentRequest, customer, clientBaseURL, false);
-        return ResponseEntity.ok(session.getUrl());
+    public ResponseEntity<String> newSubscription(@RequestBody PaymentRequest paymentRequest,
+                                                  @RequestHeader(value = IdempotencyStore.HEADER, required = false) String idempotencyKey) {
+        return ResponseEntity.ok(subscriptionCheckout("subscription", paymentRequest, false, idempotencyKey));
     }
 
     @DeleteMapping("/subscriptions/{subscriptionId}")
@@ -51,24 +95,101 @@ public class PaymentApi {
         return ResponseEntity.ok(deletedSubscription.getStatus());
     }
 
+    /**
+     * Returns one page of subscription items. The cursor of the next page is returned in the
+     * <code>X-Next-Cursor</code> header and is absent on the last page.
+     */
     @GetMapping("/subscriptions")
-    public ResponseEntity<List<Map<String, String>>> viewSubscriptions(@RequestParam String customerEmail) {
+    public ResponseEntity<List<SubscriptionView>> viewSubscriptions(@RequestParam String customerEmail,
+                                                                      @RequestParam(required = false) String startingAfter,
+                                                                      @RequestParam(defaultValue = "" + Page.DEFAULT_LIMIT) long limit) {
         Customer customer = stripe.customers.findCustomerByEmail(customerEmail);
-        List<Map<String, String>> subscriptions = stripe.payments.listSubscriptions(customer.getId());
-        return ResponseEntity.ok(subscriptions);
+        Page<SubscriptionView> subscriptions = stripe.payments.listSubscriptions(customer.getId(), startingAfter, limit);
+        return pageResponse(subscriptions);
+    }
+
+    /**
+     * Streams all subscription items as newline delimited JSON, fetching Stripe pages lazily.
+     */
+    @GetMapping(value = "/subscriptions/stream", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> streamSubscriptions(@RequestParam String customerEmail) {
+        Customer customer = stripe.customers.findCustomerByEmail(customerEmail);
+        return ndjsonResponse(subscriptionWriter, cursor -> stripe.payments.listSubscriptions(customer.getId(), cursor, Page.MAX_LIMIT));
     }
 
     @PostMapping("/subscriptions/trial")
-    public ResponseEntity<String> newSubscriptionWithTrial(@RequestBody PaymentRequest paymentRequest) {
-        Customer customer = stripe.customers.findOrCreateCustomer(paymentRequest.customerEmail(), paymentRequest.customerName());
-        Session session = stripe.payments.createSubscriptionSession(paymentRequest, customer, clientBaseURL, true);
-        return ResponseEntity.ok(session.getUrl());
+    public ResponseEntity<String> newSubscriptionWithTrial(@RequestBody PaymentRequest paymentRequest,
+                                                           @RequestHeader(value = IdempotencyStore.HEADER, required = false) String idempotencyKey) {
+        return ResponseEntity.ok(subscriptionCheckout("subscription-trial", paymentRequest, true, idempotencyKey));
+    }
+
+    private String subscriptionCheckout(String scope, PaymentRequest paymentRequest, boolean trial, String idempotencyKey) {
+        return idempotencyStore.execute(scope, idempotencyKey, IdempotencyStore.fingerprint(paymentRequest), key -> {
+            Customer customer = stripe.customers.findOrCreateCustomer(paymentRequest.customerEmail(), paymentRequest.customerName(), key);
+            Session session = stripe.payments.createSubscriptionSession(paymentRequest, customer, clientBaseURL, trial, key);
+            return session.getUrl();
+        });
     }
 
+    /**
+     * Returns one page of invoices. The cursor of the next page is returned in the
+     * <code>X-Next-Cursor</code> header and is absent on the last page.
+     */
     @GetMapping("/invoices")
-    public ResponseEntity<List<Map<String, String>>> listInvoices(@RequestParam String customerEmail) {
+    public ResponseEntity<List<InvoiceView>> listInvoices(@RequestParam String customerEmail,
+                                                                 @RequestParam(required = false) String startingAfter,
+                                                                 @RequestParam(defaultValue = "" + Page.DEFAULT_LIMIT) long limit) {
         Customer customer = stripe.customers.findCustomerByEmail(customerEmail);
-        List<Map<String, String>> invoices = stripe.payments.listInvoices(customer.getId());
-        return ResponseEntity.ok(invoices);
+        Page<InvoiceView> invoices = stripe.payments.listInvoices(customer.getId(), startingAfter, limit);
+        return pageResponse(invoices);
+    }
+
+    /**
+     * Streams all invoices as newline delimited JSON, fetching Stripe pages lazily.
+     */
+    @GetMapping(value = "/invoices/stream", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> streamInvoices(@RequestParam String customerEmail) {
+        Customer customer = stripe.customers.findCustomerByEmail(customerEmail);
+        return ndjsonResponse(invoiceWriter, cursor -> stripe.payments.listInvoices(customer.getId(), cursor, Page.MAX_LIMIT));
+    }
+
+    static <T> ResponseEntity<List<T>> pageResponse(Page<T> page) {
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+        if (page.hasMore()) {
+            response.header(NEXT_CURSOR_HEADER, page.nextCursor());
+        }
+        return response.body(page.data());
+    }
+
+    /**
+     * Writes every batch result as soon as it is available.
+     */
+    static ResponseEntity<StreamingResponseBody> batchResponse(BatchCheckout batchCheckout, BatchCheckout.Batch batch, ObjectWriter writer) {
+        StreamingResponseBody body = out -> batchCheckout.process(batch, result -> {
+            out.write(writer.writeValueAsBytes(result));
+            out.write('\n');
+            out.flush();
+        });
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_NDJSON).body(body);
+    }
+
+    /**
+     * Writes rows page by page and flushes after every page, so only one page is held in memory and
+     * the client receives the first rows as soon as the first Stripe page arrived.
+     */
+    static <T> ResponseEntity<StreamingResponseBody> ndjsonResponse(ObjectWriter writer, Function<String, Page<T>> pages) {
+        StreamingResponseBody body = out -> {
+            String cursor = null;
+            do {
+                Page<T> page = pages.apply(cursor);
+                for (T row : page.data()) {
+                    out.write(writer.writeValueAsBytes(row));
+                    out.write('\n');
+                }
+                out.flush();
+                cursor = page.nextCursor();
+            } while (cursor != null);
+        };
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_NDJSON).body(body);
     }
 }
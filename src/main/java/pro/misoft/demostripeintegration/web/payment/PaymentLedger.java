@@ -0,0 +1,343 @@
+package pro.misoft.demostripeintegration.web.payment;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.stripe.model.Event;
+import com.stripe.model.Invoice;
+import com.stripe.model.PaymentIntent;
+import com.stripe.model.StripeObject;
+import com.stripe.model.Subscription;
+import com.stripe.model.checkout.Session;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local ledger of the payment intents, checkout sessions, invoices and subscriptions created by this service, with
+ * their status kept up to date by Stripe events, so that they can be read without calling Stripe.
+ * <p>
+ * Entries live in memory and every change is persisted write-behind: callers only enqueue the changed entry, a
+ * single writer thread appends queued entries in batches to {@link LedgerLog} and takes a snapshot every
+ * <code>payments.ledger.snapshot-interval</code> and on shutdown. The ledger is recovered from the files at startup.
+ * Changes not yet written when the process crashes are lost until Stripe redelivers their events. A change that could
+ * not be queued or written is persisted by the next snapshot, which is then taken right away.
+ * <p>
+ * Enabled by <code>payments.ledger.enabled=true</code>. Settled entries not updated for
+ * <code>payments.ledger.settled-retention</code>, and any entry not updated for <code>payments.ledger.max-age</code>,
+ * are moved from memory to the history file of {@link LedgerLog} before a snapshot, so memory holds only recent
+ * entries while the history stays on disk.
+ */
+@Component
+@ConditionalOnProperty(name = "payments.ledger.enabled", havingValue = "true")
+public class PaymentLedger implements StripeEventListener {
+
+    private static final Logger log = LoggerFactory.getLogger(PaymentLedger.class);
+    private static final int MAX_BATCH_SIZE = 1000;
+    private static final long POLL_TIMEOUT_MILLIS = 200;
+    private static final long ENQUEUE_TIMEOUT_MILLIS = 100;
+    private static final Set<String> SETTLED = Set.of("succeeded", "canceled", "complete", "expired", "paid", "void",
+            "uncollectible", "deleted", "incomplete_expired");
+    private static final Comparator<LedgerEntry> NEWEST_FIRST = Comparator.comparingLong(LedgerEntry::created).reversed().thenComparing(LedgerEntry::id);
+
+    private final Map<String, LedgerEntry> entries = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> idsByCustomer = new ConcurrentHashMap<>();
+    private final AtomicLong revisions = new AtomicLong();
+    private final BlockingQueue<LedgerEntry> pending;
+    private final LedgerLog ledgerLog;
+    private final long snapshotIntervalNanos;
+    private final long settledRetentionSeconds;
+    private final long maxAgeSeconds;
+    private final Thread writer;
+    private volatile boolean running = true;
+    private volatile boolean snapshotNeeded;
+
+    private final Timer appends;
+    private final DistributionSummary batchSize;
+    private final Timer snapshots;
+    private final Counter failures;
+    private final Counter dropped;
+    private final Counter evictions;
+
+    public PaymentLedger(ObjectMapper objectMapper, MeterRegistry meterRegistry,
+                         @Value("${payments.ledger.dir}") Path dir,
+                         @Value("${payments.ledger.queue-capacity:10000}") int queueCapacity,
+                         @Value("${payments.ledger.snapshot-interval:5m}") Duration snapshotInterval,
+                         @Value("${payments.ledger.settled-retention:7d}") Duration settledRetention,
+                         @Value("${payments.ledger.max-age:90d}") Duration maxAge,
+                         @Value("${payments.ledger.fsync:true}") boolean fsync) throws IOException {
+        if (!dir.isAbsolute()) {
+            // a relative dir depends on the working directory, a restart elsewhere would start an empty ledger
+            throw new IllegalArgumentException("payments.ledger.dir must be an absolute path, but is [%s]".formatted(dir));
+        }
+        this.pending = new ArrayBlockingQueue<>(queueCapacity);
+        this.snapshotIntervalNanos = snapshotInterval.toNanos();
+        this.settledRetentionSeconds = settledRetention.toSeconds();
+        this.maxAgeSeconds = maxAge.toSeconds();
+        this.ledgerLog = new LedgerLog(dir, objectMapper, fsync);
+
+        long start = System.nanoTime();
+        long read = ledgerLog.recover(this::replay);
+        log.info("Payment ledger recovered {} entries from {} records in {} ms", entries.size(), read, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+        this.appends = Timer.builder("payments.ledger.appends")
+                .description("Time to write a batch of ledger changes, including fsync")
+                .register(meterRegistry);
+        this.batchSize = DistributionSummary.builder("payments.ledger.batch.size").register(meterRegistry);
+        this.snapshots = Timer.builder("payments.ledger.snapshots").register(meterRegistry);
+        this.failures = meterRegistry.counter("payments.ledger.write.failures");
+        this.dropped = meterRegistry.counter("payments.ledger.changes.unqueued");
+        this.evictions = Counter.builder("payments.ledger.evictions")
+                .description("Entries moved from memory to the history file")
+                .register(meterRegistry);
+        Gauge.builder("payments.ledger.entries", entries, Map::size).register(meterRegistry);
+        Gauge.builder("payments.ledger.queue.depth", pending, BlockingQueue::size).register(meterRegistry);
+
+        this.writer = Thread.ofPlatform().name("payment-ledger-writer").daemon(true).start(this::writeBehind);
+    }
+
+    public LedgerEntry get(String id) {
+        return entries.get(id);
+    }
+
+    /**
+     * @return entries of the customer, newest first
+     */
+    public List<LedgerEntry> byCustomer(String customerId) {
+        Set<String> ids = idsByCustomer.get(customerId);
+        if (ids == null) {
+            return List.of();
+        }
+        List<LedgerEntry> result = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            LedgerEntry entry = entries.get(id);
+            if (entry != null) {
+                result.add(entry);
+            }
+        }
+        result.sort(NEWEST_FIRST);
+        return result;
+    }
+
+    /**
+     * Records the state of an object returned by Stripe to this service.
+     */
+    public void record(StripeObject object) {
+        record(object, null, Instant.now().getEpochSecond());
+    }
+
+    /**
+     * Records a draft invoice deleted by this service.
+     */
+    public void recordDeleted(Invoice invoice) {
+        record(invoice, "deleted", Instant.now().getEpochSecond());
+    }
+
+    @Override
+    public void onEvent(Event event, StripeObject object) {
+        String status = object instanceof Invoice && "invoice.deleted".equals(event.getType()) ? "deleted" : null;
+        record(object, status, event.getCreated());
+    }
+
+    private void record(StripeObject object, String status, long updated) {
+        switch (object) {
+            case PaymentIntent intent -> update(intent.getId(), intent.getObject(), intent.getCustomer(), intent.getAmount(), intent.getCurrency(),
+                    status == null ? intent.getStatus() : status, intent.getCreated(), updated);
+            case Session session -> update(session.getId(), session.getObject(), session.getCustomer(), session.getAmountTotal(), session.getCurrency(),
+                    status == null ? session.getStatus() : status, session.getCreated(), updated);
+            case Invoice invoice -> update(invoice.getId(), invoice.getObject(), invoice.getCustomer(), invoice.getAmountDue(), invoice.getCurrency(),
+                    status == null ? invoice.getStatus() : status, invoice.getCreated(), updated);
+            case Subscription subscription -> update(subscription.getId(), subscription.getObject(), subscription.getCustomer(), null, subscription.getCurrency(),
+                    status == null ? subscription.getStatus() : status, subscription.getCreated(), updated);
+            default -> {
+            }
+        }
+    }
+
+    /**
+     * Applies the state unless the entry already has a newer one, e.g. from an event delivered out of order.
+     */
+    private void update(String id, String object, String customerId, Long amount, String currency, String status, Long created, long updated) {
+        if (id == null) {
+            return;
+        }
+        LedgerEntry[] changed = new LedgerEntry[1];
+        entries.compute(id, (key, current) -> {
+            if (current != null && (current.updated() > updated || sameState(current, customerId, amount, currency, status))) {
+                return current;
+            }
+            LedgerEntry next = new LedgerEntry(id, object,
+                    customerId != null || current == null ? customerId : current.customerId(),
+                    amount != null || current == null ? amount : current.amount(),
+                    currency != null || current == null ? currency : current.currency(),
+                    status, created != null ? created : current == null ? updated : current.created(),
+                    updated, revisions.incrementAndGet());
+            changed[0] = next;
+            return next;
+        });
+        if (changed[0] != null) {
+            index(changed[0]);
+            enqueue(changed[0]);
+        }
+    }
+
+    private static boolean sameState(LedgerEntry entry, String customerId, Long amount, String currency, String status) {
+        return Objects.equals(entry.status(), status)
+                && (amount == null || amount.equals(entry.amount()))
+                && (customerId == null || customerId.equals(entry.customerId()))
+                && (currency == null || currency.equals(entry.currency()));
+    }
+
+    private void replay(LedgerEntry entry) {
+        LedgerEntry applied = entries.merge(entry.id(), entry, (current, recovered) -> recovered.revision() > current.revision() ? recovered : current);
+        if (applied == entry) {
+            index(entry);
+        }
+        revisions.accumulateAndGet(entry.revision(), Math::max);
+    }
+
+    private void index(LedgerEntry entry) {
+        if (entry.customerId() != null) {
+            idsByCustomer.compute(entry.customerId(), (customer, ids) -> {
+                Set<String> indexed = ids != null ? ids : ConcurrentHashMap.newKeySet();
+                indexed.add(entry.id());
+                return indexed;
+            });
+        }
+    }
+
+    private void unindex(LedgerEntry entry) {
+        if (entry.customerId() != null) {
+            idsByCustomer.computeIfPresent(entry.customerId(), (customer, ids) -> {
+                ids.remove(entry.id());
+                return ids.isEmpty() ? null : ids;
+            });
+        }
+    }
+
+    private void enqueue(LedgerEntry entry) {
+        try {
+            if (pending.offer(entry, ENQUEUE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        dropped.increment();
+        snapshotNeeded = true;
+    }
+
+    private void writeBehind() {
+        List<LedgerEntry> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        long nextSnapshot = System.nanoTime() + snapshotIntervalNanos;
+        while (running || !pending.isEmpty()) {
+            try {
+                LedgerEntry first = pending.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    pending.drainTo(batch, MAX_BATCH_SIZE - 1);
+                    batchSize.record(batch.size());
+                    appends.record(() -> append(batch));
+                }
+                if (snapshotNeeded || System.nanoTime() - nextSnapshot >= 0) {
+                    snapshot();
+                    nextSnapshot = System.nanoTime() + snapshotIntervalNanos;
+                }
+            } catch (InterruptedException e) {
+                break;
+            } catch (IOException | RuntimeException e) {
+                failures.increment();
+                snapshotNeeded = true;
+                log.error("Failed to persist the payment ledger, retrying with a snapshot", e);
+                sleepAfterFailure();
+            } finally {
+                batch.clear();
+            }
+        }
+        try {
+            snapshot();
+            ledgerLog.close();
+            log.info("Payment ledger persisted {} entries on shutdown", entries.size());
+        } catch (IOException | RuntimeException e) {
+            log.error("Failed to persist the payment ledger on shutdown", e);
+        }
+    }
+
+    private void append(List<LedgerEntry> batch) {
+        try {
+            ledgerLog.append(batch);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void snapshot() throws IOException {
+        snapshotNeeded = false;
+        long start = System.nanoTime();
+        evictExpired();
+        ledgerLog.snapshot(entries.values());
+        snapshots.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Moves expired entries to the history file before the snapshot that drops them. An entry changed after it was
+     * archived stays in memory, its new state is in the log and the snapshot.
+     */
+    private void evictExpired() throws IOException {
+        long now = Instant.now().getEpochSecond();
+        List<LedgerEntry> expired = new ArrayList<>();
+        for (LedgerEntry entry : entries.values()) {
+            long age = now - entry.updated();
+            if (age > maxAgeSeconds || (age > settledRetentionSeconds && SETTLED.contains(entry.status()))) {
+                expired.add(entry);
+            }
+        }
+        if (expired.isEmpty()) {
+            return;
+        }
+        ledgerLog.archive(expired);
+        for (LedgerEntry entry : expired) {
+            if (entries.remove(entry.id(), entry)) {
+                unindex(entry);
+                evictions.increment();
+            }
+        }
+    }
+
+    private void sleepAfterFailure() {
+        try {
+            Thread.sleep(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @PreDestroy
+    void stop() throws InterruptedException {
+        running = false;
+        writer.join(TimeUnit.SECONDS.toMillis(30));
+    }
+}
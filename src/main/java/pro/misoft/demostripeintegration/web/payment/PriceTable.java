@@ -0,0 +1,110 @@
+package pro.misoft.demostripeintegration.web.payment;
+
+import com.stripe.model.Product;
+
+import java.util.List;
+
+/**
+ * Immutable, read-only view of catalog prices addressed by a dense product index.
+ * <p>
+ * Amounts are kept in currency minor units (cents) as primitive <code>long</code> and currencies are interned
+ * lower-case ISO codes, so order totals and line items can be computed without allocating per item.
+ */
+public interface PriceTable {
+
+    int NOT_FOUND = -1;
+
+    /**
+     * @return dense index of the product or {@link #NOT_FOUND}
+     */
+    int indexOf(String productId);
+
+    String productId(int index);
+
+    /**
+     * @return unit amount in currency minor units
+     */
+    long unitAmount(int index);
+
+    /**
+     * @return interned lower-case ISO currency code
+     */
+    String currency(int index);
+
+    String name(int index);
+
+    int size();
+
+    /**
+     * @return dense index of the product
+     * @throws IllegalArgumentException if the product is not in the catalog
+     */
+    default int require(String productId) {
+        int index = indexOf(productId);
+        if (index == NOT_FOUND) {
+            throw new IllegalArgumentException("Product [%s] not found".formatted(productId));
+        }
+        return index;
+    }
+
+    /**
+     * Sums unit amounts of all items.
+     *
+     * @throws IllegalArgumentException if the cart is empty, contains unknown products or mixes currencies
+     */
+    default Total total(List<Product> items) {
+        if (items == null || items.isEmpty()) {
+            throw new IllegalArgumentException("Cart must contain at least one product");
+        }
+        long amount = 0;
+        String currency = null;
+        for (int i = 0; i < items.size(); i++) {
+            int index = require(items.get(i).getId());
+            String itemCurrency = currency(index);
+            if (currency == null) {
+                currency = itemCurrency;
+            } else if (!currency.equals(itemCurrency)) {
+                throw new IllegalArgumentException("Cart mixes currencies [%s] and [%s]".formatted(currency, itemCurrency));
+            }
+            amount = Math.addExact(amount, unitAmount(index));
+        }
+        return new Total(amount, currency);
+    }
+
+    /**
+     * Product of the table, its fields are read from the table on access instead of being copied.
+     *
+     * @param index dense index of the product in <code>table</code>
+     */
+    record Entry(PriceTable table, int index) {
+
+        public String productId() {
+            return table.productId(index);
+        }
+
+        /**
+         * @return unit amount in currency minor units
+         */
+        public long unitAmount() {
+            return table.unitAmount(index);
+        }
+
+        /**
+         * @return interned lower-case ISO currency code
+         */
+        public String currency() {
+            return table.currency(index);
+        }
+
+        public String name() {
+            return table.name(index);
+        }
+    }
+
+    /**
+     * @param amount   total in currency minor units
+     * @param currency interned lower-case ISO currency code
+     */
+    record Total(long amount, String currency) {
+    }
+}
@@ -0,0 +1,120 @@
+package pro.misoft.demostripeintegration.web.payment;
+
+import com.stripe.exception.StripeException;
+import com.stripe.model.Event;
+import com.stripe.model.Product;
+import com.stripe.model.ProductCollection;
+import com.stripe.model.StripeObject;
+import com.stripe.param.ProductListParams;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationStartedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import pro.misoft.demostripeintegration.common.SingleFlight;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps application product ids (Stripe product <code>metadata['app_id']</code>) to Stripe product ids.
+ * <p>
+ * Warmed once at startup by paging through all Stripe products, then kept fresh by product events and by
+ * products created by this service, so that invoice checkout only has to search Stripe for unknown products.
+ */
+@Component
+public class ProductIndex implements StripeEventListener {
+
+    private static final Logger log = LoggerFactory.getLogger(ProductIndex.class);
+    static final String APP_ID = "app_id";
+
+    private final StripeGateway gateway;
+    private final Map<String, String> stripeIdsByAppId = new ConcurrentHashMap<>();
+    private final SingleFlight<String, String> loads = new SingleFlight<>();
+    private final Counter hits;
+    private final Counter misses;
+
+    public ProductIndex(StripeGateway gateway, MeterRegistry meterRegistry) {
+        this.gateway = gateway;
+        this.hits = meterRegistry.counter("stripe.products.index.lookups", "result", "hit");
+        this.misses = meterRegistry.counter("stripe.products.index.lookups", "result", "miss");
+        Gauge.builder("stripe.products.index.size", stripeIdsByAppId, Map::size).register(meterRegistry);
+    }
+
+    @EventListener(ApplicationStartedEvent.class)
+    public void warmUp() {
+        try {
+            int count = 0;
+            String startingAfter = null;
+            ProductCollection page;
+            do {
+                ProductListParams params = ProductListParams.builder().setLimit(Page.MAX_LIMIT).setStartingAfter(startingAfter).build();
+                page = gateway.call("product.list", () -> Product.list(params));
+                for (Product product : page.getData()) {
+                    put(product);
+                    count++;
+                    startingAfter = product.getId();
+                }
+            } while (Boolean.TRUE.equals(page.getHasMore()));
+            log.info("Product index warmed up with {} of {} Stripe products", stripeIdsByAppId.size(), count);
+        } catch (StripeException | RuntimeException e) {
+            log.warn("Product index warm up failed, products will be resolved on demand", e);
+        }
+    }
+
+    /**
+     * Returns the Stripe product id for the app product id, or runs the loader once for all concurrent callers
+     * and remembers its result.
+     */
+    public String getOrLoad(String appId, Callable<String> loader) throws Exception {
+        String stripeId = stripeIdsByAppId.get(appId);
+        if (stripeId != null) {
+            hits.increment();
+            return stripeId;
+        }
+        misses.increment();
+        return loads.execute(appId, () -> {
+            // a previous flight may have completed between the lookup above and joining this one, loading again
+            // would search the eventually consistent index and create a duplicate product
+            String completed = stripeIdsByAppId.get(appId);
+            if (completed != null) {
+                return completed;
+            }
+            String loaded = loader.call();
+            stripeIdsByAppId.put(appId, loaded);
+            return loaded;
+        });
+    }
+
+    public void put(Product product) {
+        String appId = product.getMetadata() == null ? null : product.getMetadata().get(APP_ID);
+        if (appId == null) {
+            return;
+        }
+        if (Boolean.TRUE.equals(product.getDeleted())) {
+            stripeIdsByAppId.remove(appId, product.getId());
+        } else {
+            stripeIdsByAppId.put(appId, product.getId());
+        }
+    }
+
+    public void remove(Product product) {
+        stripeIdsByAppId.values().remove(product.getId());
+    }
+
+    @Override
+    public void onEvent(Event event, StripeObject object) {
+        if (!(object instanceof Product product)) {
+            return;
+        }
+        if ("product.deleted".equals(event.getType())) {
+            remove(product);
+        } else {
+            put(product);
+        }
+    }
+}
@@ -1,13 +1,22 @@
 package pro.misoft.demostripeintegration.web.payment;
 
-import com.stripe.model.Product;
-
 public interface ProductService {
     /**
      * Finds a product by its ID.
      *
      * @param id the ID of the product to find
-     * @return the found product or null if not found
+     * @return the found product, read in place from {@link #priceTable()}
+     * @throws IllegalArgumentException if the product is not in the catalog
+     */
+    default PriceTable.Entry findProduct(String id) {
+        PriceTable prices = priceTable();
+        return new PriceTable.Entry(prices, prices.require(id));
+    }
+
+    /**
+     * Returns the immutable price table of the whole catalog.
+     *
+     * @return price table, never null
      */
-     Product findProduct(String id);
+     PriceTable priceTable();
 }
@@ -0,0 +1,111 @@
+package pro.misoft.demostripeintegration.web.payment;
+
+import com.stripe.model.Product;
+import com.stripe.param.checkout.SessionCreateParams;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Immutable parts of checkout session parameters, built once and shared by all sessions: the line item of every
+ * catalog product per session mode, the success and cancel URLs and the trial settings.
+ * <p>
+ * Line items are built on first use of a product in a mode from the {@link PriceTable} they were priced with and
+ * dropped together with it when the catalog changes. A session is then assembled from cached parts, so building one
+ * only allocates the session builder itself and its list of line items.
+ */
+final class SessionTemplates {
+
+    static final SessionCreateParams.SubscriptionData TRIAL = SessionCreateParams.SubscriptionData.builder().setTrialPeriodDays(30L).build();
+    static final SessionCreateParams.InvoiceCreation INVOICE_CREATION = SessionCreateParams.InvoiceCreation.builder().setEnabled(true).build();
+    private static final SessionCreateParams.LineItem.PriceData.Recurring MONTHLY = SessionCreateParams.LineItem.PriceData.Recurring.builder()
+            .setInterval(SessionCreateParams.LineItem.PriceData.Recurring.Interval.MONTH)
+            .build();
+
+    private volatile Urls urls;
+    private volatile LineItems lineItems;
+
+    private record Urls(String clientBaseURL, String success, String cancel) {
+    }
+
+    /**
+     * Line items of one price table, indexed by the dense product index.
+     */
+    private record LineItems(PriceTable prices, AtomicReferenceArray<SessionCreateParams.LineItem> payment,
+                             AtomicReferenceArray<SessionCreateParams.LineItem> subscription) {
+
+        LineItems(PriceTable prices) {
+            this(prices, new AtomicReferenceArray<>(prices.size()), new AtomicReferenceArray<>(prices.size()));
+        }
+
+        SessionCreateParams.LineItem get(int index, SessionCreateParams.Mode mode) {
+            AtomicReferenceArray<SessionCreateParams.LineItem> items = mode == SessionCreateParams.Mode.SUBSCRIPTION ? subscription : payment;
+            SessionCreateParams.LineItem item = items.get(index);
+            if (item == null) {
+                // concurrent first uses may both build it, the items are equal
+                item = lineItem(prices, index, mode);
+                items.set(index, item);
+            }
+            return item;
+        }
+    }
+
+    /**
+     * Session builder with the mode and the success and cancel URLs set.
+     *
+     * @throws IllegalArgumentException for modes other than payment and subscription
+     */
+    SessionCreateParams.Builder builder(SessionCreateParams.Mode mode, String clientBaseURL) {
+        if (mode != SessionCreateParams.Mode.PAYMENT && mode != SessionCreateParams.Mode.SUBSCRIPTION) {
+            throw new IllegalArgumentException("Unsupported checkout session mode [%s]".formatted(mode));
+        }
+        Urls cached = urls;
+        if (cached == null || !cached.clientBaseURL().equals(clientBaseURL)) {
+            cached = new Urls(clientBaseURL, clientBaseURL + "/success?session_id={CHECKOUT_SESSION_ID}", clientBaseURL + "/failure");
+            urls = cached;
+        }
+        return SessionCreateParams.builder()
+                .setMode(mode)
+                .setSuccessUrl(cached.success())
+                .setCancelUrl(cached.cancel());
+    }
+
+    /**
+     * Adds the cached line item of every cart item to a builder of the given mode.
+     *
+     * @throws IllegalArgumentException if the cart is empty, has unknown products or mixes currencies
+     */
+    void addLineItems(List<Product> items, PriceTable prices, SessionCreateParams.Mode mode, SessionCreateParams.Builder builder) {
+        // rejects empty, unknown and mixed-currency carts before anything is sent to Stripe
+        prices.total(items);
+        LineItems cached = lineItems;
+        if (cached == null || cached.prices() != prices) {
+            cached = new LineItems(prices);
+            lineItems = cached;
+        }
+        for (int i = 0; i < items.size(); i++) {
+            builder.addLineItem(cached.get(prices.require(items.get(i).getId()), mode));
+        }
+    }
+
+    /**
+     * Line item named and priced from the catalog. Only subscription prices are recurring, Stripe rejects recurring
+     * prices in payment mode.
+     */
+    private static SessionCreateParams.LineItem lineItem(PriceTable prices, int index, SessionCreateParams.Mode mode) {
+        SessionCreateParams.LineItem.PriceData.Builder priceData = SessionCreateParams.LineItem.PriceData.builder()
+                .setProductData(SessionCreateParams.LineItem.PriceData.ProductData.builder()
+                        .putMetadata(ProductIndex.APP_ID, prices.productId(index))
+                        .setName(prices.name(index))
+                        .build())
+                .setCurrency(prices.currency(index))
+                .setUnitAmount(prices.unitAmount(index));
+        if (mode == SessionCreateParams.Mode.SUBSCRIPTION) {
+            priceData.setRecurring(MONTHLY);
+        }
+        return SessionCreateParams.LineItem.builder()
+                .setQuantity(1L)
+                .setPriceData(priceData.build())
+                .build();
+    }
+}
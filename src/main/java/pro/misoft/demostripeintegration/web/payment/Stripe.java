@@ -1,94 +1,161 @@
 package pro.misoft.demostripeintegration.web.payment;
 
+import com.stripe.exception.InvalidRequestException;
+import com.stripe.exception.StripeException;
 import com.stripe.model.*;
 import com.stripe.model.checkout.Session;
+import com.stripe.net.ApiResource;
+import com.stripe.net.LiveStripeResponseGetter;
+import com.stripe.net.RequestOptions;
+import com.stripe.net.StripeResponse;
 import com.stripe.param.*;
 import com.stripe.param.checkout.SessionCreateParams;
 import lombok.SneakyThrows;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import pro.misoft.demostripeintegration.common.ConcurrentCalls;
 
-import java.math.BigDecimal;
-import java.text.SimpleDateFormat;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.*;
+import java.util.stream.IntStream;
 
 @Service
 public class Stripe {
 
+    private static final Logger log = LoggerFactory.getLogger(Stripe.class);
+
     Payments payments;
     Customers customers;
 
-    public Stripe(ProductService productService, @Value("${stripe.api.key}") String stripeApiKey) {
-        payments = new Payments(productService);
-        customers = new Customers();
+    public Stripe(ProductService productService, CustomerCache customerCache, ProductIndex productIndex, StripeGateway gateway,
+                  JdkStripeHttpClient httpClient, Optional<PaymentLedger> ledger, CustomerViewCache viewCache,
+                  @Value("${stripe.api.key}") String stripeApiKey,
+                  @Value("${stripe.fanout.max-concurrency:8}") int fanOutMaxConcurrency,
+                  @Value("${stripe.fanout.deadline:10s}") Duration fanOutDeadline) {
+        payments = new Payments(gateway, productService, productIndex, ledger, viewCache, fanOutMaxConcurrency, fanOutDeadline);
+        customers = new Customers(gateway, customerCache);
         com.stripe.Stripe.apiKey = stripeApiKey;
+        com.stripe.Stripe.overrideApiBase(httpClient.apiBase());
+        ApiResource.setGlobalResponseGetter(new LiveStripeResponseGetter(httpClient));
+    }
+
+    /**
+     * Request options carrying a Stripe idempotency key derived from the client's key, unique per operation
+     * within one client request.
+     *
+     * @param idempotencyKey scoped client key or null
+     */
+    static RequestOptions requestOptions(String idempotencyKey, String operation) {
+        if (idempotencyKey == null) {
+            return RequestOptions.getDefault();
+        }
+        return RequestOptions.builder().setIdempotencyKey(idempotencyKey + ":" + operation).build();
     }
 
     static class Customers {
-        private Customers() {
+        private final StripeGateway gateway;
+        private final CustomerCache customerCache;
+
+        private Customers(StripeGateway gateway, CustomerCache customerCache) {
+            this.gateway = gateway;
+            this.customerCache = customerCache;
         }
 
         @SneakyThrows
         public Customer findCustomerByEmail(String email) {
-            CustomerSearchParams params =
-                    CustomerSearchParams
-                            .builder()
-                            .setQuery("email:'" + email + "'")
-                            .build();
+            Customer cached = customerCache.get(email);
+            if (cached != null) {
+                return cached;
+            }
 
-            CustomerSearchResult result = Customer.search(params);
+            CustomerSearchResult result = searchByEmail(email);
 
-            return !result.getData().isEmpty() ? result.getData().getFirst() : null;
+            if (result.getData().isEmpty()) {
+                return null;
+            }
+            Customer customer = result.getData().getFirst();
+            customerCache.put(customer);
+            return customer;
         }
 
         @SneakyThrows
-        public Customer findOrCreateCustomer(String email, String name) {
-            CustomerSearchParams params =
-                    CustomerSearchParams
-                            .builder()
-                            .setQuery("email:'" + email + "'")
-                            .build();
+        public Customer findOrCreateCustomer(String email, String name, String idempotencyKey) {
+            return customerCache.getOrLoad(email, () -> searchOrCreate(email, name, idempotencyKey));
+        }
 
-            CustomerSearchResult result = Customer.search(params);
+        private Customer searchOrCreate(String email, String name, String idempotencyKey) throws StripeException {
+            CustomerSearchResult result = searchByEmail(email);
 
-            Customer customer;
+            if (!result.getData().isEmpty()) {
+                return result.getData().getFirst();
+            }
 
-            if (result.getData().isEmpty()) {
+            CustomerCreateParams customerCreateParams = CustomerCreateParams.builder()
+                    .setName(name)
+                    .setEmail(email)
+                    .build();
 
-                CustomerCreateParams customerCreateParams = CustomerCreateParams.builder()
-                        .setName(name)
-                        .setEmail(email)
-                        .build();
+            return gateway.call("customer.create", () -> Customer.create(customerCreateParams, requestOptions(idempotencyKey, "customer.create")));
+        }
 
-                customer = Customer.create(customerCreateParams);
-            } else {
-                customer = result.getData().getFirst();
-            }
+        private CustomerSearchResult searchByEmail(String email) throws StripeException {
+            CustomerSearchParams params =
+                    CustomerSearchParams
+                            .builder()
+                            .setQuery("email:'" + email + "'")
+                            .build();
 
-            return customer;
+            return gateway.call("customer.search", () -> Customer.search(params));
         }
     }
 
     static class Payments {
-        private final ProductService productService;
+        private static final int MAX_KEY_GENERATIONS = 20;
+        private static final String IDEMPOTENT_REPLAYED = "Idempotent-Replayed";
 
-        private Payments(ProductService productService) {
+        private final StripeGateway gateway;
+        private final ProductService productService;
+        private final ProductIndex productIndex;
+        private final Optional<PaymentLedger> ledger;
+        private final CustomerViewCache viewCache;
+        private final int fanOutMaxConcurrency;
+        private final Duration fanOutDeadline;
+        private final SessionTemplates sessionTemplates = new SessionTemplates();
+
+        private Payments(StripeGateway gateway, ProductService productService, ProductIndex productIndex, Optional<PaymentLedger> ledger,
+                         CustomerViewCache viewCache, int fanOutMaxConcurrency, Duration fanOutDeadline) {
+            this.gateway = gateway;
             this.productService = productService;
+            this.productIndex = productIndex;
+            this.ledger = ledger;
+            this.viewCache = viewCache;
+            this.fanOutMaxConcurrency = fanOutMaxConcurrency;
+            this.fanOutDeadline = fanOutDeadline;
         }
 
-        public PaymentIntent createPaymentIntent(PaymentRequest request, Customer customer) {
+        public PaymentIntent createPaymentIntent(PaymentRequest request, Customer customer, String idempotencyKey) {
+            return createPaymentIntent(request, calculateOrderAmount(request.items()), customer, idempotencyKey);
+        }
+
+        /**
+         * @param total order total already calculated by the caller
+         */
+        PaymentIntent createPaymentIntent(PaymentRequest request, PriceTable.Total total, Customer customer, String idempotencyKey) {
             if (!request.invoiceNeeded()) {
-                return createDirectPaymentIntent(request, customer);
+                return createDirectPaymentIntent(total, customer, idempotencyKey);
             } else {
-                return createInvoicePaymentIntent(request, customer);
+                return createInvoicePaymentIntent(customer, request.items(), null, idempotencyKey);
             }
         }
 
         @SneakyThrows
-        private PaymentIntent createDirectPaymentIntent(PaymentRequest request, Customer customer) {
+        PaymentIntent createDirectPaymentIntent(PriceTable.Total total, Customer customer, String idempotencyKey) {
             PaymentIntentCreateParams params = PaymentIntentCreateParams.builder()
-                    .setAmount(Long.parseLong(calculateOrderAmount(request.items())))
-                    .setCurrency("usd")
+                    .setAmount(total.amount())
+                    .setCurrency(total.currency())
                     .setCustomer(customer.getId())
                     .setAutomaticPaymentMethods(
                             PaymentIntentCreateParams.AutomaticPaymentMethods.builder()
@@ -97,184 +164,314 @@ public class Stripe {
                     )
                     .build();
 
-            return PaymentIntent.create(params);
+            PaymentIntent paymentIntent = gateway.call("paymentintent.create", () -> PaymentIntent.create(params, requestOptions(idempotencyKey, "paymentintent.create")));
+            ledger.ifPresent(l -> l.record(paymentIntent));
+            return paymentIntent;
+        }
+
+        /**
+         * @param stripeProductIds Stripe product ids of the items resolved by the caller, null to resolve them together
+         *                         with the invoice items
+         */
+        PaymentIntent createInvoicePaymentIntent(Customer customer, List<Product> items, List<String> stripeProductIds, String idempotencyKey) {
+            String generationKey = idempotencyKey;
+            Invoice invoice = createInvoice(customer, generationKey);
+            // a failed attempt deleted its draft, which Stripe replays to a retry under the same key, so the retry moves
+            // to the next generation of the key, the same one for every retry of that attempt
+            for (int generation = 1; isDeletedReplay(invoice); generation++) {
+                if (generation > MAX_KEY_GENERATIONS) {
+                    throw new IllegalStateException("Too many failed attempts with idempotency key [%s]".formatted(idempotencyKey));
+                }
+                generationKey = generationKey(idempotencyKey, generation);
+                invoice = createInvoice(customer, generationKey);
+            }
+            try {
+                createInvoiceItems(invoice, customer, items, stripeProductIds, generationKey);
+                return finalizeInvoice(invoice, generationKey);
+            } catch (Throwable e) {
+                discardDraftInvoice(invoice);
+                throw e;
+            }
+        }
+
+        /**
+         * @return key of the given generation, derived from the client key only so that every instance derives the same
+         */
+        static String generationKey(String idempotencyKey, int generation) {
+            return idempotencyKey + ":" + generation;
+        }
+
+        /**
+         * @return true if Stripe replayed the invoice of an earlier attempt and that invoice was deleted since
+         */
+        @SneakyThrows
+        private boolean isDeletedReplay(Invoice invoice) {
+            StripeResponse response = invoice.getLastResponse();
+            if (response == null || !response.headers().firstValue(IDEMPOTENT_REPLAYED).map(Boolean::parseBoolean).orElse(false)) {
+                return false;
+            }
+            try {
+                Invoice current = gateway.call("invoice.retrieve", () -> Invoice.retrieve(invoice.getId()));
+                return "deleted".equals(current.getStatus());
+            } catch (InvalidRequestException e) {
+                // a deleted draft is no longer found
+                if (e.getStatusCode() != null && e.getStatusCode() == 404) {
+                    return true;
+                }
+                throw e;
+            }
+        }
+
+        /**
+         * Resolves the Stripe product and creates the invoice item of every cart item concurrently, bounded by
+         * <code>stripe.fanout.max-concurrency</code> and <code>stripe.fanout.deadline</code>, so that the latency does not
+         * grow with the cart size. The first failure cancels the items still being created.
+         */
+        @SneakyThrows
+        private void createInvoiceItems(Invoice invoice, Customer customer, List<Product> items, List<String> stripeProductIds, String idempotencyKey) {
+            ConcurrentCalls.map(IntStream.range(0, items.size()).boxed().toList(), fanOutMaxConcurrency, fanOutDeadline, i -> {
+                Product product = items.get(i);
+                String stripeProductId = stripeProductIds == null ? findOrCreateProduct(product) : stripeProductIds.get(i);
+                createInvoiceItem(invoice, customer, product, stripeProductId, requestOptions(idempotencyKey, "invoiceitem.create:" + i));
+                return i;
+            });
         }
 
+        /**
+         * Resolves the Stripe products of the cart items concurrently, with the same bounds as the invoice items.
+         *
+         * @return Stripe product ids in the order of the items
+         */
         @SneakyThrows
-        private PaymentIntent createInvoicePaymentIntent(PaymentRequest request, Customer customer) {
+        List<String> findOrCreateProducts(List<Product> items) {
+            return ConcurrentCalls.map(items, fanOutMaxConcurrency, fanOutDeadline, this::findOrCreateProduct);
+        }
+
+        /**
+         * Deletes the draft invoice of a failed checkout together with the items created so far. A retry creates a new
+         * invoice, see {@link #generationKey}. An invoice that was finalized after all cannot be deleted and is kept.
+         */
+        void discardDraftInvoice(Invoice invoice) {
+            try {
+                gateway.call("invoice.delete", invoice::delete);
+                ledger.ifPresent(l -> l.recordDeleted(invoice));
+                viewCache.invalidate(invoice.getCustomer());
+            } catch (StripeException | RuntimeException e) {
+                log.warn("Failed to delete draft invoice {} of failed checkout", invoice.getId(), e);
+            }
+        }
+
+        @SneakyThrows
+        Invoice createInvoice(Customer customer, String idempotencyKey) {
             InvoiceCreateParams invoiceCreateParams = InvoiceCreateParams.builder()
                     .setCustomer(customer.getId())
                     .build();
 
-            Invoice invoice = Invoice.create(invoiceCreateParams);
-
-            for (Product product : request.items()) {
-                Product stripeProduct = findOrCreateProduct(product);
-                createInvoiceItem(invoice, customer, product, stripeProduct);
-            }
+            Invoice invoice = gateway.call("invoice.create", () -> Invoice.create(invoiceCreateParams, requestOptions(idempotencyKey, "invoice.create")));
+            ledger.ifPresent(l -> l.record(invoice));
+            viewCache.invalidate(customer.getId());
+            return invoice;
+        }
 
-            invoice = invoice.finalizeInvoice();
-            return PaymentIntent.retrieve(invoice.getPaymentIntent());
+        /**
+         * Finalizes the draft invoice and returns the payment intent Stripe created for it.
+         */
+        @SneakyThrows
+        PaymentIntent finalizeInvoice(Invoice invoice, String idempotencyKey) {
+            Invoice finalized = gateway.call("invoice.finalize", () -> invoice.finalizeInvoice(InvoiceFinalizeInvoiceParams.builder().build(), requestOptions(idempotencyKey, "invoice.finalize")));
+            ledger.ifPresent(l -> l.record(finalized));
+            viewCache.invalidate(finalized.getCustomer());
+            PaymentIntent paymentIntent = gateway.call("paymentintent.retrieve", () -> PaymentIntent.retrieve(finalized.getPaymentIntent()));
+            ledger.ifPresent(l -> l.record(paymentIntent));
+            return paymentIntent;
         }
 
         @SneakyThrows
-        private void createInvoiceItem(Invoice invoice, Customer customer, Product product, Product stripeProduct) {
+        void createInvoiceItem(Invoice invoice, Customer customer, Product product, String stripeProductId, RequestOptions options) {
+            PriceTable prices = productService.priceTable();
+            int index = prices.require(product.getId());
             InvoiceItemCreateParams invoiceItemCreateParams = InvoiceItemCreateParams.builder()
                     .setInvoice(invoice.getId())
                     .setQuantity(1L)
                     .setCustomer(customer.getId())
                     .setPriceData(
                             InvoiceItemCreateParams.PriceData.builder()
-                                    .setProduct(stripeProduct.getId())
-                                    .setCurrency(productService.findProduct(product.getId()).getDefaultPriceObject().getCurrency())
-                                    .setUnitAmountDecimal(productService.findProduct(product.getId()).getDefaultPriceObject().getUnitAmountDecimal())
+                                    .setProduct(stripeProductId)
+                                    .setCurrency(prices.currency(index))
+                                    .setUnitAmount(prices.unitAmount(index))
                                     .build())
                     .build();
 
-            InvoiceItem.create(invoiceItemCreateParams);
+            gateway.call("invoiceitem.create", () -> InvoiceItem.create(invoiceItemCreateParams, options));
         }
 
         @SneakyThrows
-        private Product findOrCreateProduct(Product product) {
-            ProductSearchResult results = Product.search(ProductSearchParams.builder()
-                    .setQuery("metadata['app_id']:'" + product.getId() + "'")
-                    .build());
+        String findOrCreateProduct(Product product) {
+            return productIndex.getOrLoad(product.getId(), () -> searchOrCreateProduct(product));
+        }
+
+        private String searchOrCreateProduct(Product product) throws StripeException {
+            ProductSearchParams searchParams = ProductSearchParams.builder()
+                    .setQuery("metadata['" + ProductIndex.APP_ID + "']:'" + product.getId() + "'")
+                    .build();
+            ProductSearchResult results = gateway.call("product.search", () -> Product.search(searchParams));
 
             if (results.getData().isEmpty()) {
                 ProductCreateParams productCreateParams = ProductCreateParams.builder()
                         .setName(product.getName())
-                        .putMetadata("app_id", product.getId())
+                        .putMetadata(ProductIndex.APP_ID, product.getId())
                         .build();
 
-                return Product.create(productCreateParams);
+                // the search index lags behind creates, a key per app product lets Stripe replay a create of another
+                // instance instead of creating a duplicate product
+                RequestOptions options = requestOptions(ProductIndex.APP_ID + ":" + product.getId(), "product.create");
+                return gateway.call("product.create", () -> Product.create(productCreateParams, options)).getId();
             } else {
-                return results.getData().getFirst();
+                return results.getData().getFirst().getId();
             }
         }
 
-        @SneakyThrows
-        public Session createHostedSession(PaymentRequest paymentRequest, Customer customer, String clientBaseURL) {
-            SessionCreateParams.Builder paramsBuilder = SessionCreateParams.builder()
-                    .setMode(SessionCreateParams.Mode.PAYMENT)
-                    .setCustomer(customer.getId())
-                    .setSuccessUrl(clientBaseURL + "/success?session_id={CHECKOUT_SESSION_ID}")
-                    .setCancelUrl(clientBaseURL + "/failure");
+        public Session createHostedSession(PaymentRequest paymentRequest, Customer customer, String clientBaseURL, String idempotencyKey) {
+            return createSession(hostedSessionParams(paymentRequest, clientBaseURL), customer, idempotencyKey);
+        }
 
-            addLineItems(paymentRequest, paramsBuilder);
+        /**
+         * Checkout session parameters of a one-time payment, without the customer.
+         */
+        SessionCreateParams.Builder hostedSessionParams(PaymentRequest paymentRequest, String clientBaseURL) {
+            SessionCreateParams.Builder paramsBuilder = sessionTemplates.builder(SessionCreateParams.Mode.PAYMENT, clientBaseURL);
+            sessionTemplates.addLineItems(paymentRequest.items(), productService.priceTable(), SessionCreateParams.Mode.PAYMENT, paramsBuilder);
 
             if (paymentRequest.invoiceNeeded()) {
-                paramsBuilder.setInvoiceCreation(SessionCreateParams.InvoiceCreation.builder().setEnabled(true).build());
+                paramsBuilder.setInvoiceCreation(SessionTemplates.INVOICE_CREATION);
             }
+            return paramsBuilder;
+        }
 
-            return Session.create(paramsBuilder.build());
+        public Session createSubscriptionSession(PaymentRequest paymentRequest, Customer customer, String clientBaseURL, boolean trial, String idempotencyKey) {
+            return createSession(subscriptionSessionParams(paymentRequest, clientBaseURL, trial), customer, idempotencyKey);
         }
 
-        @SneakyThrows
-        public Session createSubscriptionSession(PaymentRequest paymentRequest, Customer customer, String clientBaseURL, boolean trial) {
-            SessionCreateParams.Builder paramsBuilder = SessionCreateParams.builder()
-                    .setMode(SessionCreateParams.Mode.SUBSCRIPTION)
-                    .setCustomer(customer.getId())
-                    .setSuccessUrl(clientBaseURL + "/success?session_id={CHECKOUT_SESSION_ID}")
-                    .setCancelUrl(clientBaseURL + "/failure");
+        /**
+         * Checkout session parameters of a monthly subscription, without the customer.
+         */
+        SessionCreateParams.Builder subscriptionSessionParams(PaymentRequest paymentRequest, String clientBaseURL, boolean trial) {
+            SessionCreateParams.Builder paramsBuilder = sessionTemplates.builder(SessionCreateParams.Mode.SUBSCRIPTION, clientBaseURL);
 
             if (trial) {
-                paramsBuilder.setSubscriptionData(SessionCreateParams.SubscriptionData.builder().setTrialPeriodDays(30L).build());
+                paramsBuilder.setSubscriptionData(SessionTemplates.TRIAL);
             }
 
-            addLineItems(paymentRequest, paramsBuilder);
-
-            return Session.create(paramsBuilder.build());
-        }
-
-        private void addLineItems(PaymentRequest paymentRequest, SessionCreateParams.Builder paramsBuilder) {
-            for (Product product : paymentRequest.items()) {
-                paramsBuilder.addLineItem(
-                        SessionCreateParams.LineItem.builder()
-                                .setQuantity(1L)
-                                .setPriceData(
-                                        SessionCreateParams.LineItem.PriceData.builder()
-                                                .setProductData(
-                                                        SessionCreateParams.LineItem.PriceData.ProductData.builder()
-                                                                .putMetadata("app_id", product.getId())
-                                                                .setName(product.getName())
-                                                                .build()
-                                                )
-                                                .setCurrency(productService.findProduct(product.getId()).getDefaultPriceObject().getCurrency())
-                                                .setUnitAmountDecimal(productService.findProduct(product.getId()).getDefaultPriceObject().getUnitAmountDecimal())
-                                                .setRecurring(SessionCreateParams.LineItem.PriceData.Recurring.builder().setInterval(SessionCreateParams.LineItem.PriceData.Recurring.Interval.MONTH).build())
-                                                .build())
-                                .build());
-            }
+            sessionTemplates.addLineItems(paymentRequest.items(), productService.priceTable(), SessionCreateParams.Mode.SUBSCRIPTION, paramsBuilder);
+            return paramsBuilder;
+        }
+
+        @SneakyThrows
+        Session createSession(SessionCreateParams.Builder paramsBuilder, Customer customer, String idempotencyKey) {
+            SessionCreateParams params = paramsBuilder.setCustomer(customer.getId()).build();
+            Session session = gateway.call("session.create", () -> Session.create(params, requestOptions(idempotencyKey, "session.create")));
+            ledger.ifPresent(l -> l.record(session));
+            viewCache.invalidate(customer.getId());
+            return session;
         }
 
         @SneakyThrows
         public Subscription cancelSubscription(String subscriptionId) {
-            Subscription subscription = Subscription.retrieve(subscriptionId);
-            return subscription.cancel();
+            Subscription subscription = gateway.call("subscription.retrieve", () -> Subscription.retrieve(subscriptionId));
+            Subscription canceled = gateway.call("subscription.cancel", subscription::cancel);
+            ledger.ifPresent(l -> l.record(canceled));
+            viewCache.invalidate(canceled.getCustomer());
+            return canceled;
         }
 
         @SneakyThrows
-        public List<Map<String, String>> listSubscriptions(String customerId) {
-            SubscriptionCollection subscriptions = Subscription.list(SubscriptionListParams.builder()
+        public Page<SubscriptionView> listSubscriptions(String customerId, String startingAfter, long limit) {
+            Page.checkLimit(limit);
+            if (!isFirstDefaultPage(startingAfter, limit)) {
+                return loadSubscriptions(customerId, startingAfter, limit);
+            }
+            return viewCache.get(customerId, CustomerViewCache.View.SUBSCRIPTIONS, startingAfter, limit, () -> loadSubscriptions(customerId, startingAfter, limit));
+        }
+
+        private Page<SubscriptionView> loadSubscriptions(String customerId, String startingAfter, long limit) throws StripeException {
+            SubscriptionListParams params = SubscriptionListParams.builder()
                     .setCustomer(customerId)
-                    .build());
+                    .setStartingAfter(startingAfter)
+                    .setLimit(limit)
+                    .build();
+            SubscriptionCollection subscriptions = gateway.call("subscription.list", () -> Subscription.list(params));
 
-            return getSubscriptionDetails(subscriptions);
+            List<Subscription> data = subscriptions.getData();
+            String nextCursor = Boolean.TRUE.equals(subscriptions.getHasMore()) ? data.getLast().getId() : null;
+            return new Page<>(getSubscriptionDetails(subscriptions), nextCursor);
         }
 
+        /**
+         * Lists items of all subscriptions concurrently, one <code>SubscriptionItem.list</code> call per subscription,
+         * bounded by <code>stripe.fanout.max-concurrency</code> and <code>stripe.fanout.deadline</code>.
+         */
         @SneakyThrows
-        private List<Map<String, String>> getSubscriptionDetails(SubscriptionCollection subscriptions) {
-            List<Map<String, String>> response = new ArrayList<>();
-            for (Subscription subscription : subscriptions.getData()) {
-                SubscriptionItemCollection items = SubscriptionItem.list(SubscriptionItemListParams.builder()
-                        .setSubscription(subscription.getId())
-                        .addExpand("data.price.product")
-                        .build());
-
-                for (SubscriptionItem item : items.getData()) {
-                    response.add(createSubscriptionMap(subscription, item));
+        private List<SubscriptionView> getSubscriptionDetails(SubscriptionCollection subscriptions) {
+            List<Subscription> data = subscriptions.getData();
+            List<SubscriptionItemCollection> itemsPerSubscription = ConcurrentCalls.map(data, fanOutMaxConcurrency, fanOutDeadline,
+                    subscription -> gateway.call("subscriptionitem.list", () -> SubscriptionItem.list(SubscriptionItemListParams.builder()
+                            .setSubscription(subscription.getId())
+                            .addExpand("data.price.product")
+                            .build())));
+
+            long now = Instant.now().getEpochSecond();
+            List<SubscriptionView> response = new ArrayList<>();
+            for (int i = 0; i < data.size(); i++) {
+                for (SubscriptionItem item : itemsPerSubscription.get(i).getData()) {
+                    response.add(SubscriptionView.of(data.get(i), item, now));
                 }
             }
             return response;
         }
 
-        private Map<String, String> createSubscriptionMap(Subscription subscription, SubscriptionItem item) {
-            Map<String, String> map = new HashMap<>();
-            map.put("appProductId", item.getPrice().getProductObject().getMetadata().get("app_id"));
-            map.put("subscriptionId", subscription.getId());
-            map.put("subscribedOn", new SimpleDateFormat("dd/MM/yyyy").format(new Date(subscription.getStartDate() * 1000)));
-            map.put("nextPaymentDate", new SimpleDateFormat("dd/MM/yyyy").format(new Date(subscription.getCurrentPeriodEnd() * 1000)));
-            map.put("price", item.getPrice().getUnitAmountDecimal().toString());
-
-            if (subscription.getTrialEnd() != null && new Date(subscription.getTrialEnd() * 1000).after(new Date())) {
-                map.put("trialEndsOn", new SimpleDateFormat("dd/MM/yyyy").format(new Date(subscription.getTrialEnd() * 1000)));
+        @SneakyThrows
+        public Page<InvoiceView> listInvoices(String customerId, String startingAfter, long limit) {
+            Page.checkLimit(limit);
+            if (!isFirstDefaultPage(startingAfter, limit)) {
+                return loadInvoices(customerId, startingAfter, limit);
             }
-            return map;
+            return viewCache.get(customerId, CustomerViewCache.View.INVOICES, startingAfter, limit, () -> loadInvoices(customerId, startingAfter, limit));
         }
 
-        @SneakyThrows
-        public List<Map<String, String>> listInvoices(String customerId) {
-            Map<String, Object> invoiceSearchParams = new HashMap<>();
-            invoiceSearchParams.put("customer", customerId);
-            InvoiceCollection invoices = Invoice.list(invoiceSearchParams);
-
-            List<Map<String, String>> response = new ArrayList<>();
-            for (Invoice invoice : invoices.getData()) {
-                Map<String, String> map = new HashMap<>();
-                map.put("number", invoice.getNumber());
-                map.put("amount", String.valueOf((invoice.getTotal() / 100f)));
-                map.put("url", invoice.getInvoicePdf());
-                response.add(map);
-            }
-            return response;
+        /**
+         * Only the page most clients read is cached. Streams read every page with the maximum limit and must not pin
+         * them in memory, and deeper pages are rarely read twice.
+         */
+        private static boolean isFirstDefaultPage(String startingAfter, long limit) {
+            return startingAfter == null && limit == Page.DEFAULT_LIMIT;
         }
 
-        private String calculateOrderAmount(List<Product> items) {
-            BigDecimal total = BigDecimal.ZERO;
-            for (Product item : items) {
-                total = total.add(productService.findProduct(item.getId()).getDefaultPriceObject().getUnitAmountDecimal());
+        private Page<InvoiceView> loadInvoices(String customerId, String startingAfter, long limit) throws StripeException {
+            InvoiceListParams params = InvoiceListParams.builder()
+                    .setCustomer(customerId)
+                    .setStartingAfter(startingAfter)
+                    .setLimit(limit)
+                    .build();
+            InvoiceCollection invoices = gateway.call("invoice.list", () -> Invoice.list(params));
+
+            List<Invoice> data = invoices.getData();
+            List<InvoiceView> response = new ArrayList<>(data.size());
+            for (Invoice invoice : data) {
+                response.add(InvoiceView.of(invoice));
             }
-            return total.toString();
+            String nextCursor = Boolean.TRUE.equals(invoices.getHasMore()) ? data.getLast().getId() : null;
+            return new Page<>(response, nextCursor);
+        }
+
+        /**
+         * @throws IllegalArgumentException if the cart is empty, has unknown products or mixes currencies
+         */
+        private PriceTable.Total calculateOrderAmount(List<Product> items) {
+            return priceTable().total(items);
+        }
+
+        PriceTable priceTable() {
+            return productService.priceTable();
         }
     }
 }
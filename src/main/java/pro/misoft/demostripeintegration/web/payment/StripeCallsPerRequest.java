@@ -0,0 +1,75 @@
+package pro.misoft.demostripeintegration.web.payment;
+
+import io.micrometer.common.KeyValue;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationHandler;
+import io.micrometer.observation.ObservationView;
+import org.springframework.http.server.observation.ServerRequestObservationContext;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records the number of Stripe calls made while serving each API request as the <code>stripe.calls.per.request</code>
+ * distribution summary, tagged with the route template. A route whose distribution grows with the request size is an
+ * N+1 pattern.
+ * <p>
+ * Stripe calls are attributed to the request through the observation hierarchy. The observation of the request follows
+ * calls forked by {@link pro.misoft.demostripeintegration.common.ConcurrentCalls}, steps of {@link AsyncStripe} and
+ * streamed response bodies (see <code>TracingConfig.observationTaskDecorator</code>), so their calls are counted
+ * as well.
+ */
+@Component
+public class StripeCallsPerRequest implements ObservationHandler<ServerRequestObservationContext> {
+
+    private final MeterRegistry meterRegistry;
+
+    public StripeCallsPerRequest(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * Counts a Stripe call for the server request enclosing the observation, if any.
+     */
+    static void count(Observation.ContextView context) {
+        for (ObservationView parent = context.getParentObservation(); parent != null; parent = parent.getContextView().getParentObservation()) {
+            if (parent.getContextView() instanceof ServerRequestObservationContext requestContext) {
+                AtomicInteger calls = requestContext.get(StripeCallsPerRequest.class);
+                if (calls != null) {
+                    calls.incrementAndGet();
+                }
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void onStart(ServerRequestObservationContext context) {
+        context.put(StripeCallsPerRequest.class, new AtomicInteger());
+    }
+
+    @Override
+    public void onStop(ServerRequestObservationContext context) {
+        AtomicInteger calls = context.get(StripeCallsPerRequest.class);
+        if (calls == null) {
+            return;
+        }
+        DistributionSummary.builder("stripe.calls.per.request")
+                .description("Stripe calls made while serving one API request")
+                .tags("method", value(context, "method"), "uri", value(context, "uri"))
+                .register(meterRegistry)
+                .record(calls.get());
+    }
+
+    @Override
+    public boolean supportsContext(Observation.Context context) {
+        return context instanceof ServerRequestObservationContext;
+    }
+
+    private static String value(Observation.Context context, String key) {
+        KeyValue keyValue = context.getLowCardinalityKeyValue(key);
+        return keyValue == null ? "UNKNOWN" : keyValue.getValue();
+    }
+}
@@ -0,0 +1,17 @@
+package pro.misoft.demostripeintegration.web.payment;
+
+import com.stripe.model.Event;
+import com.stripe.model.StripeObject;
+
+/**
+ * Receives verified Stripe webhook events, in order of arrival, on the webhook consumer thread.
+ * Implementations must be quick and must not call Stripe.
+ */
+public interface StripeEventListener {
+
+    /**
+     * @param event  verified event
+     * @param object deserialized <code>data.object</code> of the event
+     */
+    void onEvent(Event event, StripeObject object);
+}
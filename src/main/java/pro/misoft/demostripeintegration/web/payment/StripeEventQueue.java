@@ -0,0 +1,178 @@
+package pro.misoft.demostripeintegration.web.payment;
+
+import com.stripe.model.Event;
+import com.stripe.model.StripeObject;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import pro.misoft.demostripeintegration.common.BackpressureException;
+import pro.misoft.demostripeintegration.common.BoundedCache;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded in-memory queue between the webhook receiver and {@link StripeEventListener}s.
+ * <p>
+ * A single consumer on its own virtual thread drains the queue in batches, skips events already processed (Stripe
+ * delivers at least once) and restores the MDC context of the receiving request for every event. Each batch is observed
+ * as <code>stripe.webhooks.batch</code> and each event as <code>stripe.webhooks.event</code>, a child of the receiving
+ * request's observation, so that the processing and its logs stay in the trace of the webhook delivery.
+ * When the queue is full the receiver answers 503 and Stripe retries the delivery later.
+ */
+@Component
+public class StripeEventQueue {
+
+    private static final Logger log = LoggerFactory.getLogger(StripeEventQueue.class);
+    private static final long POLL_TIMEOUT_MILLIS = 500;
+    private static final String BATCH_OBSERVATION = "stripe.webhooks.batch";
+    private static final String EVENT_OBSERVATION = "stripe.webhooks.event";
+
+    private final BlockingQueue<Envelope> queue;
+    private final int maxBatchSize;
+    private final List<StripeEventListener> listeners;
+    private final BoundedCache<String, Boolean> processedEventIds;
+    private final ObservationRegistry observationRegistry;
+    private final Thread consumer;
+    private volatile boolean running = true;
+
+    private final Counter received;
+    private final Counter rejected;
+    private final Counter duplicates;
+    private final Counter failed;
+    private final Timer lag;
+    private final DistributionSummary batchSize;
+
+    public StripeEventQueue(List<StripeEventListener> listeners, MeterRegistry meterRegistry, ObservationRegistry observationRegistry,
+                            @Value("${stripe.webhooks.queue.capacity:10000}") int capacity,
+                            @Value("${stripe.webhooks.batch.max-size:100}") int maxBatchSize,
+                            @Value("${stripe.webhooks.dedup.max-size:100000}") int dedupMaxSize,
+                            @Value("${stripe.webhooks.dedup.ttl:72h}") Duration dedupTtl) {
+        this.listeners = listeners;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.maxBatchSize = maxBatchSize;
+        this.processedEventIds = new BoundedCache<>(dedupMaxSize, dedupTtl);
+        this.observationRegistry = observationRegistry;
+
+        this.received = meterRegistry.counter("stripe.webhooks.events", "outcome", "received");
+        this.rejected = meterRegistry.counter("stripe.webhooks.events", "outcome", "rejected");
+        this.duplicates = meterRegistry.counter("stripe.webhooks.events", "outcome", "duplicate");
+        this.failed = meterRegistry.counter("stripe.webhooks.events", "outcome", "failed");
+        this.lag = Timer.builder("stripe.webhooks.lag")
+                .description("Time from receiving an event to having it processed")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        this.batchSize = DistributionSummary.builder("stripe.webhooks.batch.size").register(meterRegistry);
+        Gauge.builder("stripe.webhooks.queue.depth", queue, BlockingQueue::size).register(meterRegistry);
+
+        this.consumer = Thread.ofVirtual().name("stripe-webhook-consumer").start(this::consume);
+    }
+
+    /**
+     * @throws BackpressureException if the queue is full
+     */
+    public void enqueue(Event event) {
+        Envelope envelope = new Envelope(event, System.nanoTime(), MDC.getCopyOfContextMap(), observationRegistry.getCurrentObservation());
+        if (!queue.offer(envelope)) {
+            rejected.increment();
+            throw new BackpressureException("Webhook queue is full, event [%s] rejected".formatted(event.getId()));
+        }
+        received.increment();
+    }
+
+    /**
+     * Runs on the consumer thread only.
+     */
+    private void consume() {
+        log.info("Stripe webhook consumer started");
+        List<Envelope> batch = new ArrayList<>(maxBatchSize);
+        while (running) {
+            try {
+                Envelope first = queue.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, maxBatchSize - 1);
+                batchSize.record(batch.size());
+                Observation.createNotStarted(BATCH_OBSERVATION, observationRegistry)
+                        .highCardinalityKeyValue("size", Integer.toString(batch.size()))
+                        .observe(() -> batch.forEach(this::process));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } finally {
+                batch.clear();
+            }
+        }
+        log.info("Stripe webhook consumer stopped with {} unprocessed events", queue.size());
+    }
+
+    /**
+     * Lets the consumer finish its current batch. Events still queued are lost, they were already acknowledged.
+     */
+    @PreDestroy
+    void stop() throws InterruptedException {
+        running = false;
+        consumer.join(TimeUnit.SECONDS.toMillis(30));
+    }
+
+    private void process(Envelope envelope) {
+        Event event = envelope.event();
+        if (processedEventIds.get(event.getId()) != null) {
+            duplicates.increment();
+            return;
+        }
+        if (envelope.contextMap() != null) {
+            MDC.setContextMap(envelope.contextMap());
+        }
+        Observation observation = Observation.createNotStarted(EVENT_OBSERVATION, observationRegistry)
+                .lowCardinalityKeyValue("type", event.getType())
+                .highCardinalityKeyValue("id", event.getId());
+        if (envelope.parent() != null) {
+            // otherwise a child of the batch
+            observation.parentObservation(envelope.parent());
+        }
+        observation.start();
+        try (Observation.Scope scope = observation.openScope()) {
+            StripeObject object = event.getDataObjectDeserializer().getObject().orElse(null);
+            if (object == null) {
+                log.warn("Skipping event id={} type={}, its API version {} does not match the SDK", event.getId(), event.getType(), event.getApiVersion());
+            } else {
+                for (StripeEventListener listener : listeners) {
+                    listener.onEvent(event, object);
+                }
+            }
+            processedEventIds.put(event.getId(), Boolean.TRUE);
+        } catch (RuntimeException e) {
+            failed.increment();
+            observation.error(e);
+            log.error("Failed to process Stripe event id={} type={}", event.getId(), event.getType(), e);
+        } finally {
+            observation.stop();
+            lag.record(System.nanoTime() - envelope.receivedAt(), TimeUnit.NANOSECONDS);
+            MDC.clear();
+        }
+    }
+
+    /**
+     * @param parent observation of the receiving request, null if it was not observed
+     */
+    private record Envelope(Event event, long receivedAt, Map<String, String> contextMap, Observation parent) {
+    }
+}
@@ -0,0 +1,184 @@
+package pro.misoft.demostripeintegration.web.payment;
+
+import com.stripe.exception.ApiConnectionException;
+import com.stripe.exception.RateLimitException;
+import com.stripe.exception.StripeException;
+import io.github.resilience4j.bulkhead.Bulkhead;
+import io.github.resilience4j.bulkhead.BulkheadConfig;
+import io.github.resilience4j.bulkhead.BulkheadFullException;
+import io.github.resilience4j.bulkhead.BulkheadRegistry;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerConfig;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerRegistry;
+import io.github.resilience4j.core.exception.AcquirePermissionCancelledException;
+import io.github.resilience4j.core.functions.CheckedSupplier;
+import io.github.resilience4j.micrometer.tagged.TaggedBulkheadMetrics;
+import io.github.resilience4j.micrometer.tagged.TaggedCircuitBreakerMetrics;
+import io.github.resilience4j.micrometer.tagged.TaggedRateLimiterMetrics;
+import io.github.resilience4j.ratelimiter.RateLimiter;
+import io.github.resilience4j.ratelimiter.RateLimiterConfig;
+import io.github.resilience4j.ratelimiter.RateLimiterRegistry;
+import io.github.resilience4j.ratelimiter.RequestNotPermitted;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.stereotype.Component;
+import pro.misoft.demostripeintegration.common.BackpressureException;
+import pro.misoft.demostripeintegration.common.Deadline;
+
+import java.time.Duration;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Single entry point for every outbound Stripe SDK call.
+ * <p>
+ * Each call passes a circuit breaker, a bulkhead per operation and a token bucket rate limiter shared by the whole
+ * account, in that order, so that calls rejected by an open circuit or a full bulkhead do not use up rate permits.
+ * Every Stripe request is bounded by the timeouts of {@link JdkStripeHttpClient}, capped at the {@link Deadline} of the
+ * current API request. Calls that cannot get a permit in time are rejected with <code>CallNotPermittedException</code>,
+ * <code>BulkheadFullException</code> or <code>RequestNotPermitted</code>, and calls made after the deadline of the
+ * request passed with {@link BackpressureException}, all translated to <code>503</code>, instead of piling up virtual
+ * threads waiting for a slow Stripe.
+ * <p>
+ * Every call is observed as <code>stripe.calls</code> tagged with the operation, which gives a latency timer per
+ * operation and a child span of the current request span. Failures are counted by Stripe error type in
+ * <code>stripe.calls.errors</code>, and calls are counted per API request by {@link StripeCallsPerRequest}. Calls
+ * cancelled by the caller, e.g. interrupted siblings of a failed fan-out, are neither errors nor failures of Stripe.
+ */
+@Component
+@EnableConfigurationProperties(StripeLimitsProperties.class)
+public class StripeGateway {
+
+    static final String NAME = "stripe";
+    static final String OBSERVATION = "stripe.calls";
+
+    private final RateLimiter rateLimiter;
+    private final CircuitBreaker circuitBreaker;
+    private final BulkheadRegistry bulkheads;
+    private final ObservationRegistry observationRegistry;
+    private final MeterRegistry meterRegistry;
+
+    public StripeGateway(StripeLimitsProperties limits, MeterRegistry meterRegistry, ObservationRegistry observationRegistry) {
+        RateLimiterRegistry rateLimiters = RateLimiterRegistry.of(RateLimiterConfig.custom()
+                .limitForPeriod(limits.ratePerSecond())
+                .limitRefreshPeriod(Duration.ofSeconds(1))
+                .timeoutDuration(limits.rateLimitTimeout())
+                .build());
+        CircuitBreakerRegistry circuitBreakers = CircuitBreakerRegistry.of(CircuitBreakerConfig.custom()
+                .failureRateThreshold(limits.failureRateThreshold())
+                .slowCallDurationThreshold(limits.slowCallDuration())
+                .waitDurationInOpenState(limits.openStateDuration())
+                // client errors like declined cards or invalid requests say nothing about Stripe's health
+                .recordException(StripeGateway::isStripeFailure)
+                // rejected before reaching Stripe, neither a failure nor a success
+                .ignoreExceptions(BulkheadFullException.class, RequestNotPermitted.class, BackpressureException.class)
+                // cancelled by the caller, recording it as a success or a failure would skew the failure rate
+                .ignoreException(StripeGateway::isCancellation)
+                .build());
+        this.bulkheads = BulkheadRegistry.of(BulkheadConfig.custom()
+                .maxConcurrentCalls(limits.maxConcurrentCalls())
+                .maxWaitDuration(limits.bulkheadMaxWait())
+                .build());
+        this.rateLimiter = rateLimiters.rateLimiter(NAME);
+        this.circuitBreaker = circuitBreakers.circuitBreaker(NAME);
+        this.observationRegistry = observationRegistry;
+        this.meterRegistry = meterRegistry;
+
+        TaggedRateLimiterMetrics.ofRateLimiterRegistry(rateLimiters).bindTo(meterRegistry);
+        TaggedCircuitBreakerMetrics.ofCircuitBreakerRegistry(circuitBreakers).bindTo(meterRegistry);
+        TaggedBulkheadMetrics.ofBulkheadRegistry(bulkheads).bindTo(meterRegistry);
+    }
+
+    @FunctionalInterface
+    public interface StripeCall<T> {
+        T execute() throws StripeException;
+    }
+
+    /**
+     * Executes the Stripe call under the client-side limits.
+     *
+     * @param operation name of the Stripe operation, e.g. <code>customer.search</code>, one bulkhead is kept per name
+     * @throws BackpressureException if the deadline of the current API request passed
+     */
+    public <T> T call(String operation, StripeCall<T> call) throws StripeException {
+        Deadline deadline = Deadline.current();
+        Bulkhead bulkhead = bulkheads.bulkhead(operation);
+        CheckedSupplier<T> guarded = CircuitBreaker.decorateCheckedSupplier(circuitBreaker,
+                Bulkhead.decorateCheckedSupplier(bulkhead,
+                        RateLimiter.decorateCheckedSupplier(rateLimiter, () -> {
+                            // waiting for the permits may have used up the rest of the budget
+                            checkDeadline(deadline, operation);
+                            return call.execute();
+                        })));
+        Observation observation = Observation.createNotStarted(OBSERVATION, observationRegistry)
+                .contextualName("stripe " + operation)
+                .lowCardinalityKeyValue("operation", operation);
+        StripeCallsPerRequest.count(observation.getContext());
+        observation.start();
+        try (Observation.Scope scope = observation.openScope()) {
+            checkDeadline(deadline, operation);
+            return guarded.get();
+        } catch (StripeException | RuntimeException | Error e) {
+            if (!isCancellation(e)) {
+                observation.error(e);
+                countError(operation, e);
+            }
+            throw e;
+        } catch (Throwable e) {
+            observation.error(e);
+            countError(operation, e);
+            throw new IllegalStateException("Unexpected failure of Stripe operation " + operation, e);
+        } finally {
+            observation.stop();
+        }
+    }
+
+    private static void checkDeadline(Deadline deadline, String operation) {
+        if (deadline != null && deadline.isExpired()) {
+            throw new BackpressureException("Request %s passed, Stripe operation [%s] not called".formatted(deadline, operation));
+        }
+    }
+
+    /**
+     * Tags failures with the Stripe error type, e.g. <code>card_error</code>, or with the exception name when Stripe
+     * did not answer, e.g. <code>ApiConnectionException</code> or <code>RequestNotPermitted</code>.
+     */
+    private void countError(String operation, Throwable e) {
+        String type = e.getClass().getSimpleName();
+        String status = "none";
+        if (e instanceof StripeException stripeException) {
+            if (stripeException.getStripeError() != null && stripeException.getStripeError().getType() != null) {
+                type = stripeException.getStripeError().getType();
+            }
+            if (stripeException.getStatusCode() != null) {
+                status = String.valueOf(stripeException.getStatusCode());
+            }
+        }
+        Counter.builder("stripe.calls.errors")
+                .tags("operation", operation, "type", type, "status", status)
+                .register(meterRegistry)
+                .increment();
+    }
+
+    /**
+     * Interrupted while calling Stripe or while waiting for a bulkhead permit.
+     */
+    private static boolean isCancellation(Throwable e) {
+        return e instanceof CancellationException || e instanceof AcquirePermissionCancelledException
+                || e instanceof InterruptedException || e.getCause() instanceof InterruptedException;
+    }
+
+    private static boolean isStripeFailure(Throwable e) {
+        if (isCancellation(e)) {
+            return false;
+        }
+        if (e instanceof ApiConnectionException || e instanceof RateLimitException) {
+            return true;
+        }
+        return e instanceof StripeException stripeException
+                && stripeException.getStatusCode() != null
+                && stripeException.getStatusCode() >= 500;
+    }
+}
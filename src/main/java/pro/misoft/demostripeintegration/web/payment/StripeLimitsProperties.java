@@ -0,0 +1,32 @@
+package pro.misoft.demostripeintegration.web.payment;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+import java.time.Duration;
+
+/**
+ * Client-side limits applied by {@link StripeGateway} to all outbound Stripe calls.
+ *
+ * @param ratePerSecond            calls per second allowed for the whole account, below Stripe's live mode limit of 100
+ * @param rateLimitTimeout         maximum time a call waits for a rate limiter permit before it is shed
+ * @param maxConcurrentCalls       maximum concurrent calls per operation, e.g. <code>customer.search</code>
+ * @param bulkheadMaxWait          maximum time a call waits for a free bulkhead slot before it is shed
+ * @param failureRateThreshold     percentage of failed calls that opens the circuit breaker
+ * @param slowCallDuration         calls slower than that count as slow for the circuit breaker
+ * @param openStateDuration        time the open circuit breaker rejects calls before probing Stripe again
+ * @param connectTimeout           TCP connect timeout of a single Stripe request
+ * @param readTimeout              maximum time to wait for the response of a single Stripe request
+ */
+@ConfigurationProperties("stripe.limits")
+public record StripeLimitsProperties(
+        @DefaultValue("90") int ratePerSecond,
+        @DefaultValue("1s") Duration rateLimitTimeout,
+        @DefaultValue("50") int maxConcurrentCalls,
+        @DefaultValue("500ms") Duration bulkheadMaxWait,
+        @DefaultValue("50") float failureRateThreshold,
+        @DefaultValue("10s") Duration slowCallDuration,
+        @DefaultValue("30s") Duration openStateDuration,
+        @DefaultValue("5s") Duration connectTimeout,
+        @DefaultValue("20s") Duration readTimeout) {
+}
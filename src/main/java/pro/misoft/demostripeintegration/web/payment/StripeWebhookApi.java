@@ -0,0 +1,38 @@
+package pro.misoft.demostripeintegration.web.payment;
+
+import com.stripe.exception.SignatureVerificationException;
+import com.stripe.model.Event;
+import com.stripe.net.Webhook;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Receives Stripe webhooks. Only verifies the signature and enqueues the event, processing happens
+ * asynchronously in {@link StripeEventQueue} so that Stripe gets its acknowledgement within milliseconds.
+ */
+@RestController
+@RequestMapping(value = "/v1/payments", consumes = MediaType.APPLICATION_JSON_VALUE)
+public class StripeWebhookApi {
+
+    private final StripeEventQueue eventQueue;
+    private final String webhookSecret;
+
+    public StripeWebhookApi(StripeEventQueue eventQueue, @Value("${stripe.webhook.secret}") String webhookSecret) {
+        this.eventQueue = eventQueue;
+        this.webhookSecret = webhookSecret;
+    }
+
+    @PostMapping("/webhooks")
+    public ResponseEntity<Void> receive(@RequestBody String payload,
+                                        @RequestHeader("Stripe-Signature") String signature) throws SignatureVerificationException {
+        Event event = Webhook.constructEvent(payload, signature, webhookSecret);
+        eventQueue.enqueue(event);
+        return ResponseEntity.ok().build();
+    }
+}
@@ -0,0 +1,50 @@
+package pro.misoft.demostripeintegration.web.payment;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.stripe.model.Price;
+import com.stripe.model.Subscription;
+import com.stripe.model.SubscriptionItem;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * One subscribed product of a customer subscription.
+ *
+ * @param price       unit price in currency minor units as Stripe returns it, e.g. <code>2999</code> for USD 29.99,
+ *                    may be fractional
+ * @param trialEndsOn present only while the trial is running
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public record SubscriptionView(
+        String appProductId,
+        String subscriptionId,
+        String subscribedOn,
+        String nextPaymentDate,
+        String price,
+        String trialEndsOn) {
+
+    static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("dd/MM/yyyy").withZone(ZoneId.systemDefault());
+
+    /**
+     * @param nowEpochSecond current time, taken once per listing rather than per row
+     */
+    static SubscriptionView of(Subscription subscription, SubscriptionItem item, long nowEpochSecond) {
+        Price price = item.getPrice();
+        Long trialEnd = subscription.getTrialEnd();
+        return new SubscriptionView(
+                price.getProductObject().getMetadata().get(ProductIndex.APP_ID),
+                subscription.getId(),
+                formatDate(subscription.getStartDate()),
+                formatDate(subscription.getCurrentPeriodEnd()),
+                price.getUnitAmountDecimal() != null
+                        ? price.getUnitAmountDecimal().toPlainString()
+                        : Long.toString(price.getUnitAmount()),
+                trialEnd != null && trialEnd > nowEpochSecond ? formatDate(trialEnd) : null);
+    }
+
+    private static String formatDate(long epochSecond) {
+        return DATE_FORMAT.format(Instant.ofEpochSecond(epochSecond));
+    }
+}
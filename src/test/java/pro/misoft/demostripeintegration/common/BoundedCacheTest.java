@@ -0,0 +1,93 @@
+package pro.misoft.demostripeintegration.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class BoundedCacheTest {
+
+    @Test
+    void evictsLeastRecentlyUsedEntryWhenFull() {
+        BoundedCache<String, Integer> cache = new BoundedCache<>(2, Duration.ofMinutes(1));
+        cache.put("a", 1);
+        cache.put("b", 2);
+        // reading "a" makes "b" the least recently used entry
+        assertThat(cache.get("a")).isEqualTo(1);
+
+        cache.put("c", 3);
+
+        assertThat(cache.get("b")).isNull();
+        assertThat(cache.get("a")).isEqualTo(1);
+        assertThat(cache.get("c")).isEqualTo(3);
+        assertThat(cache.size()).isEqualTo(2);
+        assertThat(cache.evictionCount()).isEqualTo(1);
+    }
+
+    @Test
+    void weighedValuesAreEvictedByTotalWeight() {
+        BoundedCache<String, String> cache = new BoundedCache<>(10, Duration.ofMinutes(1), String::length);
+        cache.put("a", "aaaa");
+        cache.put("b", "bbbb");
+        cache.put("a", "aa");
+        assertThat(cache.weight()).isEqualTo(6);
+
+        // "b" is the least recently used value
+        cache.put("c", "cccccc");
+
+        assertThat(cache.get("b")).isNull();
+        assertThat(cache.get("a")).isEqualTo("aa");
+        assertThat(cache.weight()).isEqualTo(8);
+
+        cache.put("d", "d".repeat(11));
+        cache.invalidate("c");
+
+        assertThat(cache.size()).isZero();
+        assertThat(cache.weight()).isZero();
+    }
+
+    @Test
+    void expiredEntryIsAMissAndRemoved() {
+        BoundedCache<String, Integer> cache = new BoundedCache<>(10, Duration.ZERO);
+        cache.put("a", 1);
+
+        assertThat(cache.get("a")).isNull();
+        assertThat(cache.size()).isZero();
+        assertThat(cache.missCount()).isEqualTo(1);
+        assertThat(cache.evictionCount()).isEqualTo(1);
+    }
+
+    @Test
+    void entryIsServedWithinItsTimeToLive() {
+        BoundedCache<String, Integer> cache = new BoundedCache<>(10, Duration.ofMinutes(1));
+        cache.put("a", 1);
+
+        assertThat(cache.get("a")).isEqualTo(1);
+        assertThat(cache.hitCount()).isEqualTo(1);
+    }
+
+    @Test
+    void putRenewsTimeToLiveAndReplacesValue() {
+        BoundedCache<String, Integer> cache = new BoundedCache<>(10, Duration.ofMinutes(1));
+        cache.put("a", 1);
+        cache.put("a", 2);
+
+        assertThat(cache.get("a")).isEqualTo(2);
+        assertThat(cache.size()).isEqualTo(1);
+    }
+
+    @Test
+    void invalidateIfRemovesMatchingEntriesOnly() {
+        BoundedCache<String, Integer> cache = new BoundedCache<>(10, Duration.ofMinutes(1));
+        cache.put("a", 1);
+        cache.put("b", 2);
+        cache.put("c", 3);
+
+        cache.invalidateIf((key, value) -> value % 2 == 1);
+
+        assertThat(cache.get("a")).isNull();
+        assertThat(cache.get("b")).isEqualTo(2);
+        assertThat(cache.get("c")).isNull();
+    }
+}
@@ -0,0 +1,128 @@
+package pro.misoft.demostripeintegration.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ConcurrentCallsTest {
+
+    private static final Duration DEADLINE = Duration.ofSeconds(10);
+
+    @Test
+    void mapReturnsResultsInOrderOfInputs() throws Exception {
+        List<Integer> results = ConcurrentCalls.map(List.of(3, 1, 2), 3, DEADLINE, input -> {
+            Thread.sleep(input * 10L);
+            return input * 10;
+        });
+
+        assertThat(results).containsExactly(30, 10, 20);
+    }
+
+    @Test
+    void mapFailsFastAndCancelsTheOtherCalls() throws Exception {
+        CountDownLatch started = new CountDownLatch(2);
+        CountDownLatch interrupted = new CountDownLatch(2);
+        long start = System.nanoTime();
+
+        assertThatThrownBy(() -> ConcurrentCalls.map(List.of(0, 1, 2), 3, DEADLINE, input -> {
+            if (input == 0) {
+                assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+                throw new IllegalStateException("card declined");
+            }
+            started.countDown();
+            try {
+                Thread.sleep(DEADLINE.toMillis());
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+                throw e;
+            }
+            return input;
+        })).isInstanceOf(IllegalStateException.class).hasMessage("card declined");
+
+        // map returns only after all forked calls have finished, so the others were interrupted by then
+        assertThat(interrupted.getCount()).isZero();
+        assertThat(System.nanoTime() - start).isLessThan(DEADLINE.toNanos());
+    }
+
+    @Test
+    void mapCancelsAllCallsAtTheDeadline() {
+        AtomicInteger interrupted = new AtomicInteger();
+
+        assertThatThrownBy(() -> ConcurrentCalls.map(List.of(0, 1), 2, Duration.ofMillis(100), input -> {
+            try {
+                Thread.sleep(DEADLINE.toMillis());
+            } catch (InterruptedException e) {
+                interrupted.incrementAndGet();
+                throw e;
+            }
+            return input;
+        })).isInstanceOf(TimeoutException.class);
+
+        assertThat(interrupted).hasValue(2);
+    }
+
+    @Test
+    void mapRunsAtMostMaxConcurrencyCalls() throws Exception {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+
+        ConcurrentCalls.map(IntStream.range(0, 20).boxed().toList(), 4, DEADLINE, input -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            Thread.sleep(10);
+            running.decrementAndGet();
+            return input;
+        });
+
+        assertThat(maxRunning.get()).isBetween(1, 4);
+    }
+
+    @Test
+    void forEachReportsEveryOutcomeWithoutFailingTheOthers() throws Exception {
+        ConcurrentHashMap<Integer, Object> outcomes = new ConcurrentHashMap<>();
+        List<Integer> reported = new ArrayList<>();
+
+        ConcurrentCalls.forEach(List.of(0, 1, 2), 3, DEADLINE, input -> {
+            if (input == 1) {
+                throw new IllegalStateException("card declined");
+            }
+            return input * 10;
+        }, (index, result, failure) -> {
+            outcomes.put(index, failure == null ? result : failure.getMessage());
+            // on the calling thread, in order of completion
+            reported.add(index);
+        });
+
+        assertThat(outcomes).containsEntry(0, 0).containsEntry(1, "card declined").containsEntry(2, 20);
+        assertThat(reported).containsExactlyInAnyOrder(0, 1, 2);
+    }
+
+    @Test
+    void forEachReportsCallsNotDoneAtTheDeadlineAsTimeouts() throws Exception {
+        ConcurrentHashMap<Integer, Exception> failures = new ConcurrentHashMap<>();
+
+        ConcurrentCalls.forEach(List.of(0, 1), 2, Duration.ofMillis(100), input -> {
+            if (input == 1) {
+                Thread.sleep(DEADLINE.toMillis());
+            }
+            return input;
+        }, (index, result, failure) -> {
+            if (failure != null) {
+                failures.put(index, failure);
+            }
+        });
+
+        assertThat(failures).containsOnlyKeys(1);
+        assertThat(failures.get(1)).isInstanceOf(TimeoutException.class);
+    }
+}
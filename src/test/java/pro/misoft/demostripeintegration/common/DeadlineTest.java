@@ -0,0 +1,60 @@
+package pro.misoft.demostripeintegration.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DeadlineTest {
+
+    @Test
+    void scopeSetsAndRestoresTheCurrentDeadline() {
+        Deadline outer = Deadline.after(Duration.ofMinutes(1));
+        Deadline inner = Deadline.after(Duration.ofSeconds(1));
+
+        try (Deadline.Scope outerScope = outer.open()) {
+            try (Deadline.Scope innerScope = inner.open()) {
+                assertThat(Deadline.current()).isSameAs(inner);
+            }
+            assertThat(Deadline.current()).isSameAs(outer);
+        }
+        assertThat(Deadline.current()).isNull();
+    }
+
+    @Test
+    void capShortensTimeoutToTimeLeft() {
+        assertThat(Deadline.cap(Duration.ofSeconds(20))).isEqualTo(Duration.ofSeconds(20));
+
+        try (Deadline.Scope scope = Deadline.after(Duration.ofSeconds(5)).open()) {
+            assertThat(Deadline.cap(Duration.ofSeconds(20))).isLessThanOrEqualTo(Duration.ofSeconds(5)).isPositive();
+            assertThat(Deadline.cap(Duration.ofSeconds(1))).isEqualTo(Duration.ofSeconds(1));
+        }
+    }
+
+    @Test
+    void passedDeadlineIsExpired() {
+        Deadline deadline = Deadline.after(Duration.ZERO);
+
+        assertThat(deadline.isExpired()).isTrue();
+        assertThat(deadline.remaining()).isLessThanOrEqualTo(Duration.ZERO);
+        assertThat(Deadline.after(Duration.ofMinutes(1)).isExpired()).isFalse();
+    }
+
+    @Test
+    void deadlineIsPropagatedToForkedCalls() throws Exception {
+        Deadline deadline = Deadline.after(Duration.ofMinutes(1));
+
+        try (Deadline.Scope scope = deadline.open()) {
+            List<Deadline> forked = ConcurrentCalls.map(List.of(1, 2), 2, Duration.ofSeconds(10), input -> Deadline.current());
+            assertThat(forked).containsOnly(deadline);
+
+            ContextPropagatingExecutor executor = new ContextPropagatingExecutor(Executors.newVirtualThreadPerTaskExecutor());
+            assertThat(CompletableFuture.supplyAsync(Deadline::current, executor).get(10, TimeUnit.SECONDS)).isSameAs(deadline);
+        }
+    }
+}
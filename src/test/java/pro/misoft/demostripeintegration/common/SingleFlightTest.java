@@ -0,0 +1,100 @@
+package pro.misoft.demostripeintegration.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class SingleFlightTest {
+
+    private static final int CALLERS = 8;
+
+    private final SingleFlight<String, String> flights = new SingleFlight<>();
+
+    @Test
+    void concurrentCallersShareTheLeadersResult() throws Exception {
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+
+        List<Future<String>> results = new ArrayList<>();
+        try (ExecutorService callers = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < CALLERS; i++) {
+                results.add(callers.submit(() -> flights.execute("key", () -> {
+                    loads.incrementAndGet();
+                    assertThat(release.await(10, TimeUnit.SECONDS)).isTrue();
+                    return "value";
+                })));
+            }
+            awaitCoalesced(CALLERS - 1);
+            assertThat(flights.inFlightCount()).isEqualTo(1);
+            release.countDown();
+
+            for (Future<String> result : results) {
+                assertThat(result.get(10, TimeUnit.SECONDS)).isEqualTo("value");
+            }
+        }
+        assertThat(loads).hasValue(1);
+        assertThat(flights.inFlightCount()).isZero();
+    }
+
+    @Test
+    void leaderFailureIsRethrownToEveryWaiterAndNotRemembered() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+
+        List<Future<String>> results = new ArrayList<>();
+        try (ExecutorService callers = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < CALLERS; i++) {
+                results.add(callers.submit(() -> flights.execute("key", () -> {
+                    assertThat(release.await(10, TimeUnit.SECONDS)).isTrue();
+                    throw new IllegalStateException("load failed");
+                })));
+            }
+            awaitCoalesced(CALLERS - 1);
+            release.countDown();
+
+            for (Future<String> result : results) {
+                assertThatThrownBy(() -> result.get(10, TimeUnit.SECONDS))
+                        .isInstanceOf(ExecutionException.class)
+                        .hasCauseInstanceOf(IllegalStateException.class)
+                        .hasRootCauseMessage("load failed");
+            }
+        }
+        assertThat(flights.inFlightCount()).isZero();
+        assertThat(flights.execute("key", () -> "retried")).isEqualTo("retried");
+    }
+
+    @Test
+    void differentKeysDoNotWaitForEachOther() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        try (ExecutorService callers = Executors.newVirtualThreadPerTaskExecutor()) {
+            Future<String> blocked = callers.submit(() -> flights.execute("a", () -> {
+                assertThat(release.await(10, TimeUnit.SECONDS)).isTrue();
+                return "a";
+            }));
+
+            assertThat(flights.execute("b", () -> "b")).isEqualTo("b");
+
+            release.countDown();
+            assertThat(blocked.get(10, TimeUnit.SECONDS)).isEqualTo("a");
+        }
+        assertThat(flights.coalescedCount()).isZero();
+    }
+
+    private void awaitCoalesced(long expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (flights.coalescedCount() < expected && System.nanoTime() - deadline < 0) {
+            Thread.sleep(5);
+        }
+        assertThat(flights.coalescedCount()).isEqualTo(expected);
+    }
+}
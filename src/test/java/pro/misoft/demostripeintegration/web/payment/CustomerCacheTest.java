@@ -0,0 +1,98 @@
+package pro.misoft.demostripeintegration.web.payment;
+
+import com.stripe.model.Customer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CustomerCacheTest {
+
+    private static final int CALLERS = 8;
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final CustomerCache cache = new CustomerCache(meterRegistry, 100, Duration.ofMinutes(10));
+
+    @Test
+    void concurrentLookupsOfNewEmailCreateOneCustomer() throws Exception {
+        AtomicInteger creates = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+
+        List<Future<Customer>> results = new ArrayList<>();
+        try (ExecutorService callers = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < CALLERS; i++) {
+                // differently formatted emails of the same customer
+                String email = i % 2 == 0 ? "new@example.com" : " New@Example.com ";
+                results.add(callers.submit(() -> cache.getOrLoad(email, () -> {
+                    creates.incrementAndGet();
+                    assertThat(release.await(10, TimeUnit.SECONDS)).isTrue();
+                    return customer("cus_1", "new@example.com");
+                })));
+            }
+            awaitCoalesced(CALLERS - 1);
+            release.countDown();
+
+            for (Future<Customer> result : results) {
+                assertThat(result.get(10, TimeUnit.SECONDS).getId()).isEqualTo("cus_1");
+            }
+        }
+        assertThat(creates).hasValue(1);
+        assertThat(coalesced()).isEqualTo(CALLERS - 1);
+        assertThat(cache.get("NEW@example.com").getId()).isEqualTo("cus_1");
+    }
+
+    @Test
+    void lookupAfterCompletedLoadIsServedFromCache() throws Exception {
+        cache.getOrLoad("known@example.com", () -> customer("cus_2", "known@example.com"));
+
+        Customer customer = cache.getOrLoad("known@example.com", () -> {
+            throw new AssertionError("customer loaded twice");
+        });
+
+        assertThat(customer.getId()).isEqualTo("cus_2");
+    }
+
+    @Test
+    void failedLoadIsNotCachedAndRetried() throws Exception {
+        try {
+            cache.getOrLoad("flaky@example.com", () -> {
+                throw new IllegalStateException("Stripe unavailable");
+            });
+        } catch (IllegalStateException expected) {
+            // retried below
+        }
+
+        Customer customer = cache.getOrLoad("flaky@example.com", () -> customer("cus_3", "flaky@example.com"));
+
+        assertThat(customer.getId()).isEqualTo("cus_3");
+    }
+
+    private void awaitCoalesced(long expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (coalesced() < expected && System.nanoTime() - deadline < 0) {
+            Thread.sleep(5);
+        }
+        assertThat(coalesced()).isEqualTo(expected);
+    }
+
+    private double coalesced() {
+        return meterRegistry.get("stripe.customers.loads.coalesced").functionCounter().count();
+    }
+
+    private static Customer customer(String id, String email) {
+        Customer customer = new Customer();
+        customer.setId(id);
+        customer.setEmail(email);
+        return customer;
+    }
+}
@@ -0,0 +1,93 @@
+package pro.misoft.demostripeintegration.web.payment;
+
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.scheduling.annotation.AsyncConfigurer;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CustomerViewCacheTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    @AfterEach
+    void tearDown() {
+        executor.close();
+    }
+
+    @Test
+    void refreshThatStartedBeforeInvalidationDoesNotCacheItsPage() throws Exception {
+        // every cached page is stale right away and refreshed in the background
+        CustomerViewCache cache = cache(100, Duration.ZERO);
+        get(cache, page("in_1"));
+
+        CountDownLatch refreshStarted = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Page<String> served = cache.get("cus_1", CustomerViewCache.View.INVOICES, null, Page.DEFAULT_LIMIT, () -> {
+            refreshStarted.countDown();
+            assertThat(release.await(10, TimeUnit.SECONDS)).isTrue();
+            // read from Stripe before the change that invalidated the customer
+            return page("in_1");
+        });
+        assertThat(served.data()).containsExactly("in_1");
+        assertThat(refreshStarted.await(10, TimeUnit.SECONDS)).isTrue();
+
+        cache.invalidate("cus_1");
+        release.countDown();
+        awaitRefreshed();
+
+        assertThat(get(cache, page("in_1", "in_2")).data()).containsExactly("in_1", "in_2");
+    }
+
+    @Test
+    void cacheIsBoundedByRows() throws Exception {
+        CustomerViewCache cache = cache(5, Duration.ofMinutes(1));
+        cache.get("cus_1", CustomerViewCache.View.INVOICES, null, Page.DEFAULT_LIMIT, () -> page("in_1", "in_2", "in_3"));
+        cache.get("cus_2", CustomerViewCache.View.INVOICES, null, Page.DEFAULT_LIMIT, () -> page("in_4", "in_5", "in_6"));
+
+        assertThat(meterRegistry.get("payments.views.rows").gauge().value()).isEqualTo(3);
+        Page<String> reloaded = cache.get("cus_1", CustomerViewCache.View.INVOICES, null, Page.DEFAULT_LIMIT, () -> page("in_7"));
+        assertThat(reloaded.data()).containsExactly("in_7");
+    }
+
+    private CustomerViewCache cache(long maxRows, Duration ttl) {
+        return new CustomerViewCache(new AsyncConfigurer() {
+            @Override
+            public Executor getAsyncExecutor() {
+                return executor;
+            }
+        }, meterRegistry, maxRows, ttl, Duration.ofMinutes(5));
+    }
+
+    private static Page<String> get(CustomerViewCache cache, Page<String> loaded) throws Exception {
+        return cache.get("cus_1", CustomerViewCache.View.INVOICES, null, Page.DEFAULT_LIMIT, () -> loaded);
+    }
+
+    private void awaitRefreshed() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (refreshes() < 1 && System.nanoTime() - deadline < 0) {
+            Thread.sleep(5);
+        }
+        assertThat(refreshes()).isEqualTo(1);
+    }
+
+    private long refreshes() {
+        Timer refresh = meterRegistry.find("payments.views.refresh").timer();
+        return refresh == null ? 0 : refresh.count();
+    }
+
+    private static Page<String> page(String... rows) {
+        return new Page<>(List.of(rows), null);
+    }
+}
@@ -0,0 +1,249 @@
+package pro.misoft.demostripeintegration.web.payment;
+
+import com.stripe.model.Product;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import pro.misoft.demostripeintegration.common.IdempotencyKeyReusedException;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class IdempotencyStoreTest {
+
+    private static final int CALLERS = 8;
+    private static final String FINGERPRINT = "fingerprint-1";
+    private static final String OTHER_FINGERPRINT = "fingerprint-2";
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final IdempotencyStore store = new IdempotencyStore(meterRegistry, 100, Duration.ofHours(1));
+    private final AtomicInteger runs = new AtomicInteger();
+
+    @Test
+    void completedRequestIsReplayedWithoutRunningAgain() {
+        String first = store.execute("intent", "key-1", FINGERPRINT, key -> "secret-" + runs.incrementAndGet());
+        String retry = store.execute("intent", "key-1", FINGERPRINT, key -> "secret-" + runs.incrementAndGet());
+
+        assertThat(retry).isEqualTo(first).isEqualTo("secret-1");
+        assertThat(runs).hasValue(1);
+        assertThat(meterRegistry.get("payments.idempotency.replays").counter().count()).isEqualTo(1);
+    }
+
+    @Test
+    void actionGetsKeyScopedToEndpoint() {
+        String intent = store.execute("intent", "key-1", FINGERPRINT, key -> key);
+        String hosted = store.execute("hosted", "key-1", FINGERPRINT, key -> key);
+
+        assertThat(intent).isEqualTo("intent:key-1");
+        assertThat(hosted).isEqualTo("hosted:key-1");
+    }
+
+    @Test
+    void requestWithoutKeyAlwaysRuns() {
+        store.execute("intent", null, FINGERPRINT, key -> {
+            assertThat(key).isNull();
+            return runs.incrementAndGet();
+        });
+        store.execute("intent", null, FINGERPRINT, key -> runs.incrementAndGet());
+
+        assertThat(runs).hasValue(2);
+    }
+
+    @Test
+    void invalidKeyIsRejected() {
+        assertThatThrownBy(() -> store.execute("intent", " ", FINGERPRINT, key -> "never"))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> store.execute("intent", "k".repeat(201), FINGERPRINT, key -> "never"))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void failedRequestIsNotStoredAndRunsAgain() {
+        assertThatThrownBy(() -> store.execute("intent", "key-1", FINGERPRINT, key -> {
+            runs.incrementAndGet();
+            throw new IllegalStateException("Stripe unavailable");
+        })).isInstanceOf(IllegalStateException.class);
+
+        String retry = store.execute("intent", "key-1", FINGERPRINT, key -> "secret-" + runs.incrementAndGet());
+
+        assertThat(retry).isEqualTo("secret-2");
+    }
+
+    @Test
+    void concurrentDuplicatesWaitForTheOriginal() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+
+        List<Future<String>> results = new ArrayList<>();
+        try (ExecutorService callers = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < CALLERS; i++) {
+                results.add(callers.submit(() -> store.execute("intent", "key-1", FINGERPRINT, key -> {
+                    runs.incrementAndGet();
+                    await(release);
+                    return "secret";
+                })));
+            }
+            awaitCoalesced(CALLERS - 1);
+            release.countDown();
+
+            for (Future<String> result : results) {
+                assertThat(result.get(10, TimeUnit.SECONDS)).isEqualTo("secret");
+            }
+        }
+        assertThat(runs).hasValue(1);
+    }
+
+    @Test
+    void asyncDuplicateGetsTheOriginalsResult() throws Exception {
+        CompletableFuture<String> remote = new CompletableFuture<>();
+
+        CompletableFuture<String> original = store.executeAsync("intent", "key-1", FINGERPRINT, key -> {
+            runs.incrementAndGet();
+            return remote;
+        });
+        CompletableFuture<String> duplicate = store.executeAsync("intent", "key-1", FINGERPRINT, key -> {
+            runs.incrementAndGet();
+            return CompletableFuture.completedFuture("other");
+        });
+        assertThat(duplicate).isNotDone();
+        assertThat(coalesced()).isEqualTo(1);
+
+        remote.complete("secret");
+
+        assertThat(original.get(10, TimeUnit.SECONDS)).isEqualTo("secret");
+        assertThat(duplicate.get(10, TimeUnit.SECONDS)).isEqualTo("secret");
+        assertThat(store.executeAsync("intent", "key-1", FINGERPRINT, key -> CompletableFuture.completedFuture("other")).join())
+                .isEqualTo("secret");
+        assertThat(runs).hasValue(1);
+    }
+
+    @Test
+    void asyncFailureReachesDuplicatesAndIsNotStored() {
+        CompletableFuture<String> remote = new CompletableFuture<>();
+        CompletableFuture<String> original = store.executeAsync("intent", "key-1", FINGERPRINT, key -> remote);
+        CompletableFuture<String> duplicate = store.executeAsync("intent", "key-1", FINGERPRINT, key -> CompletableFuture.completedFuture("other"));
+
+        remote.completeExceptionally(new IllegalStateException("Stripe unavailable"));
+
+        assertThatThrownBy(original::get).isInstanceOf(ExecutionException.class).hasCauseInstanceOf(IllegalStateException.class);
+        assertThatThrownBy(duplicate::get).isInstanceOf(ExecutionException.class).hasCauseInstanceOf(IllegalStateException.class);
+        assertThat(store.executeAsync("intent", "key-1", FINGERPRINT, key -> CompletableFuture.completedFuture("retried")).join())
+                .isEqualTo("retried");
+    }
+
+    @Test
+    void asyncActionThrowingIsReturnedAsFailedFuture() {
+        CompletableFuture<String> result = store.executeAsync("intent", "key-1", FINGERPRINT, key -> {
+            throw new IllegalStateException("invalid request");
+        });
+
+        assertThat(result).isCompletedExceptionally();
+        assertThat(store.executeAsync("intent", "key-1", FINGERPRINT, key -> CompletableFuture.completedFuture("retried")).join())
+                .isEqualTo("retried");
+    }
+
+    @Test
+    void keyReusedWithAnotherRequestIsRejected() {
+        store.execute("intent", "key-1", FINGERPRINT, key -> "secret-" + runs.incrementAndGet());
+
+        assertThatThrownBy(() -> store.execute("intent", "key-1", OTHER_FINGERPRINT, key -> "secret-" + runs.incrementAndGet()))
+                .isInstanceOf(IdempotencyKeyReusedException.class)
+                .hasMessageContaining("intent:key-1");
+        assertThat(store.executeAsync("intent", "key-1", OTHER_FINGERPRINT, key -> CompletableFuture.completedFuture("other")))
+                .failsWithin(Duration.ofSeconds(10))
+                .withThrowableOfType(ExecutionException.class)
+                .withCauseInstanceOf(IdempotencyKeyReusedException.class);
+        assertThat(runs).hasValue(1);
+        assertThat(meterRegistry.get("payments.idempotency.replays").counter().count()).isZero();
+    }
+
+    @Test
+    void duplicateOfRunningRequestWithAnotherFingerprintIsRejected() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        try (ExecutorService callers = Executors.newVirtualThreadPerTaskExecutor()) {
+            Future<String> original = callers.submit(() -> store.execute("intent", "key-1", FINGERPRINT, key -> {
+                runs.incrementAndGet();
+                await(release);
+                return "secret";
+            }));
+            awaitRuns(1);
+            Future<String> other = callers.submit(() -> store.execute("intent", "key-1", OTHER_FINGERPRINT, key -> "other"));
+            awaitCoalesced(1);
+            release.countDown();
+
+            assertThat(original.get(10, TimeUnit.SECONDS)).isEqualTo("secret");
+            assertThatThrownBy(() -> other.get(10, TimeUnit.SECONDS))
+                    .isInstanceOf(ExecutionException.class)
+                    .hasCauseInstanceOf(IdempotencyKeyReusedException.class);
+        }
+
+        CompletableFuture<String> remote = new CompletableFuture<>();
+        CompletableFuture<String> originalAsync = store.executeAsync("hosted", "key-1", FINGERPRINT, key -> remote);
+        CompletableFuture<String> otherAsync = store.executeAsync("hosted", "key-1", OTHER_FINGERPRINT, key -> CompletableFuture.completedFuture("other"));
+        remote.complete("url");
+
+        assertThat(originalAsync.get(10, TimeUnit.SECONDS)).isEqualTo("url");
+        assertThatThrownBy(otherAsync::get).isInstanceOf(ExecutionException.class).hasCauseInstanceOf(IdempotencyKeyReusedException.class);
+    }
+
+    @Test
+    void fingerprintMatchesTheSameRequestOnly() {
+        PaymentRequest request = new PaymentRequest(List.of(product("bookA"), product("bookB")), "Jane", "Jane@Example.com ", null, false);
+
+        String fingerprint = IdempotencyStore.fingerprint(request);
+
+        assertThat(IdempotencyStore.fingerprint(new PaymentRequest(List.of(product("bookA"), product("bookB")), "Jane", "jane@example.com", null, false)))
+                .isEqualTo(fingerprint);
+        assertThat(IdempotencyStore.fingerprint(new PaymentRequest(List.of(product("bookA")), "Jane", "jane@example.com", null, false)))
+                .isNotEqualTo(fingerprint);
+        assertThat(IdempotencyStore.fingerprint(new PaymentRequest(List.of(product("bookA"), product("bookB")), "John", "john@example.com", null, false)))
+                .isNotEqualTo(fingerprint);
+        assertThat(IdempotencyStore.fingerprint(new PaymentRequest(List.of(product("bookA"), product("bookB")), "Jane", "jane@example.com", null, true)))
+                .isNotEqualTo(fingerprint);
+    }
+
+    private void awaitRuns(int expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (runs.get() < expected && System.nanoTime() - deadline < 0) {
+            Thread.sleep(5);
+        }
+        assertThat(runs).hasValue(expected);
+    }
+
+    private static Product product(String id) {
+        Product product = new Product();
+        product.setId(id);
+        return product;
+    }
+
+    private void awaitCoalesced(long expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (coalesced() < expected && System.nanoTime() - deadline < 0) {
+            Thread.sleep(5);
+        }
+        assertThat(coalesced()).isEqualTo(expected);
+    }
+
+    private double coalesced() {
+        return meterRegistry.get("payments.idempotency.coalesced").functionCounter().count();
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            assertThat(latch.await(10, TimeUnit.SECONDS)).isTrue();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package pro.misoft.demostripeintegration.web.payment;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+
+class LedgerLogTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void tornLastLogLineIsSkippedAndAppendsGoToNewLog() throws Exception {
+        String torn = line(entry("pi_3", "processing", 3));
+        Files.writeString(dir.resolve("log-1.ndjson"), line(entry("pi_1", "processing", 1)) + line(entry("pi_2", "processing", 2))
+                + torn.substring(0, torn.length() / 2));
+
+        List<LedgerEntry> recovered = new ArrayList<>();
+        try (LedgerLog ledgerLog = new LedgerLog(dir, objectMapper, false)) {
+            assertThat(ledgerLog.recover(recovered::add)).isEqualTo(2);
+            ledgerLog.append(List.of(entry("pi_3", "succeeded", 4)));
+        }
+
+        assertThat(recovered).extracting(LedgerEntry::id).containsExactly("pi_1", "pi_2");
+        assertThat(Files.readAllLines(dir.resolve("log-2.ndjson"))).hasSize(1);
+        assertThat(recover()).extracting(LedgerEntry::id).containsExactly("pi_1", "pi_2", "pi_3");
+    }
+
+    @Test
+    void snapshotNewerThanLogIsLoadedInsteadOfTheLog() throws Exception {
+        Files.writeString(dir.resolve("log-1.ndjson"), line(entry("pi_1", "processing", 1)));
+        Files.writeString(dir.resolve("snapshot-2.ndjson"), line(entry("pi_1", "succeeded", 2)));
+        Files.writeString(dir.resolve("log-2.ndjson"), line(entry("pi_2", "processing", 3)));
+        // snapshot interrupted by a crash
+        Files.writeString(dir.resolve("snapshot-3.ndjson.tmp"), line(entry("pi_1", "canceled", 4)));
+
+        assertThat(recover()).extracting(LedgerEntry::id, LedgerEntry::status)
+                .containsExactly(tuple("pi_1", "succeeded"), tuple("pi_2", "processing"));
+        assertThat(files()).containsExactlyInAnyOrder("snapshot-2.ndjson", "log-2.ndjson", "log-3.ndjson");
+    }
+
+    @Test
+    void snapshotDeletesObsoleteFilesAndArchiveKeepsHistory() throws Exception {
+        try (LedgerLog ledgerLog = new LedgerLog(dir, objectMapper, false)) {
+            ledgerLog.recover(entry -> {
+            });
+            ledgerLog.append(List.of(entry("pi_1", "succeeded", 1), entry("pi_2", "processing", 2)));
+            ledgerLog.archive(List.of(entry("pi_1", "succeeded", 1)));
+            ledgerLog.snapshot(List.of(entry("pi_2", "processing", 2)));
+        }
+
+        assertThat(files()).containsExactlyInAnyOrder(LedgerLog.HISTORY, "snapshot-2.ndjson", "log-2.ndjson");
+        assertThat(recover()).extracting(LedgerEntry::id).containsExactly("pi_2");
+        assertThat(Files.readAllLines(dir.resolve(LedgerLog.HISTORY))).hasSize(1);
+        assertThat(Files.readString(dir.resolve(LedgerLog.HISTORY))).contains("\"pi_1\"");
+    }
+
+    private List<LedgerEntry> recover() throws Exception {
+        List<LedgerEntry> recovered = new ArrayList<>();
+        try (LedgerLog ledgerLog = new LedgerLog(dir, objectMapper, false)) {
+            ledgerLog.recover(recovered::add);
+        }
+        return recovered;
+    }
+
+    private List<String> files() throws Exception {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.map(file -> file.getFileName().toString()).toList();
+        }
+    }
+
+    private String line(LedgerEntry entry) throws Exception {
+        return objectMapper.writeValueAsString(entry) + "\n";
+    }
+
+    static LedgerEntry entry(String id, String status, long revision) {
+        return new LedgerEntry(id, "payment_intent", "cus_1", 1000L, "usd", status, 1_700_000_000L, 1_700_000_000L + revision, revision);
+    }
+}
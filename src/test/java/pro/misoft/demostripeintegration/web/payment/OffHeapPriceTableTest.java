@@ -0,0 +1,141 @@
+package pro.misoft.demostripeintegration.web.payment;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class OffHeapPriceTableTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void loadsProductsSkippingBlankAndCommentLines() throws Exception {
+        PriceTable table = load("""
+                id,unit_amount,currency,name
+                bookA,2999,usd,Book A
+
+                # discontinued
+                bookB,3999,EUR,Book B""");
+
+        assertThat(table.size()).isEqualTo(2);
+        int bookB = table.indexOf("bookB");
+        assertThat(table.productId(bookB)).isEqualTo("bookB");
+        assertThat(table.unitAmount(bookB)).isEqualTo(3999);
+        assertThat(table.currency(bookB)).isSameAs("eur");
+        assertThat(table.name(bookB)).isEqualTo("Book B");
+        assertThat(table.indexOf("bookC")).isEqualTo(PriceTable.NOT_FOUND);
+        assertThat(table.indexOf(null)).isEqualTo(PriceTable.NOT_FOUND);
+        assertThatThrownBy(() -> table.name(2)).isInstanceOf(IndexOutOfBoundsException.class);
+    }
+
+    @Test
+    void headerIsRequired() {
+        assertThatThrownBy(() -> load("bookA,2999,usd,Book A\n"))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("line 1").hasMessageContaining("expected header");
+        assertThatThrownBy(() -> load(""))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("expected header");
+    }
+
+    @Test
+    void namesKeepCommasAndMayBeQuoted() throws Exception {
+        PriceTable table = load("""
+                id,unit_amount,currency,name
+                bookA,2999,usd,Book A, 2nd edition
+                bookB,3999,usd,"Book B, ""deluxe"" edition"
+                bookC,4999,usd,"\"""");
+
+        assertThat(table.name(table.indexOf("bookA"))).isEqualTo("Book A, 2nd edition");
+        assertThat(table.name(table.indexOf("bookB"))).isEqualTo("Book B, \"deluxe\" edition");
+        assertThat(table.name(table.indexOf("bookC"))).isEmpty();
+    }
+
+    @Test
+    void malformedQuotedNamesAreRejected() {
+        assertThatThrownBy(() -> load(OffHeapPriceTable.HEADER + "\nbookA,2999,usd,\"Book A\n"))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("line 2").hasMessageContaining("unterminated quoted name");
+        assertThatThrownBy(() -> load(OffHeapPriceTable.HEADER + "\nbookA,2999,usd,\"Book \"A\"\n"))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("unescaped quote");
+    }
+
+    @Test
+    void duplicateIdsAreRejected() {
+        assertThatThrownBy(() -> load(OffHeapPriceTable.HEADER + "\nbookA,2999,usd,Book A\nbookA,3999,usd,Book A again\n"))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("Duplicate product [bookA]");
+    }
+
+    @Test
+    void unitAmountUpToLongMaxValueIsAccepted() throws Exception {
+        PriceTable table = load(OffHeapPriceTable.HEADER + "\nbookA," + Long.MAX_VALUE + ",usd,Book A\n");
+
+        assertThat(table.unitAmount(table.indexOf("bookA"))).isEqualTo(Long.MAX_VALUE);
+        assertThatThrownBy(() -> load(OffHeapPriceTable.HEADER + "\nbookA,9223372036854775808,usd,Book A\n"))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("invalid unit_amount [9223372036854775808]");
+        assertThatThrownBy(() -> load(OffHeapPriceTable.HEADER + "\nbookA,-1,usd,Book A\n"))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("invalid unit_amount");
+    }
+
+    @Test
+    void crlfLineEndingsAreNotPartOfTheFields() throws Exception {
+        PriceTable table = load(OffHeapPriceTable.HEADER + "\r\nbookA,2999,usd,Book A\r\nbookB,3999,usd,\"Book B\"\r\n");
+
+        assertThat(table.name(table.indexOf("bookA"))).isEqualTo("Book A");
+        assertThat(table.name(table.indexOf("bookB"))).isEqualTo("Book B");
+    }
+
+    @Test
+    void idsWithTheSameHashCodeAreFoundByContent() throws Exception {
+        // "Aa" and "BB" have the same String.hashCode(), so do all their concatenations
+        assertThat("AaAa".hashCode()).isEqualTo("BBBB".hashCode()).isEqualTo("AaBB".hashCode()).isEqualTo("BBAa".hashCode());
+        PriceTable table = load(OffHeapPriceTable.HEADER + "\nAaAa,1,usd,first\nBBBB,2,usd,second\nAaBB,3,usd,third\n");
+
+        assertThat(table.unitAmount(table.indexOf("AaAa"))).isEqualTo(1);
+        assertThat(table.unitAmount(table.indexOf("BBBB"))).isEqualTo(2);
+        assertThat(table.unitAmount(table.indexOf("AaBB"))).isEqualTo(3);
+        assertThat(table.indexOf("BBAa")).isEqualTo(PriceTable.NOT_FOUND);
+    }
+
+    @Test
+    void largeCatalogIsFullyIndexed() throws Exception {
+        StringBuilder csv = new StringBuilder(OffHeapPriceTable.HEADER).append('\n');
+        for (int i = 0; i < 10_000; i++) {
+            csv.append("sku-").append(i).append(',').append(i).append(",usd,Product ").append(i).append('\n');
+        }
+        PriceTable table = load(csv.toString());
+
+        assertThat(table.size()).isEqualTo(10_000);
+        for (int i = 0; i < 10_000; i++) {
+            assertThat(table.unitAmount(table.indexOf("sku-" + i))).isEqualTo(i);
+        }
+    }
+
+    @Test
+    void fileEditedInPlaceDoesNotChangeLoadedTable() throws Exception {
+        Path file = dir.resolve("catalog.csv");
+        Files.writeString(file, OffHeapPriceTable.HEADER + "\nbookA,2999,usd,Book A\n");
+        PriceTable table = OffHeapPriceTable.load(file);
+
+        Files.writeString(file, "x");
+
+        assertThat(table.productId(0)).isEqualTo("bookA");
+        assertThat(table.name(0)).isEqualTo("Book A");
+        assertThat(table.indexOf("bookA")).isZero();
+    }
+
+    private PriceTable load(String csv) throws Exception {
+        Path file = Files.writeString(dir.resolve("catalog.csv"), csv);
+        return OffHeapPriceTable.load(file);
+    }
+}
@@ -0,0 +1,117 @@
+package pro.misoft.demostripeintegration.web.payment;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.stripe.model.Event;
+import com.stripe.model.PaymentIntent;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static pro.misoft.demostripeintegration.web.payment.LedgerLogTest.entry;
+
+class PaymentLedgerTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @TempDir
+    Path dir;
+
+    private PaymentLedger ledger;
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (ledger != null) {
+            ledger.stop();
+        }
+    }
+
+    @Test
+    void relativeDirIsRejected() {
+        assertThatThrownBy(() -> new PaymentLedger(objectMapper, meterRegistry, Path.of(".local/ledger"), 100,
+                Duration.ofMinutes(5), Duration.ofDays(7), Duration.ofDays(90), false))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("payments.ledger.dir");
+    }
+
+    @Test
+    void replayKeepsHighestRevisionWhateverTheOrderOfRecords() throws Exception {
+        // the snapshot may already contain a change that is appended to the log of its generation afterwards
+        Files.writeString(dir.resolve("snapshot-1.ndjson"), line(entry("pi_1", "succeeded", 7)));
+        Files.writeString(dir.resolve("log-1.ndjson"), line(entry("pi_1", "processing", 3)) + line(entry("pi_2", "processing", 5)));
+
+        ledger = start(Duration.ofMinutes(5));
+        ledger.record(intent("pi_3", "processing", Instant.now().getEpochSecond()));
+
+        assertThat(ledger.get("pi_1").status()).isEqualTo("succeeded");
+        assertThat(ledger.get("pi_1").revision()).isEqualTo(7);
+        assertThat(ledger.get("pi_3").revision()).isEqualTo(8);
+        assertThat(ledger.byCustomer("cus_1")).extracting(LedgerEntry::id).containsExactlyInAnyOrder("pi_1", "pi_2", "pi_3");
+    }
+
+    @Test
+    void settledEntriesPastRetentionAreMovedToHistory() throws Exception {
+        long twoDaysAgo = Instant.now().minus(Duration.ofDays(2)).getEpochSecond();
+        ledger = start(Duration.ofMillis(50));
+        ledger.onEvent(event("payment_intent.succeeded", twoDaysAgo), intent("pi_settled", "succeeded", twoDaysAgo));
+        ledger.onEvent(event("payment_intent.created", twoDaysAgo), intent("pi_open", "requires_payment_method", twoDaysAgo));
+        ledger.record(intent("pi_recent", "succeeded", Instant.now().getEpochSecond()));
+
+        awaitEvicted("pi_settled");
+
+        assertThat(ledger.get("pi_open")).isNotNull();
+        assertThat(ledger.get("pi_recent")).isNotNull();
+        assertThat(ledger.byCustomer("cus_1")).extracting(LedgerEntry::id).containsExactlyInAnyOrder("pi_open", "pi_recent");
+        assertThat(Files.readString(dir.resolve(LedgerLog.HISTORY))).contains("\"pi_settled\"").doesNotContain("\"pi_open\"");
+        assertThat(meterRegistry.get("payments.ledger.evictions").counter().count()).isEqualTo(1);
+
+        ledger.stop();
+        ledger = start(Duration.ofMinutes(5));
+        assertThat(ledger.get("pi_settled")).isNull();
+        assertThat(ledger.get("pi_open")).isNotNull();
+    }
+
+    private PaymentLedger start(Duration snapshotInterval) throws Exception {
+        return new PaymentLedger(objectMapper, meterRegistry, dir, 100, snapshotInterval, Duration.ofDays(1), Duration.ofDays(90), false);
+    }
+
+    private void awaitEvicted(String id) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (ledger.get(id) != null && System.nanoTime() - deadline < 0) {
+            Thread.sleep(10);
+        }
+        assertThat(ledger.get(id)).isNull();
+    }
+
+    private String line(LedgerEntry entry) throws Exception {
+        return objectMapper.writeValueAsString(entry) + "\n";
+    }
+
+    private static Event event(String type, long created) {
+        Event event = new Event();
+        event.setType(type);
+        event.setCreated(created);
+        return event;
+    }
+
+    private static PaymentIntent intent(String id, String status, long created) {
+        PaymentIntent intent = new PaymentIntent();
+        intent.setId(id);
+        intent.setObject("payment_intent");
+        intent.setCustomer("cus_1");
+        intent.setAmount(1000L);
+        intent.setCurrency("usd");
+        intent.setStatus(status);
+        intent.setCreated(created);
+        return intent;
+    }
+}
@@ -0,0 +1,121 @@
+package pro.misoft.demostripeintegration.web.payment;
+
+import com.stripe.exception.StripeException;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.task.TaskDecorator;
+import org.springframework.http.server.observation.ServerRequestObservationContext;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import pro.misoft.demostripeintegration.common.ConcurrentCalls;
+import pro.misoft.demostripeintegration.common.ContextPropagatingExecutor;
+import pro.misoft.demostripeintegration.config.TracingConfig;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Stripe calls made outside of the request thread, the way <code>POST /v1/payments/batch</code> streams its results and
+ * <code>POST /v1/payments</code> runs its steps with <code>payments.api.mode=async</code>, are counted for the request.
+ */
+class StripeCallsPerRequestTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final ObservationRegistry observationRegistry = ObservationRegistry.create();
+    private final ExecutorService virtualThreads = Executors.newVirtualThreadPerTaskExecutor();
+    private final StripeGateway gateway;
+
+    StripeCallsPerRequestTest() {
+        observationRegistry.observationConfig().observationHandler(new StripeCallsPerRequest(meterRegistry));
+        gateway = new StripeGateway(
+                new StripeLimitsProperties(90, Duration.ofSeconds(1), 50, Duration.ofMillis(500), 50, Duration.ofSeconds(10),
+                        Duration.ofSeconds(30), Duration.ofSeconds(5), Duration.ofSeconds(20)),
+                meterRegistry, observationRegistry);
+    }
+
+    @AfterEach
+    void shutdown() {
+        virtualThreads.close();
+    }
+
+    @Test
+    void callsOfStreamedBatchResultsAreCounted() throws Exception {
+        TaskDecorator decorator = new TracingConfig().observationTaskDecorator();
+        CompletableFuture<Void> streamed = new CompletableFuture<>();
+
+        Observation request = startRequest();
+        try (Observation.Scope scope = request.openScope()) {
+            // the streaming body is run by the application task executor after the handler returned
+            virtualThreads.execute(decorator.decorate(() -> {
+                try {
+                    ConcurrentCalls.forEach(List.of(0, 1, 2), 2, Duration.ofSeconds(10), i -> call("paymentintent.create"),
+                            (index, result, failure) -> assertThat(failure).isNull());
+                    streamed.complete(null);
+                } catch (Exception e) {
+                    streamed.completeExceptionally(e);
+                }
+            }));
+        }
+        streamed.get(10, TimeUnit.SECONDS);
+        request.stop();
+
+        assertThat(callsPerRequest().count()).isEqualTo(1);
+        assertThat(callsPerRequest().totalAmount()).isEqualTo(3);
+    }
+
+    @Test
+    void callsOfAsyncCheckoutStepsAreCounted() throws Exception {
+        Executor executor = new ContextPropagatingExecutor(virtualThreads);
+        CompletableFuture<String> response;
+
+        Observation request = startRequest();
+        try (Observation.Scope scope = request.openScope()) {
+            // the request thread only composes the steps, like AsyncStripe.createPaymentIntent
+            CompletableFuture<String> customer = CompletableFuture.supplyAsync(() -> call("customer.search"), executor);
+            CompletableFuture<String> product = CompletableFuture.supplyAsync(() -> call("product.search"), executor);
+            CompletableFuture<String> invoice = customer.thenApplyAsync(c -> call("invoice.create"), executor);
+            response = invoice.thenAcceptBothAsync(product, (i, p) -> call("invoiceitem.create"), executor)
+                    .thenApplyAsync(done -> call("invoice.finalize"), executor);
+        }
+        response.get(10, TimeUnit.SECONDS);
+        request.stop();
+
+        assertThat(callsPerRequest().totalAmount()).isEqualTo(5);
+    }
+
+    @Test
+    void callsOutsideOfRequestsAreNotCounted() {
+        call("customer.search");
+
+        assertThat(meterRegistry.find("stripe.calls.per.request").summary()).isNull();
+    }
+
+    private Observation startRequest() {
+        ServerRequestObservationContext context = new ServerRequestObservationContext(
+                new MockHttpServletRequest("POST", "/v1/payments"), new MockHttpServletResponse());
+        return Observation.createNotStarted("http.server.requests", () -> context, observationRegistry).start();
+    }
+
+    private String call(String operation) {
+        try {
+            return gateway.call(operation, () -> operation);
+        } catch (StripeException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private DistributionSummary callsPerRequest() {
+        return meterRegistry.get("stripe.calls.per.request").summary();
+    }
+}
@@ -0,0 +1,89 @@
+package pro.misoft.demostripeintegration.web.payment;
+
+import com.stripe.model.Event;
+import com.stripe.net.ApiResource;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StripeEventQueueTest {
+
+    private record Handled(String eventId, String thread, Observation.ContextView parent) {
+    }
+
+    private final ObservationRegistry observationRegistry = ObservationRegistry.create();
+    private final BlockingQueue<Handled> handled = new LinkedBlockingQueue<>();
+    private final StripeEventQueue queue;
+
+    StripeEventQueueTest() {
+        observationRegistry.observationConfig().observationHandler(context -> true);
+        StripeEventListener listener = (event, object) -> {
+            Observation current = observationRegistry.getCurrentObservation();
+            handled.add(new Handled(event.getId(), Thread.currentThread().getName(),
+                    current.getContextView().getParentObservation().getContextView()));
+        };
+        queue = new StripeEventQueue(List.of(listener), new SimpleMeterRegistry(), observationRegistry,
+                100, 10, 100, Duration.ofHours(1));
+    }
+
+    @AfterEach
+    void stop() throws InterruptedException {
+        queue.stop();
+    }
+
+    @Test
+    void eventIsHandledInTheTraceOfTheReceivingRequest() throws InterruptedException {
+        Observation request = Observation.start("http.server.requests", observationRegistry);
+        try (Observation.Scope scope = request.openScope()) {
+            queue.enqueue(event("evt_1"));
+        } finally {
+            request.stop();
+        }
+
+        Handled result = handled.poll(10, TimeUnit.SECONDS);
+
+        assertThat(result).isNotNull();
+        assertThat(result.eventId()).isEqualTo("evt_1");
+        assertThat(result.thread()).isEqualTo("stripe-webhook-consumer");
+        assertThat(result.parent()).isSameAs(request.getContextView());
+    }
+
+    @Test
+    void eventReceivedOutsideOfRequestIsHandledInTheBatch() throws InterruptedException {
+        queue.enqueue(event("evt_1"));
+
+        Handled result = handled.poll(10, TimeUnit.SECONDS);
+
+        assertThat(result).isNotNull();
+        assertThat(result.parent().getName()).isEqualTo("stripe.webhooks.batch");
+    }
+
+    @Test
+    void duplicateDeliveryIsHandledOnce() throws InterruptedException {
+        queue.enqueue(event("evt_1"));
+        assertThat(handled.poll(10, TimeUnit.SECONDS)).isNotNull();
+
+        queue.enqueue(event("evt_1"));
+        queue.enqueue(event("evt_2"));
+
+        assertThat(handled.poll(10, TimeUnit.SECONDS).eventId()).isEqualTo("evt_2");
+        assertThat(handled).isEmpty();
+    }
+
+    private static Event event(String id) {
+        return ApiResource.GSON.fromJson("""
+                {"id": "%s", "object": "event", "type": "customer.updated", "api_version": "%s",
+                 "data": {"object": {"id": "cus_1", "object": "customer"}}}
+                """.formatted(id, com.stripe.Stripe.API_VERSION), Event.class);
+    }
+}
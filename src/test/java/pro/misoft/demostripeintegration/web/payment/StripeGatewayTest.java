@@ -0,0 +1,81 @@
+package pro.misoft.demostripeintegration.web.payment;
+
+import com.stripe.exception.ApiConnectionException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.observation.ObservationRegistry;
+import org.junit.jupiter.api.Test;
+import pro.misoft.demostripeintegration.common.BackpressureException;
+import pro.misoft.demostripeintegration.common.Deadline;
+
+import java.time.Duration;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class StripeGatewayTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final StripeGateway gateway = new StripeGateway(
+            new StripeLimitsProperties(90, Duration.ofSeconds(1), 50, Duration.ofMillis(500), 50, Duration.ofSeconds(10),
+                    Duration.ofSeconds(30), Duration.ofSeconds(5), Duration.ofSeconds(20)),
+            meterRegistry, ObservationRegistry.create());
+    private final AtomicInteger calls = new AtomicInteger();
+
+    @Test
+    void callWithinDeadlineIsExecuted() throws Exception {
+        try (Deadline.Scope scope = Deadline.after(Duration.ofMinutes(1)).open()) {
+            assertThat(gateway.call("customer.search", calls::incrementAndGet)).isEqualTo(1);
+        }
+    }
+
+    @Test
+    void callAfterDeadlineIsRejectedWithoutCallingStripe() {
+        try (Deadline.Scope scope = Deadline.after(Duration.ZERO).open()) {
+            assertThatThrownBy(() -> gateway.call("customer.search", calls::incrementAndGet))
+                    .isInstanceOf(BackpressureException.class);
+        }
+
+        assertThat(calls).hasValue(0);
+        assertThat(meterRegistry.get("stripe.calls.errors").tag("type", "BackpressureException").counter().count()).isEqualTo(1);
+    }
+
+    @Test
+    void deadlinePassingDuringTheCallDoesNotOpenTheCircuit() {
+        for (int i = 0; i < 200; i++) {
+            // what the HTTP client throws when the request timeout was capped by the deadline
+            assertThatThrownBy(() -> gateway.call("customer.search", () -> {
+                throw new BackpressureException("deadline passed during the Stripe request");
+            })).isInstanceOf(BackpressureException.class);
+        }
+
+        assertThat(meterRegistry.get("resilience4j.circuitbreaker.state").tag("state", "closed").gauge().value()).isEqualTo(1);
+    }
+
+    @Test
+    void cancelledCallIsNotCountedAsError() {
+        assertThatThrownBy(() -> gateway.call("customer.search", () -> {
+            // what the HTTP client throws when the calling thread is interrupted
+            throw new CancellationException("Interrupted during API request to Stripe");
+        })).isInstanceOf(CancellationException.class);
+
+        assertThat(meterRegistry.find("stripe.calls.errors").counter()).isNull();
+    }
+
+    @Test
+    void interruptedCallsDoNotOpenTheCircuit() {
+        for (int i = 0; i < 200; i++) {
+            assertThatThrownBy(() -> gateway.call("customer.search", () -> {
+                throw new CancellationException("Interrupted during API request to Stripe");
+            })).isInstanceOf(CancellationException.class);
+            // what a transport wrapping the interrupt, like the SDK's default client, throws
+            assertThatThrownBy(() -> gateway.call("customer.search", () -> {
+                throw new ApiConnectionException("Interrupted during API request to Stripe", new InterruptedException());
+            })).isInstanceOf(ApiConnectionException.class);
+        }
+
+        assertThat(meterRegistry.get("resilience4j.circuitbreaker.state").tag("state", "closed").gauge().value()).isEqualTo(1);
+        assertThat(meterRegistry.get("resilience4j.circuitbreaker.calls").tag("kind", "ignored").timer().count()).isEqualTo(400);
+    }
+}
@@ -0,0 +1,159 @@
+package pro.misoft.demostripeintegration.web.payment;
+
+import com.stripe.exception.ApiConnectionException;
+import com.stripe.model.Customer;
+import com.stripe.model.Invoice;
+import com.stripe.model.InvoiceCollection;
+import com.stripe.model.InvoiceItem;
+import com.stripe.model.Product;
+import com.stripe.net.HttpHeaders;
+import com.stripe.net.RequestOptions;
+import com.stripe.net.StripeResponse;
+import com.stripe.param.InvoiceCreateParams;
+import com.stripe.param.InvoiceItemCreateParams;
+import com.stripe.param.InvoiceListParams;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.observation.ObservationRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.MockedStatic;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class StripePaymentsTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final PaymentLedger ledger = mock(PaymentLedger.class);
+    private final CustomerViewCache viewCache = mock(CustomerViewCache.class);
+    private final Invoice invoice = mock(Invoice.class);
+    private MockedStatic<Invoice> invoices;
+    private MockedStatic<InvoiceItem> invoiceItems;
+    private Stripe stripe;
+
+    @BeforeEach
+    void setUp() {
+        StripeGateway gateway = new StripeGateway(
+                new StripeLimitsProperties(90, Duration.ofSeconds(1), 50, Duration.ofMillis(500), 50, Duration.ofSeconds(10),
+                        Duration.ofSeconds(30), Duration.ofSeconds(5), Duration.ofSeconds(20)),
+                meterRegistry, ObservationRegistry.create());
+        ProductService productService = mock(ProductService.class);
+        when(productService.priceTable()).thenReturn(ArrayPriceTable.builder().add("bookA", "Book A", 2999, "usd").build());
+        JdkStripeHttpClient httpClient = mock(JdkStripeHttpClient.class);
+        when(httpClient.apiBase()).thenReturn("http://localhost:1");
+        stripe = new Stripe(productService, new CustomerCache(meterRegistry, 100, Duration.ofMinutes(1)),
+                new ProductIndex(gateway, meterRegistry), gateway, httpClient, Optional.of(ledger), viewCache, "sk_test", 8, Duration.ofSeconds(10));
+
+        when(invoice.getId()).thenReturn("in_1");
+        when(invoice.getCustomer()).thenReturn("cus_1");
+        invoices = mockStatic(Invoice.class);
+        invoices.when(() -> Invoice.create(any(InvoiceCreateParams.class), any(RequestOptions.class))).thenReturn(invoice);
+        invoiceItems = mockStatic(InvoiceItem.class);
+        invoiceItems.when(() -> InvoiceItem.create(any(InvoiceItemCreateParams.class), any(RequestOptions.class)))
+                .thenThrow(new ApiConnectionException("connection reset"));
+    }
+
+    @AfterEach
+    void tearDown() {
+        invoices.close();
+        invoiceItems.close();
+    }
+
+    @Test
+    void failedInvoiceItemDeletesTheDraftAndInvalidatesIt() throws Exception {
+        assertThatThrownBy(() -> checkout("intent:key-1")).isInstanceOf(ApiConnectionException.class);
+
+        verify(invoice).delete();
+        verify(ledger).recordDeleted(invoice);
+        verify(viewCache, atLeastOnce()).invalidate("cus_1");
+    }
+
+    @Test
+    void draftIsDeletedWithoutIdempotencyKeyToo() throws Exception {
+        assertThatThrownBy(() -> checkout(null)).isInstanceOf(ApiConnectionException.class);
+
+        verify(invoice).delete();
+    }
+
+    @Test
+    void retryUsesTheKeysOfTheFirstAttempt() {
+        assertThatThrownBy(() -> checkout("intent:key-1")).isInstanceOf(ApiConnectionException.class);
+        assertThatThrownBy(() -> checkout("intent:key-1")).isInstanceOf(ApiConnectionException.class);
+
+        assertThat(invoiceCreateKeys(2)).containsExactly("intent:key-1:invoice.create", "intent:key-1:invoice.create");
+    }
+
+    @Test
+    void replayedDeletedDraftIsRetriedUnderNextGenerationKey() {
+        when(invoice.getLastResponse()).thenReturn(replayed());
+        Invoice deleted = new Invoice();
+        deleted.setId("in_1");
+        deleted.setStatus("deleted");
+        invoices.when(() -> Invoice.retrieve("in_1")).thenReturn(deleted);
+        Invoice next = mock(Invoice.class);
+        when(next.getId()).thenReturn("in_2");
+        when(next.getCustomer()).thenReturn("cus_1");
+        invoices.when(() -> Invoice.create(any(InvoiceCreateParams.class), any(RequestOptions.class))).thenReturn(invoice, next);
+
+        assertThatThrownBy(() -> checkout("intent:key-1")).isInstanceOf(ApiConnectionException.class);
+
+        assertThat(invoiceCreateKeys(2)).containsExactly("intent:key-1:invoice.create", "intent:key-1:1:invoice.create");
+        verify(next).delete();
+    }
+
+    @Test
+    void replayedInvoiceThatIsNotDeletedIsContinued() {
+        when(invoice.getLastResponse()).thenReturn(replayed());
+        Invoice open = new Invoice();
+        open.setId("in_1");
+        open.setStatus("open");
+        invoices.when(() -> Invoice.retrieve("in_1")).thenReturn(open);
+
+        assertThatThrownBy(() -> checkout("intent:key-1")).isInstanceOf(ApiConnectionException.class);
+
+        assertThat(invoiceCreateKeys(1)).containsExactly("intent:key-1:invoice.create");
+    }
+
+    private List<String> invoiceCreateKeys(int calls) {
+        ArgumentCaptor<RequestOptions> options = ArgumentCaptor.forClass(RequestOptions.class);
+        invoices.verify(() -> Invoice.create(any(InvoiceCreateParams.class), options.capture()), times(calls));
+        return options.getAllValues().stream().map(RequestOptions::getIdempotencyKey).toList();
+    }
+
+    private static StripeResponse replayed() {
+        return new StripeResponse(200, HttpHeaders.of(Map.of("Idempotent-Replayed", List.of("true"))), "{}");
+    }
+
+    @Test
+    void onlyTheFirstPageWithDefaultLimitIsCached() {
+        InvoiceCollection empty = new InvoiceCollection();
+        empty.setData(List.of());
+        empty.setHasMore(false);
+        invoices.when(() -> Invoice.list(any(InvoiceListParams.class))).thenReturn(empty);
+
+        // streamed pages and deeper pages
+        stripe.payments.listInvoices("cus_1", null, Page.MAX_LIMIT);
+        stripe.payments.listInvoices("cus_1", "in_9", Page.DEFAULT_LIMIT);
+
+        invoices.verify(() -> Invoice.list(any(InvoiceListParams.class)), times(2));
+        verifyNoInteractions(viewCache);
+    }
+
+    private void checkout(String idempotencyKey) {
+        Customer customer = new Customer();
+        customer.setId("cus_1");
+        Product product = new Product();
+        product.setId("bookA");
+        // one item is created on the calling thread, where the static mocks apply
+        stripe.payments.createInvoicePaymentIntent(customer, List.of(product), List.of("prod_1"), idempotencyKey);
+    }
+}
@@ -0,0 +1,82 @@
+package pro.misoft.demostripeintegration.web.payment;
+
+import com.stripe.model.Price;
+import com.stripe.model.Product;
+import com.stripe.model.Subscription;
+import com.stripe.model.SubscriptionItem;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SubscriptionViewTest {
+
+    private static final long NOW = 1_700_000_000L;
+
+    @Test
+    void priceIsInMinorUnits() {
+        Price price = price();
+        price.setUnitAmount(2999L);
+        price.setUnitAmountDecimal(BigDecimal.valueOf(2999));
+
+        assertThat(view(price).price()).isEqualTo("2999");
+    }
+
+    @Test
+    void fractionalPriceKeepsDecimalUnitAmount() {
+        Price price = price();
+        price.setUnitAmountDecimal(new BigDecimal("2999.5"));
+
+        assertThat(view(price).price()).isEqualTo("2999.5");
+    }
+
+    @Test
+    void priceFallsBackToUnitAmount() {
+        Price price = price();
+        price.setUnitAmount(500L);
+
+        assertThat(view(price).price()).isEqualTo("500");
+    }
+
+    @Test
+    void trialEndIsShownOnlyWhileRunning() {
+        Subscription subscription = subscription();
+        subscription.setTrialEnd(NOW - 1);
+        SubscriptionItem item = item(price());
+        item.getPrice().setUnitAmount(2999L);
+
+        assertThat(SubscriptionView.of(subscription, item, NOW).trialEndsOn()).isNull();
+
+        subscription.setTrialEnd(NOW + 86_400);
+        assertThat(SubscriptionView.of(subscription, item, NOW).trialEndsOn()).isNotNull();
+    }
+
+    private static SubscriptionView view(Price price) {
+        return SubscriptionView.of(subscription(), item(price), NOW);
+    }
+
+    private static Price price() {
+        Product product = new Product();
+        product.setMetadata(Map.of(ProductIndex.APP_ID, "bookA"));
+        Price price = new Price();
+        price.setCurrency("usd");
+        price.setProductObject(product);
+        return price;
+    }
+
+    private static SubscriptionItem item(Price price) {
+        SubscriptionItem item = new SubscriptionItem();
+        item.setPrice(price);
+        return item;
+    }
+
+    private static Subscription subscription() {
+        Subscription subscription = new Subscription();
+        subscription.setId("sub_1");
+        subscription.setStartDate(NOW - 86_400);
+        subscription.setCurrentPeriodEnd(NOW + 29 * 86_400);
+        return subscription;
+    }
+}